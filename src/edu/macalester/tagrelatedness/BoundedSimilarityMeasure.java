@@ -0,0 +1,14 @@
+package edu.macalester.tagrelatedness;
+/**
+ * An IndexedTagSimilarityMeasure with a cheap upper bound, computed from the number of resources of each tag without comparing
+ * them. Callers looking for the pairs above a threshold skip every pair whose bound is already below it, before doing the
+ * expensive intersection.
+ */
+public interface BoundedSimilarityMeasure extends IndexedTagSimilarityMeasure {
+	/**
+	 * Returns a value that calculateSimilarity(tag1, tag2) never exceeds.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	double getUpperBound(int tag1, int tag2);
+}
@@ -2,26 +2,164 @@ package edu.macalester.tagrelatedness;
 
 import java.util.Comparator;
 
-public class CSVComparator implements Comparator<String>{
+/**
+ * Orders the lines of a similarity CSV from the most similar pair to the least similar one, by the similarity after the last
+ * comma of every line. Lines whose similarity can not be parsed, or is NaN, come last.
+ * <p>
+ * The similarity of a line is also available as a key for the keyed sort of ExternalSort, which parses every line once, from its
+ * bytes, instead of at every comparison.
+ */
+public class CSVComparator implements Comparator<String>, ExternalSort.KeyExtractor {
 
 	public int compare(String r1, String r2) {
-		String[] data1 = r1.split(",");
-		String[] data2 = r2.split(",");
-		double result;
-		
-		try{
-			result = Double.parseDouble(data1[2]) - Double.parseDouble(data2[2]);
-		}catch(NumberFormatException e){
-			return 0;
+		return Long.compare(getKey(r1), getKey(r2));
+	}
+	/**
+	 * Returns a key whose signed order is the order of the comparator.
+	 * @param line A line of a similarity CSV.
+	 * @return The key of the line.
+	 */
+	public long getKey(String line) {
+		return parseKey(null, line, 0, line.length());
+	}
+	/**
+	 * Returns the key of a line read as bytes in an ASCII compatible charset, the same key as getKey(String) on the decoded line.
+	 * @param line The bytes holding the line.
+	 * @param from The first byte of the line.
+	 * @param to The byte after the line.
+	 * @return The key of the line.
+	 */
+	public long getKey(byte[] line, int from, int to) {
+		return parseKey(line, null, from, to);
+	}
+	/**
+	 * Lines with the same similarity keep their order.
+	 * @return false
+	 */
+	public boolean breaksTies() {
+		return false;
+	}
+	/**
+	 * Returns the key of a line with the given similarity, NaN going last.
+	 * @param similarity The similarity of a line.
+	 * @return The key of the line.
+	 */
+	static long getKey(double similarity) {
+		if(Double.isNaN(similarity))
+			return Long.MAX_VALUE;
+
+		// The bits of a double sort like its value once the other bits of negative values are flipped; -0.0 is made 0.0 first.
+		// Flipping every bit then puts the most similar first.
+		long bits = Double.doubleToLongBits(similarity + 0.0);
+		return ~(bits ^ ((bits >> 63) & Long.MAX_VALUE));
+	}
+
+	/**
+	 * Significant digits a key keeps, and the decimal exponents it tells apart: the key of a number 0.d1d2...d17 x 10^p is p above
+	 * MIN_EXPONENT in its high bits and the digits in the low ones. Seventeen digits tell any two doubles apart; the exponents
+	 * cover any similarity, the numbers beyond them tying with the smallest or largest ones.
+	 */
+	private static final int DIGITS = 17;
+	private static final int DIGIT_BITS = 57;
+	private static final int MIN_EXPONENT = -40;
+	private static final int MAX_EXPONENT = MIN_EXPONENT + 63;
+
+	private static final long MAGNITUDE_OVERFLOW = Long.MAX_VALUE - 2;
+	private static final long INFINITY = Long.MAX_VALUE - 1;
+
+	/**
+	 * Parses the number after the last comma of a line, in the syntax of Double.parseDouble without hexadecimal numbers, straight
+	 * from its bytes or its chars, so the keyed sort never decodes a line. The key orders the numbers by their decimal value, which
+	 * is the order of the doubles they parse to.
+	 */
+	private static long parseKey(byte[] bytes, String string, int from, int to) {
+		int start = to;
+		while(start > from && charAt(bytes, string, start - 1) != ',')
+			start--;
+		while(start < to && charAt(bytes, string, start) <= ' ')
+			start++;
+		while(to > start && charAt(bytes, string, to - 1) <= ' ')
+			to--;
+		if(to > start && "fFdD".indexOf(charAt(bytes, string, to - 1)) >= 0)
+			to--;
+
+		int i = start;
+		boolean negative = false;
+		if(i < to && (charAt(bytes, string, i) == '-' || charAt(bytes, string, i) == '+'))
+			negative = charAt(bytes, string, i++) == '-';
+		if(matches(bytes, string, i, to, "NaN"))
+			return Long.MAX_VALUE;
+		if(matches(bytes, string, i, to, "Infinity"))
+			return ~(negative ? -INFINITY : INFINITY);
+
+		long digits = 0;
+		int significant = 0, exponent = 0;
+		boolean any = false, point = false;
+		for(; i < to; i++){
+			char c = charAt(bytes, string, i);
+			if(c == '.' && !point){
+				point = true;
+			}else if(c >= '0' && c <= '9'){
+				any = true;
+				if(significant == 0 && c == '0'){
+					if(point)
+						exponent--;
+				}else{
+					if(significant++ < DIGITS)
+						digits = 10 * digits + (c - '0');
+					if(!point)
+						exponent++;
+				}
+			}else{
+				break;
+			}
+		}
+		if(!any)
+			return Long.MAX_VALUE;
+		if(i < to){
+			if(charAt(bytes, string, i) != 'e' && charAt(bytes, string, i) != 'E')
+				return Long.MAX_VALUE;
+			boolean negativeExponent = false;
+			if(++i < to && (charAt(bytes, string, i) == '-' || charAt(bytes, string, i) == '+'))
+				negativeExponent = charAt(bytes, string, i++) == '-';
+			if(i == to)
+				return Long.MAX_VALUE;
+			int power = 0;
+			for(; i < to; i++){
+				char c = charAt(bytes, string, i);
+				if(c < '0' || c > '9')
+					return Long.MAX_VALUE;
+				power = Math.min(10 * power + (c - '0'), 1 << 20);
+			}
+			exponent += negativeExponent ? -power : power;
 		}
-		
-		if(result < 0)
-			return 1;
-		else if(result > 0)
-			return -1;
+		if(significant == 0)
+			return ~0L;
+
+		for(int d = significant; d < DIGITS; d++)
+			digits *= 10;
+		long magnitude;
+		if(exponent < MIN_EXPONENT)
+			magnitude = 1;
+		else if(exponent > MAX_EXPONENT)
+			magnitude = MAGNITUDE_OVERFLOW;
 		else
-			return 0;
+			magnitude = (long) (exponent - MIN_EXPONENT) << DIGIT_BITS | digits;
+		// Flipping every bit puts the most similar first.
+		return ~(negative ? -magnitude : magnitude);
+	}
+
+	private static char charAt(byte[] bytes, String string, int i) {
+		return bytes != null ? (char) (bytes[i] & 0xFF) : string.charAt(i);
 	}
 
+	private static boolean matches(byte[] bytes, String string, int from, int to, String word) {
+		if(to - from != word.length())
+			return false;
+		for(int i = 0; i < word.length(); i++)
+			if(charAt(bytes, string, from + i) != word.charAt(i))
+				return false;
+		return true;
+	}
 
 }
@@ -7,8 +7,6 @@ import org.h2.command.Command;
 
 
 import java.io.*;
-import java.math.RoundingMode;
-import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.LinkedList;
@@ -19,7 +17,8 @@ public class CSVUtils {
     public static void main(String[] args){
 
         String availableActions = "bibsonomy-most-frequent " +
-                "filesplit";
+                "filesplit " +
+                "export-csv";
 
         CommandLineParser parser = new PosixParser();
         Options options = new Options();
@@ -98,6 +97,9 @@ public class CSVUtils {
                     }
                     fileSplit(input, div);
                     break;
+                case "export-csv":
+                    exportCSV(input, output);
+                    break;
                 default:
                     System.out.println("ERROR: Unrecognized action.");
                     printHelp(formatter, options);
@@ -114,7 +116,7 @@ public class CSVUtils {
     public static void printHelp(HelpFormatter formatter, Options options){
 		System.out.println("CSVUtils Help: ");
 		System.out.println("java edu.macalester.tagrelatedness.CSVUtils <ACTION> <OPTIONS>");
-		System.out.println("ALGORITHM		bibsonomy-most-frequent or filesplit");
+		System.out.println("ALGORITHM		bibsonomy-most-frequent, filesplit or export-csv");
 		System.out.println("OPTIONS			see below");
 		formatter.printHelp( "tag-relatedness", options );
     	formatter.printHelp("CSVUtils", options);
@@ -122,42 +124,42 @@ public class CSVUtils {
     }
 
     public static void generateTagSimilarityCSV(LinkedList<String> tagsList, final TagSimilarityMeasure similarityMeasure, File outputFile, int threads){
-        final LinkedList<String> tags = tagsList;
-        FileWriter fWriter = null;
+        generateTagSimilarityCSV(tagsList, similarityMeasure, outputFile, Double.NEGATIVE_INFINITY, threads);
+    }
+
+    /**
+     * Writes the similarity of every tag pair whose similarity is not below minSimilarity. Measures that are a
+     * BoundedSimilarityMeasure skip the pairs whose upper bound is already below it without calculating their similarity.
+     */
+    public static void generateTagSimilarityCSV(LinkedList<String> tagsList, TagSimilarityMeasure similarityMeasure, File outputFile, double minSimilarity, int threads){
+        generateTagSimilarityCSV(tagsList, similarityMeasure, outputFile, minSimilarity, threads, ExternalSort.estimateAvailableMemory());
+    }
+
+    /**
+     * Writes the similarity of every tag pair whose similarity is not below minSimilarity, sorting a CSV file within sortMemory
+     * bytes.
+     */
+    public static void generateTagSimilarityCSV(LinkedList<String> tagsList, TagSimilarityMeasure similarityMeasure, File outputFile, double minSimilarity, int threads, long sortMemory){
+        String[] tagNames = tagsList.toArray(new String[tagsList.size()]);
+
+        SimilarityOutput pWriter = null;
         try {
-            fWriter = new FileWriter(outputFile);
+            pWriter = openOutput(outputFile, tagNames, true, threads, sortMemory);
         } catch (IOException e) {
             e.printStackTrace();
+            return;
         }
 
-        final DecimalFormat formatter = new DecimalFormat("0.00000000000000000");
-        formatter.setRoundingMode(RoundingMode.HALF_UP);
-
-        final FileWriter writer = fWriter;
-        ParallelForEach.loop(tags,
-                threads,
-                new Procedure<String>() {
-                    @Override
-                    public void call(String comparingTag) throws Exception {
-                        int start = tags.indexOf(comparingTag);
-                        for(String comparedTag : tags.subList(start+1, tags.size() )){
-                            double cc = similarityMeasure.calculateSimilarity(comparingTag, comparedTag);
-//            				if(!(cc < 0.001 && cc > -.001)){
-                            // Remove newlines, commas and apostrophes that may distort the CSV file when being written.
-                            synchronized(writer){
-                                writer.append("\"" + comparingTag.replace("\"", "").replace("\n", "").replace(",", "") + '"'+ ',' + '"' + comparedTag.replace("\"", "").replace("\n", "").replace(",", "") + '"' + "," + formatter.format(cc) +"\n");
-                            }
-// 	        				}
-
-                        }
-                    }
-                }
-        );
-
+        final SimilarityOutput writer = pWriter;
+        calculateTagSimilarities(tagNames, similarityMeasure, minSimilarity, threads, new PairProcedure() {
+            @Override
+            public void call(int tag1, int tag2, double cc) throws Exception {
+                writer.write(tag1, tag2, cc);
+            }
+        });
 
         try {
-            fWriter.flush();
-            fWriter.close();
+            writer.close();
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -168,6 +170,326 @@ public class CSVUtils {
         generateTagSimilarityCSV(tagsList, similarityMeasure, outputFile , Runtime.getRuntime().availableProcessors());
     }
 
+    /**
+     * Writes the similarity of the tag pairs that share at least one resource, skipping every pair whose similarity is zero
+     * because its tags never co-occur. The pairs are found with the CooccurrenceEngine, so the work grows with the number of
+     * co-occurrences instead of the square of the number of tags.
+     */
+    public static void generateSparseTagSimilarityCSV(LinkedList<String> tagsList, final CooccurrenceMeasure similarityMeasure, File outputFile, int threads){
+        generateSparseTagSimilarityCSV(tagsList, similarityMeasure, outputFile, Double.NEGATIVE_INFINITY, threads);
+    }
+
+    /**
+     * Writes the similarity of the tag pairs that share at least one resource and whose similarity is not below minSimilarity.
+     */
+    public static void generateSparseTagSimilarityCSV(LinkedList<String> tagsList, CooccurrenceMeasure similarityMeasure, File outputFile, final double minSimilarity, int threads){
+        generateSparseTagSimilarityCSV(tagsList, similarityMeasure, outputFile, minSimilarity, threads, ExternalSort.estimateAvailableMemory());
+    }
+
+    /**
+     * Writes the similarity of the tag pairs that share at least one resource and whose similarity is not below minSimilarity,
+     * sorting a CSV file within sortMemory bytes.
+     */
+    public static void generateSparseTagSimilarityCSV(LinkedList<String> tagsList, CooccurrenceMeasure similarityMeasure, File outputFile, final double minSimilarity, int threads, long sortMemory){
+        // Above a positive threshold every Jaccard pair shares a resource, and the prefix filtering join finds them faster.
+        if(similarityMeasure instanceof ProjectionalJaccard && minSimilarity > 0){
+            generateTagSimilarityCSV(tagsList, similarityMeasure, outputFile, minSimilarity, threads, sortMemory);
+            return;
+        }
+
+        final IdDictionary dictionary = similarityMeasure.getTagDictionary();
+        int[] tagIds = new int[tagsList.size()];
+        int i = 0;
+        for(String tag : tagsList)
+            tagIds[i++] = dictionary.getId(tag);
+
+        // The pairs come as tag ids, so the writer is given the names in id order.
+        SimilarityOutput pWriter = null;
+        try {
+            pWriter = openOutput(outputFile, dictionary.getNames().toArray(new String[dictionary.size()]), true, threads, sortMemory);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        final SimilarityOutput writer = pWriter;
+        CooccurrenceEngine.run(tagIds, similarityMeasure, threads, new PairProcedure() {
+            @Override
+            public void call(int tag1, int tag2, double cc) throws Exception {
+                if(!(cc < minSimilarity))
+                    writer.write(tag1, tag2, cc);
+            }
+        });
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    public static void generateSparseTagSimilarityCSV(LinkedList<String> tagsList, CooccurrenceMeasure similarityMeasure, File outputFile){
+        generateSparseTagSimilarityCSV(tagsList, similarityMeasure, outputFile, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Writes, for every tag, the k tags most similar to it, the most similar first. The pairs are computed as for
+     * generateTagSimilarityCSV but only the best k of every tag are kept, so the output has at most k lines per tag and needs
+     * no sorting afterwards.
+     */
+    public static void generateTopKTagSimilarityCSV(LinkedList<String> tagsList, TagSimilarityMeasure similarityMeasure, File outputFile, int k, int threads){
+        generateTopKTagSimilarityCSV(tagsList, similarityMeasure, outputFile, k, Double.NEGATIVE_INFINITY, threads);
+    }
+
+    /**
+     * Writes, for every tag, the k tags most similar to it among those whose similarity is not below minSimilarity.
+     */
+    public static void generateTopKTagSimilarityCSV(LinkedList<String> tagsList, TagSimilarityMeasure similarityMeasure, File outputFile, int k, double minSimilarity, int threads){
+        String[] tagNames = tagsList.toArray(new String[tagsList.size()]);
+        TopKCollector collector = new TopKCollector(tagNames.length, k);
+        calculateTagSimilarities(tagNames, similarityMeasure, minSimilarity, threads, collector);
+        writeTopK(tagNames, collector, outputFile);
+    }
+
+    public static void generateTopKTagSimilarityCSV(LinkedList<String> tagsList, TagSimilarityMeasure similarityMeasure, File outputFile, int k){
+        generateTopKTagSimilarityCSV(tagsList, similarityMeasure, outputFile, k, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Writes, for every tag, the k tags most similar to it among the tags that share at least one resource with it, the most
+     * similar first. The pairs are found with the CooccurrenceEngine as in generateSparseTagSimilarityCSV.
+     */
+    public static void generateSparseTopKTagSimilarityCSV(LinkedList<String> tagsList, CooccurrenceMeasure similarityMeasure, File outputFile, int k, int threads){
+        generateSparseTopKTagSimilarityCSV(tagsList, similarityMeasure, outputFile, k, Double.NEGATIVE_INFINITY, threads);
+    }
+
+    /**
+     * Writes, for every tag, the k tags most similar to it among the tags that share at least one resource with it and whose
+     * similarity is not below minSimilarity.
+     */
+    public static void generateSparseTopKTagSimilarityCSV(LinkedList<String> tagsList, CooccurrenceMeasure similarityMeasure, File outputFile, int k, final double minSimilarity, int threads){
+        if(similarityMeasure instanceof ProjectionalJaccard && minSimilarity > 0){
+            generateTopKTagSimilarityCSV(tagsList, similarityMeasure, outputFile, k, minSimilarity, threads);
+            return;
+        }
+
+        IdDictionary dictionary = similarityMeasure.getTagDictionary();
+        String[] tagNames = tagsList.toArray(new String[tagsList.size()]);
+        int[] tagIds = new int[tagNames.length];
+        final int[] position = new int[dictionary.size()];
+        for(int i = 0; i < tagNames.length; i++){
+            tagIds[i] = dictionary.getId(tagNames[i]);
+            position[tagIds[i]] = i;
+        }
+
+        final TopKCollector collector = new TopKCollector(tagNames.length, k);
+        CooccurrenceEngine.run(tagIds, similarityMeasure, threads, new PairProcedure() {
+            @Override
+            public void call(int tag1, int tag2, double cc) throws Exception {
+                if(!(cc < minSimilarity))
+                    collector.call(position[tag1], position[tag2], cc);
+            }
+        });
+        writeTopK(tagNames, collector, outputFile);
+    }
+
+    public static void generateSparseTopKTagSimilarityCSV(LinkedList<String> tagsList, CooccurrenceMeasure similarityMeasure, File outputFile, int k){
+        generateSparseTopKTagSimilarityCSV(tagsList, similarityMeasure, outputFile, k, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Writes the similarity of the candidate pairs of an LshIndex whose similarity is not below minSimilarity. Only the pairs whose
+     * MinHash signatures agree on a band are compared, so most pairs are never looked at, and some similar pairs may be missed.
+     */
+    public static void generateLshTagSimilarityCSV(LinkedList<String> tagsList, LshIndex index, IndexedTagSimilarityMeasure similarityMeasure, File outputFile, final double minSimilarity, int threads){
+        generateLshTagSimilarityCSV(tagsList, index, similarityMeasure, outputFile, minSimilarity, threads, ExternalSort.estimateAvailableMemory());
+    }
+
+    /**
+     * Writes the similarity of the candidate pairs of an LshIndex whose similarity is not below minSimilarity, sorting a CSV file
+     * within sortMemory bytes.
+     */
+    public static void generateLshTagSimilarityCSV(LinkedList<String> tagsList, LshIndex index, IndexedTagSimilarityMeasure similarityMeasure, File outputFile, final double minSimilarity, int threads, long sortMemory){
+        IdDictionary dictionary = similarityMeasure.getTagDictionary();
+        int[] tagIds = new int[tagsList.size()];
+        int i = 0;
+        for(String tag : tagsList)
+            tagIds[i++] = dictionary.getId(tag);
+
+        // The pairs come as tag ids, so the writer is given the names in id order.
+        SimilarityOutput pWriter = null;
+        try {
+            pWriter = openOutput(outputFile, dictionary.getNames().toArray(new String[dictionary.size()]), true, threads, sortMemory);
+        } catch (IOException e) {
+            e.printStackTrace();
+            return;
+        }
+
+        final SimilarityOutput writer = pWriter;
+        index.run(tagIds, similarityMeasure, threads, new PairProcedure() {
+            @Override
+            public void call(int tag1, int tag2, double cc) throws Exception {
+                if(!(cc < minSimilarity))
+                    writer.write(tag1, tag2, cc);
+            }
+        });
+
+        try {
+            writer.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Writes, for every tag, the k tags most similar to it among its candidate pairs in an LshIndex whose similarity is not below
+     * minSimilarity.
+     */
+    public static void generateLshTopKTagSimilarityCSV(LinkedList<String> tagsList, LshIndex index, IndexedTagSimilarityMeasure similarityMeasure, File outputFile, int k, final double minSimilarity, int threads){
+        IdDictionary dictionary = similarityMeasure.getTagDictionary();
+        String[] tagNames = tagsList.toArray(new String[tagsList.size()]);
+        int[] tagIds = new int[tagNames.length];
+        final int[] position = new int[dictionary.size()];
+        for(int i = 0; i < tagNames.length; i++){
+            tagIds[i] = dictionary.getId(tagNames[i]);
+            position[tagIds[i]] = i;
+        }
+
+        final TopKCollector collector = new TopKCollector(tagNames.length, k);
+        index.run(tagIds, similarityMeasure, threads, new PairProcedure() {
+            @Override
+            public void call(int tag1, int tag2, double cc) throws Exception {
+                if(!(cc < minSimilarity))
+                    collector.call(position[tag1], position[tag2], cc);
+            }
+        });
+        writeTopK(tagNames, collector, outputFile);
+    }
+
+    /**
+     * Opens the file the similarities are written to: in the binary format of a SimilarityFile if its name ends with
+     * SimilarityFile.EXTENSION, as CSV otherwise. A CSV file of pairs comes out sorted from the most similar pair, the
+     * threads spilling sorted runs that are merged when the output is closed.
+     * @param symmetric Whether the output holds every pair once, or the pairs of every tag in the order they are written.
+     * @param threads The number of threads writing the pairs.
+     * @param sortMemory The memory budget of the sorted runs and their merge, in bytes, for either format.
+     */
+    private static SimilarityOutput openOutput(File outputFile, String[] tagNames, boolean symmetric, int threads, long sortMemory) throws IOException {
+        if(SimilarityFile.isBinary(outputFile))
+            return new SimilarityFile.Writer(outputFile, tagNames, symmetric, sortMemory, threads);
+        if(symmetric)
+            return new SortedRunWriter(outputFile, tagNames, sortMemory, threads);
+        return new PairWriter(outputFile, tagNames);
+    }
+
+    private static void writeTopK(String[] tagNames, TopKCollector collector, File outputFile){
+        collector.finish();
+        SimilarityOutput writer = null;
+        try {
+            writer = openOutput(outputFile, tagNames, false, 1, ExternalSort.estimateAvailableMemory());
+            for(int tag = 0; tag < tagNames.length; tag++){
+                for(int rank = 0; rank < collector.getCount(tag); rank++)
+                    writer.write(tag, collector.getNeighbor(tag, rank), collector.getSimilarity(tag, rank));
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                if(null != writer)
+                    writer.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Calculates the similarity of every pair (tagNames[i], tagNames[j]), i &lt; j, and hands it to the procedure as (i, j, similarity)
+     * unless it is below minSimilarity. The procedure is called from several threads at the same time.
+     */
+    private static void calculateTagSimilarities(final String[] tagNames, final TagSimilarityMeasure similarityMeasure, final double minSimilarity, int threads, final PairProcedure procedure){
+        // Measures that work on tag ids get every tag translated once here instead of once per pair.
+        final int[] tagIds = new int[tagNames.length];
+        final IndexedTagSimilarityMeasure indexedMeasure = similarityMeasure instanceof IndexedTagSimilarityMeasure ?
+                (IndexedTagSimilarityMeasure) similarityMeasure : null;
+        if(null != indexedMeasure){
+            for(int i = 0; i < tagNames.length; i++)
+                tagIds[i] = indexedMeasure.getTagDictionary().getId(tagNames[i]);
+        }
+
+        // Jaccard pairs above a positive threshold are found by prefix filtering, which never looks at most of the pairs.
+        if(similarityMeasure instanceof ProjectionalJaccard && minSimilarity > 0){
+            final int[] position = new int[indexedMeasure.getTagDictionary().size()];
+            for(int i = 0; i < tagIds.length; i++)
+                position[tagIds[i]] = i;
+            JaccardJoin.run(tagIds, (ProjectionalJaccard) similarityMeasure, minSimilarity, threads, new PairProcedure() {
+                @Override
+                public void call(int tag1, int tag2, double cc) throws Exception {
+                    procedure.call(position[tag1], position[tag2], cc);
+                }
+            });
+            return;
+        }
+
+        // With a threshold, the pairs that can not reach it are skipped before their similarity is calculated.
+        final BoundedSimilarityMeasure boundedMeasure = similarityMeasure instanceof BoundedSimilarityMeasure &&
+                minSimilarity > Double.NEGATIVE_INFINITY ? (BoundedSimilarityMeasure) similarityMeasure : null;
+
+        // The pairs are handed out in tiles of the upper triangle, so the long first rows are shared between threads.
+        TriangularScheduler.run(tagNames.length, threads, new TileProcedure() {
+            @Override
+            public void call(int row, int from, int to) throws Exception {
+                String comparingTag = tagNames[row];
+                for(int i = from; i < to; i++){
+                    if(null != boundedMeasure && boundedMeasure.getUpperBound(tagIds[row], tagIds[i]) < minSimilarity)
+                        continue;
+                    double cc = null == indexedMeasure ?
+                            similarityMeasure.calculateSimilarity(comparingTag, tagNames[i]) :
+                            indexedMeasure.calculateSimilarity(tagIds[row], tagIds[i]);
+                    if(!(cc < minSimilarity))
+                        procedure.call(row, i, cc);
+                }
+            }
+        });
+    }
+
+    /**
+     * Exports a binary similarity file as the CSV file Main would have written: every pair of a symmetric file once, sorted by
+     * similarity, or the blocks of the other files as they are, the most similar tags of every tag first.
+     */
+    public static void exportCSV(File input, File output){
+        SimilarityFile.Reader reader = null;
+        try {
+            reader = new SimilarityFile.Reader(input.getAbsolutePath());
+            IdDictionary dictionary = reader.getTagDictionary();
+            boolean symmetric = reader.isSymmetric();
+
+            String[] tagNames = dictionary.getNames().toArray(new String[dictionary.size()]);
+            SimilarityOutput writer = symmetric ? new SortedRunWriter(output, tagNames, ExternalSort.estimateAvailableMemory(), 1) : new PairWriter(output, tagNames);
+            try {
+                for(int tag = 0; tag < dictionary.size(); tag++){
+                    SimilarityFile.Scores scores = reader.getScores(tag);
+                    for(int i = 0; i < scores.tags.length; i++){
+                        if(!symmetric || tag < scores.tags[i])
+                            writer.write(tag, scores.tags[i], scores.similarities[i]);
+                    }
+                }
+            } finally {
+                writer.close();
+            }
+        } catch (IOException e) {
+            System.out.println("IOException: "+e.getMessage());
+            e.printStackTrace();
+        } finally {
+            try {
+                if(null != reader)
+                    reader.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     public static void fileSplit(File input, int divisions) {
         File file = input;
         LineNumberReader lnr = null;
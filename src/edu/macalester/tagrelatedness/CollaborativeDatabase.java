@@ -1,29 +1,56 @@
 package edu.macalester.tagrelatedness;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Set;
 /**
  * CollaborativeDatabase class is a database where each user has its own resource/tag matrix independent from the other users.
  * The CollaborativeMatching and CollaborativeMutualInformation tag relatedness measures use this database.
+ * <p>
+ * The (user, resource, tag) assignments are kept in columns of primitive ints once the database is frozen:
+ * <ul>
+ * <li> Sorted by (user, resource, tag): the resource and the tag of every assignment, with the range of every user given by an offsets array.
+ *      The tags a user put on a resource are a contiguous, sorted run inside the range of the user.</li>
+ * <li> Sorted by (tag, user, resource): the user and the resource of every assignment, with the range of every tag given by an offsets array.
+ *      The resources a user put a tag on are a contiguous, sorted run inside the range of the tag.</li>
+ * </ul>
+ * That is 16 bytes per assignment plus the offsets, instead of four levels of boxed collections per user.
  * @author alan
  */
 public class CollaborativeDatabase implements Database{
-	private HashMap<String, ArrayList<HashMap<String, HashSet<String>>> > userMap;
-	private HashSet<String> allTags;
-	// Each key in the map above is a user tag, and each user is asociated with two hashmaps:
-	// at index 0 one that maps every resource to a set of tags that the resource is associated with
-	// at index 1 that maps every tag to a set of resources that the tag is associated with
+	private IdDictionary userDictionary;
+	private IdDictionary resourceDictionary;
+	private IdDictionary tagDictionary;
+	// Assignments added since the last freeze(), as three parallel lists of ids.
+	private IntArrayList pendingUsers;
+	private IntArrayList pendingResources;
+	private IntArrayList pendingTags;
+	// Set last by freeze() and initializeSnapshot(), so a getter that reads it as true sees all the columns without taking the lock.
+	private volatile boolean frozen;
+	// Sorted by (user, resource, tag)
+	private int[] userOffsets;
+	private int[] userResources;
+	private int[] userTags;
+	// Sorted by (tag, user, resource)
+	private int[] tagOffsets;
+	private int[] tagUsers;
+	private int[] tagResources;
+	private int[] userTagCounts; // number of distinct tags of every user
+	private int[] userResourceCounts; // number of distinct resources of every user
+	private HashMap<String, ArrayList<HashMap<String, HashSet<String>>>> userMap; // built by getUserMap() the first time it is called
 		
 	public CollaborativeDatabase(){
-		userMap = new HashMap<String, ArrayList<HashMap<String,HashSet<String>>>>();
-		allTags = new HashSet<String>();
+		userDictionary = new IdDictionary();
+		resourceDictionary = new IdDictionary();
+		tagDictionary = new IdDictionary();
+		pendingUsers = new IntArrayList();
+		pendingResources = new IntArrayList();
+		pendingTags = new IntArrayList();
+		frozen = false;
 	}
 	/**
 	 * Adds a tag to the database.
@@ -32,63 +59,200 @@ public class CollaborativeDatabase implements Database{
 	 * @param tagName The tag
 	 */
 	public void addTag(String user, String resourceName, String tagName) {
+		addTag(userDictionary.intern(user), resourceDictionary.intern(resourceName), tagDictionary.intern(tagName));
+	}
+	/**
+	 * Adds a tag to the database using ids already interned in the user, resource and tag dictionaries.
+	 * Tags can not be added anymore once the database has been frozen.
+	 * @param user The id of the user that added the tag
+	 * @param resource The id of the resource tagged
+	 * @param tag The id of the tag
+	 */
+	public void addTag(int user, int resource, int tag) {
+		if(frozen)
+			throw new IllegalStateException("Can not add tags to a frozen CollaborativeDatabase.");
+		
+		pendingUsers.add(user);
+		pendingResources.add(resource);
+		pendingTags.add(tag);
+	}
+	/**
+	 * Sorts the assignments added so far into the columns described above, removing repeated assignments. It is called at the end
+	 * of initializeMovieLensTags and initializeBibsonomyTags, and by the getters if tags were added by hand. After this the database
+	 * can not be modified, and the getters only read the frozen flag instead of locking the database.
+	 */
+	public synchronized void freeze(){
+		if(frozen)
+			return;
+		
+		int userCount = userDictionary.size();
+		int tagCount = tagDictionary.size();
 		
-		ArrayList<HashMap<String, HashSet<String>>> mapList = userMap.get(user);
+		// Counting sort by user, with (resource, tag) packed in a long so every user can then be sorted on its own.
+		userOffsets = new int[userCount+1];
+		for(int i = 0; i < pendingUsers.size(); i++)
+			userOffsets[pendingUsers.get(i)+1]++;
+		for(int user = 0; user < userCount; user++)
+			userOffsets[user+1] += userOffsets[user];
 		
-		if(null == mapList){
-			mapList = new ArrayList<HashMap<String, HashSet<String>>>();
-			mapList.add(0, new HashMap<String, HashSet<String>>()); // resourcesMap
-			mapList.add(1, new HashMap<String, HashSet<String>>()); // tagsMap
+		long[] keys = new long[pendingUsers.size()];
+		int[] next = Arrays.copyOf(userOffsets, userCount);
+		for(int i = 0; i < pendingUsers.size(); i++)
+			keys[next[pendingUsers.get(i)]++] = ((long) pendingResources.get(i) << 32) | pendingTags.get(i);
+		pendingUsers = null;
+		pendingResources = null;
+		pendingTags = null;
+		
+		int size = 0;
+		userResourceCounts = new int[userCount];
+		for(int user = 0; user < userCount; user++){
+			int start = userOffsets[user];
+			int end = userOffsets[user+1];
+			Arrays.sort(keys, start, end);
+			userOffsets[user] = size;
+			for(int i = start; i < end; i++){
+				if(i > start && keys[i] == keys[i-1])
+					continue;
+				if(size == userOffsets[user] || (keys[i] >>> 32) != (keys[size-1] >>> 32))
+					userResourceCounts[user]++;
+				keys[size++] = keys[i];
+			}
 		}
+		userOffsets[userCount] = size;
 		
-		HashSet<String> tagsSet = mapList.get(0).get(resourceName);
+		userResources = new int[size];
+		userTags = new int[size];
+		for(int i = 0; i < size; i++){
+			userResources[i] = (int) (keys[i] >>> 32);
+			userTags[i] = (int) keys[i];
+		}
+		keys = null;
 		
-		if(null == tagsSet)
-			tagsSet = new HashSet<String>();
+		// A stable counting sort by tag keeps the (user, resource) order inside every tag.
+		tagOffsets = new int[tagCount+1];
+		for(int i = 0; i < size; i++)
+			tagOffsets[userTags[i]+1]++;
+		for(int tag = 0; tag < tagCount; tag++)
+			tagOffsets[tag+1] += tagOffsets[tag];
 		
-		tagsSet.add(tagName);
-		mapList.get(0).put(resourceName, tagsSet);
+		tagUsers = new int[size];
+		tagResources = new int[size];
+		next = Arrays.copyOf(tagOffsets, tagCount);
+		for(int user = 0; user < userCount; user++){
+			for(int i = userOffsets[user]; i < userOffsets[user+1]; i++){
+				int position = next[userTags[i]]++;
+				tagUsers[position] = user;
+				tagResources[position] = userResources[i];
+			}
+		}
 		
-		HashSet<String> resourcesSet = mapList.get(1).get(tagName);
+		userTagCounts = new int[userCount];
+		for(int tag = 0; tag < tagCount; tag++){
+			for(int i = tagOffsets[tag]; i < tagOffsets[tag+1]; i++){
+				if(i == tagOffsets[tag] || tagUsers[i] != tagUsers[i-1])
+					userTagCounts[tagUsers[i]]++;
+			}
+		}
 		
-		if(null == resourcesSet)
-			resourcesSet = new HashSet<String>();
+		frozen = true;
+	}
+	/**
+	 * Finds the users that have used both tags. For every one of them the runs of resources the user put each tag on are
+	 * written to the SharedUsers, so the measures only visit the users and resources that can add to the similarity.
+	 * @param tag1 The id of the first tag.
+	 * @param tag2 The id of the second tag.
+	 * @param shared Where the shared users are written, see newSharedUsers().
+	 */
+	public void findSharedUsers(int tag1, int tag2, SharedUsers shared){
+		if(!frozen)
+			freeze();
 		
-		resourcesSet.add(resourceName);
-		mapList.get(1).put(tagName, resourcesSet);
+		int i = tagOffsets[tag1], end1 = tagOffsets[tag1+1];
+		int j = tagOffsets[tag2], end2 = tagOffsets[tag2+1];
+		shared.count = 0;
 		
-		userMap.put(user, mapList);
-		allTags.add(tagName);
-				
+		while(i < end1 && j < end2){
+			if(tagUsers[i] < tagUsers[j]){
+				i = skipUser(i, end1);
+			}else if(tagUsers[i] > tagUsers[j]){
+				j = skipUser(j, end2);
+			}else{
+				int k = shared.count++;
+				shared.users[k] = tagUsers[i];
+				shared.starts1[k] = i;
+				shared.starts2[k] = j;
+				i = skipUser(i, end1);
+				j = skipUser(j, end2);
+				shared.ends1[k] = i;
+				shared.ends2[k] = j;
+			}
+		}
+	}
+	
+	private int skipUser(int position, int end){
+		int user = tagUsers[position];
+		while(position < end && tagUsers[position] == user)
+			position++;
+		return position;
+	}
+	/**
+	 * Returns a SharedUsers big enough for any pair of tags of this database. Measures keep one per thread.
+	 * @return An empty SharedUsers.
+	 */
+	public SharedUsers newSharedUsers(){
+		return new SharedUsers(getUserCount(), resourceDictionary.size());
+	}
+	/**
+	 * The users shared by a pair of tags, as found by findSharedUsers. For the k-th user, getTagResources()[starts1[k]] up to
+	 * getTagResources()[ends1[k]] (exclusive) are the sorted resources the user put the first tag on, and starts2[k] and ends2[k]
+	 * give the same for the second tag.
+	 */
+	public static class SharedUsers {
+		public int count;
+		public final int[] users;
+		public final int[] starts1;
+		public final int[] ends1;
+		public final int[] starts2;
+		public final int[] ends2;
+		public final int[] resources;
+		
+		SharedUsers(int userCount, int resourceCount){
+			users = new int[userCount];
+			starts1 = new int[userCount];
+			ends1 = new int[userCount];
+			starts2 = new int[userCount];
+			ends2 = new int[userCount];
+			resources = new int[resourceCount];
+		}
 	}
 	
 	/**
 	 * Adds all the tags in the specified movieLens tags.dat file.
 	 * @param dir The directory of the movieLens tags.dat file
 	 */
-	public void initializeMovieLensTags(String dir) {
-		FileInputStream fileStream;
-		BufferedInputStream bufferedStream;
-		BufferedReader readerStream;
-		
+	public void initializeMovieLensTags(String dir){
+		initializeTags(dir, TagFileFormat.MOVIELENS);
+	}
+	
+	/**
+	 * Adds all the tags in the specified Bibsonomy tas file.
+	 * @param dir The directory of the Bibsonomy tas file.
+	 */
+	public void initializeBibsonomyTags(String dir){
+		initializeTags(dir, TagFileFormat.BIBSONOMY);
+	}
+	/**
+	 * Adds all the tags of a tag file, reading it with a TagFileReader, and freezes the database.
+	 * @param dir The directory of the tag file.
+	 * @param format The layout of the tag file.
+	 */
+	private void initializeTags(String dir, TagFileFormat format){
 		try {
-			
-			fileStream = new FileInputStream(dir);
-			bufferedStream = new BufferedInputStream(fileStream);
-			readerStream = new BufferedReader(new InputStreamReader(bufferedStream));
-			
-			while(readerStream.ready()){
-				
-				String line = readerStream.readLine();	
-				
-				String tagInfo[] = line.split("::");
-				
-				String user = tagInfo[0];
-				String resource = tagInfo[1];
-				String tag = tagInfo[2];
-				
-				if(tagInfo.length == 4)
-					addTag(user, resource, tag);
+			TagInput input = TagInput.open(dir, format);
+			try {
+				initializeTags(input);
+			} finally {
+				input.close();
 			}
 			
 		} catch (FileNotFoundException e) {
@@ -98,65 +262,277 @@ public class CollaborativeDatabase implements Database{
 			System.out.println("Input output exception: "+e.toString());
 			e.printStackTrace();
 		}
+	}
+	/**
+	 * Adds all the tags of an open tag file, whose format is already known, and freezes the database.
+	 * @param input The open tag file.
+	 * @throws IOException If the file can not be read.
+	 */
+	public void initializeTags(TagInput input) throws IOException{
+		TagFileReader.read(input, userDictionary, resourceDictionary, tagDictionary, new TagFileReader.BulkHandler(){
+			public void addTag(int user, int resource, int tag){
+				CollaborativeDatabase.this.addTag(user, resource, tag);
+			}
+			public int reserve(int count){
+				if(frozen)
+					throw new IllegalStateException("Can not add tags to a frozen CollaborativeDatabase.");
+				pendingUsers.grow(count);
+				pendingResources.grow(count);
+				return pendingTags.grow(count);
+			}
+			public void setTags(int position, IntArrayList users, IntArrayList resources, IntArrayList tags){
+				pendingUsers.set(position, users);
+				pendingResources.set(position, resources);
+				pendingTags.set(position, tags);
+			}
+		});
 		
+		freeze();
 	}
-	
 	/**
-	 * Adds all the tags in the specified Bibsonomy tas file.
-	 * @param dir The directory of the Bibsonomy tas file.
+	 * Loads the database from a snapshot written by writeSnapshot, instead of parsing a tags file. The arrays and dictionaries are
+	 * copied into the heap, see Snapshot.
+	 * @param dir The path of the snapshot file.
+	 * @throws IOException If the snapshot can not be read or does not hold a valid database, in which case the database is left untouched.
 	 */
-	public void initializeBibsonomyTags(String dir){
-		FileInputStream fileStream;
-		BufferedInputStream bufferedStream;
-		BufferedReader readerStream;
+	public void initializeSnapshot(String dir) throws IOException{
+		Snapshot.Reader snapshot = new Snapshot.Reader(dir, Snapshot.COLLABORATIVE);
 		
 		try {
-			fileStream = new FileInputStream(dir);
-			bufferedStream = new BufferedInputStream(fileStream);
-			readerStream = new BufferedReader(new InputStreamReader(bufferedStream));
+			IdDictionary users = snapshot.readDictionary();
+			IdDictionary resources = snapshot.readDictionary();
+			IdDictionary tags = snapshot.readDictionary();
+			int[] offsetsByUser = snapshot.readInts();
+			int[] resourcesByUser = snapshot.readInts();
+			int[] tagsByUser = snapshot.readInts();
+			int[] offsetsByTag = snapshot.readInts();
+			int[] usersByTag = snapshot.readInts();
+			int[] resourcesByTag = snapshot.readInts();
+			int[] tagCounts = snapshot.readInts();
+			int[] resourceCounts = snapshot.readInts();
+			snapshot.finish();
 			
-			while(readerStream.ready()){
-				
-				String line = readerStream.readLine();	
-				
-				String tagInfo[] = line.split("\t");
-				
-				String user = tagInfo[0];
-				String tag = tagInfo[1];
-				String resource = tagInfo[2];
+			Snapshot.checkOffsets(offsetsByUser, users.size(), resourcesByUser.length);
+			Snapshot.checkIds(resourcesByUser, resourcesByUser.length, resources.size());
+			Snapshot.checkIds(tagsByUser, resourcesByUser.length, tags.size());
+			Snapshot.checkOffsets(offsetsByTag, tags.size(), resourcesByUser.length);
+			Snapshot.checkIds(usersByTag, resourcesByUser.length, users.size());
+			Snapshot.checkIds(resourcesByTag, resourcesByUser.length, resources.size());
+			if(tagCounts.length != users.size() || resourceCounts.length != users.size())
+				throw new IOException("The snapshot is corrupt.");
+			
+			synchronized(this){
+				if(frozen || pendingUsers.size() > 0)
+					throw new IllegalStateException("Can not load a snapshot into a CollaborativeDatabase that already has tags.");
 				
-				if(tagInfo.length == 5)
-					addTag(user, resource, tag);
+				userDictionary = users;
+				resourceDictionary = resources;
+				tagDictionary = tags;
+				pendingUsers = null;
+				pendingResources = null;
+				pendingTags = null;
+				userOffsets = offsetsByUser;
+				userResources = resourcesByUser;
+				userTags = tagsByUser;
+				tagOffsets = offsetsByTag;
+				tagUsers = usersByTag;
+				tagResources = resourcesByTag;
+				userTagCounts = tagCounts;
+				userResourceCounts = resourceCounts;
+				frozen = true;
 			}
-			
-		} catch (FileNotFoundException e) {
-			System.out.println("File not found exception: "+e.toString());
-			e.printStackTrace();
-		} catch (IOException e) {
-			System.out.println("Input output exception: "+e.toString());
-			e.printStackTrace();
+		} finally {
+			snapshot.close();
 		}
 	}
+	/**
+	 * Writes the database to a snapshot file, freezing it first if needed.
+	 * @param dir The path of the snapshot file.
+	 * @throws IOException If the snapshot can not be written.
+	 */
+	public void writeSnapshot(String dir) throws IOException{
+		freeze();
+		Snapshot.Writer snapshot = new Snapshot.Writer(dir, Snapshot.COLLABORATIVE);
+		
+		try {
+			snapshot.writeDictionary(userDictionary);
+			snapshot.writeDictionary(resourceDictionary);
+			snapshot.writeDictionary(tagDictionary);
+			snapshot.writeInts(userOffsets);
+			snapshot.writeInts(userResources);
+			snapshot.writeInts(userTags);
+			snapshot.writeInts(tagOffsets);
+			snapshot.writeInts(tagUsers);
+			snapshot.writeInts(tagResources);
+			snapshot.writeInts(userTagCounts);
+			snapshot.writeInts(userResourceCounts);
+			snapshot.finish();
+		} finally {
+			snapshot.close();
+		}
+	}
+	/**
+	 * Returns the resource of every assignment, in (tag, user, resource) order. The array is shared, it must not be modified.
+	 * @return The resources column of the tag ordering.
+	 */
+	public int[] getTagResources(){
+		if(!frozen)
+			freeze();
+		return tagResources;
+	}
+	/**
+	 * Returns the tag of every assignment, in (user, resource, tag) order. Use getResourceTagsStart and getResourceTagsEnd to find the
+	 * tags a user put on a resource. The array is shared, it must not be modified.
+	 * @return The tags column of the user ordering.
+	 */
+	public int[] getUserTags(){
+		if(!frozen)
+			freeze();
+		return userTags;
+	}
+	/**
+	 * Returns the position in getUserTags() where the tags a user put on a resource start.
+	 * @param user The id of the user.
+	 * @param resource The id of the resource.
+	 * @return The first position of the run (inclusive).
+	 */
+	public int getResourceTagsStart(int user, int resource){
+		if(!frozen)
+			freeze();
+		int low = userOffsets[user], high = userOffsets[user+1];
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(userResources[middle] < resource)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+	/**
+	 * Returns the position in getUserTags() where the tags a user put on a resource end.
+	 * @param user The id of the user.
+	 * @param resource The id of the resource.
+	 * @return The last position of the run (exclusive).
+	 */
+	public int getResourceTagsEnd(int user, int resource){
+		if(!frozen)
+			freeze();
+		int low = userOffsets[user], high = userOffsets[user+1];
+		while(low < high){
+			int middle = (low + high) >>> 1;
+			if(userResources[middle] <= resource)
+				low = middle + 1;
+			else
+				high = middle;
+		}
+		return low;
+	}
+	/**
+	 * Returns the number of tags a user put on a resource.
+	 * @param user The id of the user.
+	 * @param resource The id of the resource.
+	 * @return The number of tags of the resource for the user.
+	 */
+	public int getResourceTagCount(int user, int resource){
+		return getResourceTagsEnd(user, resource) - getResourceTagsStart(user, resource);
+	}
+	/**
+	 * Returns the number of distinct tags a user has used.
+	 * @param user The id of the user.
+	 * @return The number of tags of the user.
+	 */
+	public int getUserTagCount(int user){
+		if(!frozen)
+			freeze();
+		return userTagCounts[user];
+	}
+	/**
+	 * Returns the number of distinct resources a user has tagged.
+	 * @param user The id of the user.
+	 * @return The number of resources of the user.
+	 */
+	public int getUserResourceCount(int user){
+		if(!frozen)
+			freeze();
+		return userResourceCounts[user];
+	}
+	/**
+	 * Returns the number of distinct users in the database. Valid user ids go from 0 to getUserCount()-1.
+	 * @return The number of users.
+	 */
+	public int getUserCount(){
+		return userDictionary.size();
+	}
 	/**
 	 * Returns a Hashmap that contains the userIDs as keys and an arrayList that holds:
 	 * <ol>
 	 * <li> A Hashmap that maps every resource to a set of tags that the resource is associated with</li>
 	 * <li> A Hashmap that maps every tag to a set of resources that the tag is associated with</li>
 	 * </ol>
+	 * The map is only kept for compatibility: it is built from the columns the first time this method is called and holds a lot
+	 * more memory than the columns themselves. The similarity measures do not use it.
 	 * @return A hashmap (see above)
 	 */
-	public HashMap<String, ArrayList<HashMap<String, HashSet<String>>>> getUserMap(){
+	public synchronized HashMap<String, ArrayList<HashMap<String, HashSet<String>>>> getUserMap(){
+		if(null != userMap)
+			return userMap;
+		
+		freeze();
+		userMap = new HashMap<String, ArrayList<HashMap<String, HashSet<String>>>>();
+		
+		for(int user = 0; user < getUserCount(); user++){
+			HashMap<String, HashSet<String>> resourcesMap = new HashMap<String, HashSet<String>>();
+			HashMap<String, HashSet<String>> tagsMap = new HashMap<String, HashSet<String>>();
+			
+			for(int i = userOffsets[user]; i < userOffsets[user+1]; i++){
+				String resource = resourceDictionary.getName(userResources[i]);
+				String tag = tagDictionary.getName(userTags[i]);
+				
+				if(!resourcesMap.containsKey(resource))
+					resourcesMap.put(resource, new HashSet<String>());
+				resourcesMap.get(resource).add(tag);
+				
+				if(!tagsMap.containsKey(tag))
+					tagsMap.put(tag, new HashSet<String>());
+				tagsMap.get(tag).add(resource);
+			}
+			
+			ArrayList<HashMap<String, HashSet<String>>> mapList = new ArrayList<HashMap<String, HashSet<String>>>();
+			mapList.add(0, resourcesMap);
+			mapList.add(1, tagsMap);
+			userMap.put(userDictionary.getName(user), mapList);
+		}
+		
 		return userMap;
 	}
 	/**
-	 * Returns a Hashset that contains all the tags that have been added to the database
-	 * @return A Hashset containing all the tags added to the database
+	 * Returns a set that contains all the tags that have been added to the database
+	 * @return A set containing all the tags added to the database
 	 */
-	public HashSet<String> getTagsSet() {
-		return allTags;
+	public Set<String> getTagsSet() {
+		return tagDictionary.getNameSet();
+	}
+	/**
+	 * Returns the dictionary that maps every tag to its id.
+	 * @return The tag dictionary of the database.
+	 */
+	public IdDictionary getTagDictionary() {
+		return tagDictionary;
+	}
+	/**
+	 * Returns the dictionary that maps every user to its id.
+	 * @return The user dictionary of the database.
+	 */
+	public IdDictionary getUserDictionary() {
+		return userDictionary;
+	}
+	/**
+	 * Returns the dictionary that maps every resource to its id.
+	 * @return The resource dictionary of the database.
+	 */
+	public IdDictionary getResourceDictionary() {
+		return resourceDictionary;
 	}
-
-
-
 
 }
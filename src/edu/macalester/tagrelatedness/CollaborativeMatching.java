@@ -2,9 +2,6 @@ package edu.macalester.tagrelatedness;
 
 import java.math.RoundingMode;
 import java.text.DecimalFormat;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 
 import javax.swing.plaf.basic.BasicInternalFrameTitlePane.MoveAction;
 /**
@@ -13,9 +10,15 @@ import javax.swing.plaf.basic.BasicInternalFrameTitlePane.MoveAction;
  * @author Alan Morales
  * @see CollaborativeDatabase
  */
-public class CollaborativeMatching implements TagSimilarityMeasure{
+public class CollaborativeMatching implements IndexedTagSimilarityMeasure{
 	
 	CollaborativeDatabase db;
+	// scratch space for the users shared by the two tags being compared, one per thread
+	private ThreadLocal<CollaborativeDatabase.SharedUsers> sharedUsers = new ThreadLocal<CollaborativeDatabase.SharedUsers>(){
+		protected CollaborativeDatabase.SharedUsers initialValue(){
+			return db.newSharedUsers();
+		}
+	};
 	
 	public CollaborativeMatching(CollaborativeDatabase database){
 		db = database;
@@ -25,32 +28,38 @@ public class CollaborativeMatching implements TagSimilarityMeasure{
 	 * @param tag1 the first tag
 	 * @param tag2 the secnod tag
 	 */
-	@SuppressWarnings("unchecked")
 	public double calculateSimilarity(String tag1, String tag2) {
-		HashMap<String, ArrayList<HashMap<String, HashSet<String>>>> userMap = db.getUserMap();
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Calculate the CollaborativeMatching similarity between two tags in the CollaborativeDatabase.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
 		double similarity = 0.0;
-				
-		for(String user : userMap.keySet()){
 		
-			HashMap<String, HashSet<String>> tagsMap = userMap.get(user).get(1);
-			int totalTags = tagsMap.keySet().size();
-			
-			if(null == tagsMap.get(tag1) || null == tagsMap.get(tag2))
-				continue;
+		// Only the users that used both tags can add to the similarity
+		CollaborativeDatabase.SharedUsers shared = sharedUsers.get();
+		db.findSharedUsers(tag1, tag2, shared);
+		int[] tagResources = db.getTagResources();
+				
+		for(int k = 0; k < shared.count; k++){
+			int user = shared.users[k];
+			int totalTags = db.getUserTagCount(user);
 			
-			HashMap<String, HashSet<String>> resourcesMap = userMap.get(user).get(0);
+			// The resources of the user with both tags
+			int resourceCount = SetIntersection.intersect(tagResources, shared.starts1[k], shared.ends1[k],
+					tagResources, shared.starts2[k], shared.ends2[k], shared.resources);
 			
 			double userSimilarity = 0.0;
 			
-			for(String resource : resourcesMap.keySet()){
-				HashSet<String> tags = resourcesMap.get(resource);
-				
-				if(tags.contains(tag1) && tags.contains(tag2)){
-					userSimilarity += Math.log(
-							( (double) tags.size() ) /
-							( ( (double) totalTags ) + 1.0 )
-							);
-				}				
+			for(int i = 0; i < resourceCount; i++){
+				userSimilarity += Math.log(
+						( (double) db.getResourceTagCount(user, shared.resources[i]) ) /
+						( ( (double) totalTags ) + 1.0 )
+						);
 			}
 			
 			similarity += -userSimilarity;
@@ -60,5 +69,11 @@ public class CollaborativeMatching implements TagSimilarityMeasure{
 		return similarity; //rounding is necessary to match the results given at: www2009.org/proceedings/pdf/p641.pdf
 		
 	}
+	/**
+	 * Returns the dictionary with the ids of the tags in the CollaborativeDatabase.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
 	
 }
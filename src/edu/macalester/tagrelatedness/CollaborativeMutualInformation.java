@@ -1,21 +1,21 @@
 package edu.macalester.tagrelatedness;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 /**
  * The CollaborativeMutualInformation similarity measure is able to extract signals of similarity on the basis of the same user
  * tagging two different resources. For reference of the construction of this algorithm look at: www2009.org/proceedings/pdf/p641.pdf
  * @author Alan Morales
  * @see ColaborativeDatabase
  */
-public class CollaborativeMutualInformation implements TagSimilarityMeasure {
+public class CollaborativeMutualInformation implements IndexedTagSimilarityMeasure {
 
 	private CollaborativeDatabase db;
-	HashMap<String, ArrayList<HashMap<String, HashSet<String>>>>  userMap;
+	// scratch space for the users shared by the two tags being compared, one per thread
+	private ThreadLocal<CollaborativeDatabase.SharedUsers> sharedUsers = new ThreadLocal<CollaborativeDatabase.SharedUsers>(){
+		protected CollaborativeDatabase.SharedUsers initialValue(){
+			return db.newSharedUsers();
+		}
+	};
 	public CollaborativeMutualInformation(CollaborativeDatabase database){
 		db = database;
-		userMap = db.getUserMap();
 	}
 	/**
 	 * Calculates the similarity between two tags in the database.
@@ -23,32 +23,41 @@ public class CollaborativeMutualInformation implements TagSimilarityMeasure {
 	 * @param tag2 the second tag
 	 */
 	public double calculateSimilarity(String tag1, String tag2) {
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Calculates the similarity between two tags in the database.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
 		double similarity = 0.0;
-		for(String user : userMap.keySet()){
-			HashMap<String, HashSet<String>> tagsMap = userMap.get(user).get(1);
-			HashMap<String, HashSet<String>> resourcesMap = userMap.get(user).get(0);
-			
-			HashSet<String> resourceSet1 = tagsMap.get(tag1);	
-			HashSet<String> resourceSet2 = tagsMap.get(tag2);
+		
+		// Only the users that used both tags can add to the similarity
+		CollaborativeDatabase.SharedUsers shared = sharedUsers.get();
+		db.findSharedUsers(tag1, tag2, shared);
+		int[] tagResources = db.getTagResources();
+		int[] userTags = db.getUserTags();
+		
+		for(int k = 0; k < shared.count; k++){
+			int user = shared.users[k];
+			double totalTags = db.getUserTagCount(user);
 			
-			if(null == resourceSet1 || null == resourceSet2)
-				continue;
-			
-			double totalTags = tagsMap.keySet().size();
-			
-			for(String comparingResource : resourceSet1){
-				double marginalProbability1 = (resourcesMap.get(comparingResource).size())/(totalTags+1);
-				for(String comparedResource : resourceSet2){
-					double marginalProbability2 = resourcesMap.get(comparedResource).size()/(totalTags+1);
-					
-					HashSet<String> tagsSet1 = (HashSet<String>) resourcesMap.get(comparingResource).clone();
-					HashSet<String> tagsSet2 = (HashSet<String>) resourcesMap.get(comparedResource).clone();
+			for(int i = shared.starts1[k]; i < shared.ends1[k]; i++){
+				int from1 = db.getResourceTagsStart(user, tagResources[i]);
+				int to1 = db.getResourceTagsEnd(user, tagResources[i]);
+				double marginalProbability1 = (to1 - from1)/(totalTags+1);
+				for(int j = shared.starts2[k]; j < shared.ends2[k]; j++){
+					int from2 = db.getResourceTagsStart(user, tagResources[j]);
+					int to2 = db.getResourceTagsEnd(user, tagResources[j]);
+					double marginalProbability2 = (to2 - from2)/(totalTags+1);
 					
 					/* Add the joint probability for the intersections
 					 */
-					tagsSet1.retainAll(tagsSet2);
+					int sharedTags = SetIntersection.count(userTags, from1, to1, userTags, from2, to2);
 					
-					double jointProbability = (double) tagsSet1.size()/(totalTags+1);
+					double jointProbability = (double) sharedTags/(totalTags+1);
 					similarity += jointProbability != 0 ? jointProbability * Math.log(jointProbability / (marginalProbability1* marginalProbability2)) : 0;
 				}
 				
@@ -56,5 +65,11 @@ public class CollaborativeMutualInformation implements TagSimilarityMeasure {
 		}
 		return similarity;
 	}
+	/**
+	 * Returns the dictionary with the ids of the tags in the database.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
 
 }
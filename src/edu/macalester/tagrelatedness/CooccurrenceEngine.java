@@ -0,0 +1,119 @@
+package edu.macalester.tagrelatedness;
+
+import java.util.Arrays;
+/**
+ * The CooccurrenceEngine computes a CooccurrenceMeasure for all the pairs of tags that share at least one resource, without ever
+ * looking at the pairs that do not.
+ * The tag x tag co-occurrence counts are the sparse product A'A of the tag/resource IncidenceMatrix A. They are computed a row at a
+ * time: for a tag, every resource in its posting list is visited and every other tag of that resource gets its count incremented in
+ * a dense accumulator. Only the tags touched that way are emitted and reset, so the work is proportional to the number of
+ * co-occurrences instead of the square of the number of tags. Rows are spread over threads with ParallelForEach.
+ * <p>
+ * For a WeightedCooccurrenceMeasure the accumulator also adds up the precomputed weight of every shared resource, so the
+ * weight of a resource is looked up once per visit instead of being recomputed for every pair, and the finished row is
+ * drained straight into the output.
+ */
+public class CooccurrenceEngine {
+
+	/**
+	 * Calls the procedure with the similarity of every pair (tags[i], tags[j]), i &lt; j, whose tags share at least one resource.
+	 * The procedure may be called from several threads at the same time.
+	 * @param tags The ids of the tags to compare, a pair is only emitted in the order in which its tags appear in this array.
+	 * @param measure The measure to calculate for every co-occurring pair.
+	 * @param threads The number of threads to use.
+	 * @param procedure The procedure receiving every pair and its similarity.
+	 */
+	public static void run(final int[] tags, final CooccurrenceMeasure measure, int threads, final PairProcedure procedure){
+		final IncidenceMatrix matrix = measure.getIncidenceMatrix();
+		final WeightedCooccurrenceMeasure weightedMeasure = measure instanceof WeightedCooccurrenceMeasure ?
+				(WeightedCooccurrenceMeasure) measure : null;
+		final double[] weights = null == weightedMeasure ? null : weightedMeasure.getResourceWeights();
+		
+		// position[t] is the index of tag t in tags, or -1 if the tag is not being compared
+		final int[] position = new int[matrix.getTagCount()];
+		Arrays.fill(position, -1);
+		for(int i = 0; i < tags.length; i++)
+			position[tags[i]] = i;
+		
+		final ThreadLocal<Accumulator> accumulators = new ThreadLocal<Accumulator>(){
+			protected Accumulator initialValue(){
+				return new Accumulator(matrix.getTagCount(), null != weights);
+			}
+		};
+		
+		ParallelForEach.range(0, tags.length, threads, new Procedure<Integer>() {
+			public void call(Integer row) throws Exception {
+				int tag = tags[row];
+				Accumulator accumulator = accumulators.get();
+				int[] counts = accumulator.counts;
+				int[] touched = accumulator.touched;
+				double[] sums = accumulator.sums;
+				int touchedCount = 0;
+				
+				int[] tagResources = matrix.getTagResources();
+				int[] resourceTags = matrix.getResourceTags();
+				for(int i = matrix.getTagStart(tag); i < matrix.getTagEnd(tag); i++){
+					int resource = tagResources[i];
+					double weight = null == weights ? 0.0 : weights[resource];
+					for(int j = matrix.getResourceStart(resource); j < matrix.getResourceEnd(resource); j++){
+						int other = resourceTags[j];
+						if(position[other] <= row)
+							continue;
+						if(counts[other]++ == 0)
+							touched[touchedCount++] = other;
+						if(null != sums)
+							sums[other] += weight;
+					}
+				}
+				
+				// Emit the pairs in the order of the tags array, like the full all pairs loop does.
+				sortByPosition(accumulator, touchedCount, position);
+				try{
+					for(int k = 0; k < touchedCount; k++){
+						int other = touched[k];
+						double similarity = null == sums ?
+								measure.calculateSimilarity(tag, other, counts[other]) :
+								weightedMeasure.calculateSimilarity(tag, other, counts[other], sums[other]);
+						procedure.call(tag, other, similarity);
+					}
+				}finally{
+					for(int k = 0; k < touchedCount; k++){
+						counts[touched[k]] = 0;
+						if(null != sums)
+							sums[touched[k]] = 0.0;
+					}
+				}
+			}
+		});
+	}
+	
+	private static void sortByPosition(Accumulator accumulator, int touchedCount, int[] position){
+		int[] touched = accumulator.touched;
+		if(accumulator.keys.length < touchedCount)
+			accumulator.keys = new long[Math.max(touchedCount, 2 * accumulator.keys.length)];
+		long[] keys = accumulator.keys;
+		for(int k = 0; k < touchedCount; k++)
+			keys[k] = ((long) position[touched[k]] << 32) | touched[k];
+		Arrays.sort(keys, 0, touchedCount);
+		for(int k = 0; k < touchedCount; k++)
+			touched[k] = (int) keys[k];
+	}
+	/**
+	 * The per thread scratch space of the engine: a dense counter per tag, the sum of the shared weights per tag when the measure
+	 * is weighted, the list of tags whose counter is not zero, and the keys that sort it, which grow with the longest row seen.
+	 */
+	private static class Accumulator {
+		final int[] counts;
+		final double[] sums;
+		final int[] touched;
+		long[] keys;
+		
+		Accumulator(int tagCount, boolean weighted){
+			counts = new int[tagCount];
+			sums = weighted ? new double[tagCount] : null;
+			touched = new int[tagCount];
+			keys = new long[Math.min(tagCount, 1024)];
+		}
+	}
+
+}
@@ -0,0 +1,15 @@
+package edu.macalester.tagrelatedness;
+/**
+ * A measure over a ProjectionalDatabase that is zero for every pair of tags without resources in common, and that can be
+ * calculated from the number of resources two tags share. The CooccurrenceEngine uses it to only visit the pairs that co-occur.
+ */
+public interface CooccurrenceMeasure extends IndexedTagSimilarityMeasure {
+	/**
+	 * Calculates the similarity of two tags that share at least one resource.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @param sharedResources the number of resources associated with both tags
+	 */
+	double calculateSimilarity(int tag1, int tag2, int sharedResources);
+	IncidenceMatrix getIncidenceMatrix();
+}
@@ -1,9 +1,12 @@
 package edu.macalester.tagrelatedness;
 
+import java.io.IOException;
 import java.util.Set;
 /**
  * This interfaces guarantees that each database has a method to initialize a movie lens dataset, a bibsonomy dataset and that each database is able to return
  * all the tags through a single method getTagsSet();
+ * Every database interns its tags into an IdDictionary, which is returned by getTagDictionary().
+ * Once loaded, a database can be written to a binary snapshot with writeSnapshot() and loaded back with initializeSnapshot().
  * @author Alan Morales
  *
  */
@@ -11,6 +14,10 @@ public interface Database {
 	
 	public void initializeMovieLensTags(String dir);
 	public void initializeBibsonomyTags(String dir);
+	public void initializeTags(TagInput input) throws IOException;
 	public Set<String> getTagsSet();
+	public IdDictionary getTagDictionary();
+	public void initializeSnapshot(String dir) throws IOException;
+	public void writeSnapshot(String dir) throws IOException;
 
 }
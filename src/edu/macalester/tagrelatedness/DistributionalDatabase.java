@@ -1,13 +1,8 @@
 package edu.macalester.tagrelatedness;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.Set;
 /**
  * The DistributionalDatabase holds a matrix of tags and resources, capturing the frequency in which a tag has been associated to each resource.
@@ -15,13 +10,22 @@ import java.util.Set;
  */
 public class DistributionalDatabase implements Database{
 
-	private HashMap<String, ArrayList<String>> tagsMap;
-	private HashMap<String, ArrayList<String>> resourcesMap;
+	private IdDictionary tagDictionary;
+	private IdDictionary resourceDictionary;
+	// Tags added since the last freeze(), one (resource, tag) pair per time a tag was put on a resource.
+	private IntArrayList pendingTags;
+	private IntArrayList pendingResources;
+	private IncidenceMatrix matrix;
+	private int[] tagFrequencies; // how many times each tag was put on each resource, aligned with matrix.getResourceTags()
+	private int[] resourceTotals; // how many times each resource was tagged, indexed by resource id
 	private int totalEntries = 0;
 	
 	public DistributionalDatabase(){
-		tagsMap = new HashMap<String, ArrayList<String>>();
-		resourcesMap = new HashMap<String, ArrayList<String>>();
+		tagDictionary = new IdDictionary();
+		resourceDictionary = new IdDictionary();
+		pendingTags = new IntArrayList();
+		pendingResources = new IntArrayList();
+		matrix = null;
 	}
 	/**
 	 * Adds a tag to the database.
@@ -29,53 +33,75 @@ public class DistributionalDatabase implements Database{
 	 * @param tagName A string identifying the tag.
 	 */
 	public void addTag(String resourceName, String tagName){
-		ArrayList<String> tagsList = resourcesMap.get(resourceName);
-		
-		if(null == tagsList)
-			tagsList = new ArrayList<String>();
-		
-		tagsList.add(tagName);
-		
-		resourcesMap.put(resourceName, tagsList);
-		
-		ArrayList<String> resourcesList = tagsMap.get(tagName);
-		
-		if(null == resourcesList)
-			resourcesList = new ArrayList<String>();
+		addTag(resourceDictionary.intern(resourceName), tagDictionary.intern(tagName));
+	}
+	/**
+	 * Adds a tag to the database using ids already interned in the resource and tag dictionaries.
+	 * Tags can not be added anymore once the database has been frozen.
+	 * @param resource The id of the resource to be tagged.
+	 * @param tag The id of the tag.
+	 */
+	public void addTag(int resource, int tag){
+		if(null != matrix)
+			throw new IllegalStateException("Can not add tags to a frozen DistributionalDatabase.");
 		
-		resourcesList.add(resourceName);		
+		pendingResources.add(resource);
+		pendingTags.add(tag);
 		
-		tagsMap.put(tagName, resourcesList);
+		totalEntries++;
+		}
+	/**
+	 * Builds the read only structures of the database with all the tags added so far: an IncidenceMatrix with the distinct
+	 * tag/resource associations and, for every resource, a histogram with how many times each of its tags was used, stored as
+	 * frequencies aligned with the sorted tag ids of the resource in the matrix. It is called at the end of initializeMovieLensTags
+	 * and initializeBibsonomyTags, and by getIncidenceMatrix() if tags were added by hand.
+	 */
+	public synchronized void freeze(){
+		if(null != matrix)
+			return;
 		
+		IncidenceMatrix frozen = IncidenceMatrix.build(tagDictionary.size(), resourceDictionary.size(), pendingTags, pendingResources);
+		int[] resourceTags = frozen.getResourceTags();
+		tagFrequencies = new int[resourceTags.length];
+		resourceTotals = new int[frozen.getResourceCount()];
 		
-		totalEntries++;
+		for(int i = 0; i < pendingTags.size(); i++){
+			int resource = pendingResources.get(i);
+			int position = Arrays.binarySearch(resourceTags, frozen.getResourceStart(resource), frozen.getResourceEnd(resource), pendingTags.get(i));
+			tagFrequencies[position]++;
+			resourceTotals[resource]++;
 		}
+		
+		pendingTags = null;
+		pendingResources = null;
+		matrix = frozen;
+	}
 	/**
 	 * Adds all the tags from a specified movie lens tags.dat file.
 	 * @param tagsDataFileDir The directory of the tags.dat file to be added to the database.
 	 */
 	public void initializeMovieLensTags(String tagsDataFileDir){
-		
-		FileInputStream fileStream;
-		BufferedInputStream bufferedStream;
-		BufferedReader readerStream;
-		
+		initializeTags(tagsDataFileDir, TagFileFormat.MOVIELENS);
+	}
+	/**
+	 * Adds all the tags from a specified Bibsonomy tas file.
+	 * @param dir The directory of the Bibsonomy tas file to be added.
+	 */
+	public void initializeBibsonomyTags(String dir){
+		initializeTags(dir, TagFileFormat.BIBSONOMY);
+	}
+	/**
+	 * Adds all the tags of a tag file, reading it with a TagFileReader, and freezes the database.
+	 * @param dir The directory of the tag file.
+	 * @param format The layout of the tag file.
+	 */
+	private void initializeTags(String dir, TagFileFormat format){
 		try {
-			
-			fileStream = new FileInputStream(tagsDataFileDir);
-			bufferedStream = new BufferedInputStream(fileStream);
-			readerStream = new BufferedReader(new InputStreamReader(bufferedStream));
-			
-			while(readerStream.ready()){
-				
-				String line = readerStream.readLine();
-				String tagInfo[] = line.split("::");
-				
-				String resource = tagInfo[1];
-				String tag = tagInfo[2];
-				
-				if(tagInfo.length == 4)
-					addTag(resource, tag);
+			TagInput input = TagInput.open(dir, format);
+			try {
+				initializeTags(input);
+			} finally {
+				input.close();
 			}
 			
 		} catch (FileNotFoundException e) {
@@ -87,38 +113,86 @@ public class DistributionalDatabase implements Database{
 		}
 	}
 	/**
-	 * Adds all the tags from a specified Bibsonomy tas file.
-	 * @param dir The directory of the Bibsonomy tas file to be added.
+	 * Adds all the tags of an open tag file, whose format is already known, and freezes the database.
+	 * @param input The open tag file.
+	 * @throws IOException If the file can not be read.
 	 */
-	public void initializeBibsonomyTags(String dir){
-		FileInputStream fileStream;
-		BufferedInputStream bufferedStream;
-		BufferedReader readerStream;
+	public void initializeTags(TagInput input) throws IOException{
+		TagFileReader.read(input, null, resourceDictionary, tagDictionary, new TagFileReader.BulkHandler(){
+			public void addTag(int user, int resource, int tag){
+				DistributionalDatabase.this.addTag(resource, tag);
+			}
+			public int reserve(int count){
+				if(null != matrix)
+					throw new IllegalStateException("Can not add tags to a frozen DistributionalDatabase.");
+				totalEntries += count;
+				pendingTags.grow(count);
+				return pendingResources.grow(count);
+			}
+			public void setTags(int position, IntArrayList users, IntArrayList resources, IntArrayList tags){
+				pendingResources.set(position, resources);
+				pendingTags.set(position, tags);
+			}
+		});
+		
+		freeze();
+	}
+	/**
+	 * Loads the database from a snapshot written by writeSnapshot, instead of parsing a tags file. The arrays and dictionaries are
+	 * copied into the heap, see Snapshot.
+	 * @param dir The path of the snapshot file.
+	 * @throws IOException If the snapshot can not be read or does not hold a valid database, in which case the database is left untouched.
+	 */
+	public void initializeSnapshot(String dir) throws IOException{
+		Snapshot.Reader snapshot = new Snapshot.Reader(dir, Snapshot.DISTRIBUTIONAL);
 		
 		try {
-			fileStream = new FileInputStream(dir);
-			bufferedStream = new BufferedInputStream(fileStream);
-			readerStream = new BufferedReader(new InputStreamReader(bufferedStream));
+			IdDictionary tags = snapshot.readDictionary();
+			IdDictionary resources = snapshot.readDictionary();
+			IncidenceMatrix frozen = IncidenceMatrix.read(snapshot, tags.size(), resources.size());
+			int[] frequencies = snapshot.readInts();
+			int[] totals = snapshot.readInts();
+			int entries = snapshot.readInt();
+			snapshot.finish();
+			if(frequencies.length != frozen.getEntryCount() || totals.length != resources.size())
+				throw new IOException("The snapshot is corrupt.");
 			
-			while(readerStream.ready()){
-				
-				String line = readerStream.readLine();	
+			synchronized(this){
+				if(null != matrix || pendingTags.size() > 0)
+					throw new IllegalStateException("Can not load a snapshot into a DistributionalDatabase that already has tags.");
 				
-				String tagInfo[] = line.split("\t");
-				
-				String tag = tagInfo[1];
-				String resource = tagInfo[2];
-				
-				if(tagInfo.length == 5)
-					addTag(resource, tag);
+				tagDictionary = tags;
+				resourceDictionary = resources;
+				pendingTags = null;
+				pendingResources = null;
+				tagFrequencies = frequencies;
+				resourceTotals = totals;
+				totalEntries = entries;
+				matrix = frozen;
 			}
-			
-		} catch (FileNotFoundException e) {
-			System.out.println("File not found exception: "+e.toString());
-			e.printStackTrace();
-		} catch (IOException e) {
-			System.out.println("Input output exception: "+e.toString());
-			e.printStackTrace();
+		} finally {
+			snapshot.close();
+		}
+	}
+	/**
+	 * Writes the database to a snapshot file, freezing it first if needed.
+	 * @param dir The path of the snapshot file.
+	 * @throws IOException If the snapshot can not be written.
+	 */
+	public void writeSnapshot(String dir) throws IOException{
+		IncidenceMatrix frozen = getIncidenceMatrix();
+		Snapshot.Writer snapshot = new Snapshot.Writer(dir, Snapshot.DISTRIBUTIONAL);
+		
+		try {
+			snapshot.writeDictionary(tagDictionary);
+			snapshot.writeDictionary(resourceDictionary);
+			frozen.write(snapshot);
+			snapshot.writeInts(tagFrequencies);
+			snapshot.writeInts(resourceTotals);
+			snapshot.writeInt(totalEntries);
+			snapshot.finish();
+		} finally {
+			snapshot.close();
 		}
 	}
 	/**
@@ -126,28 +200,56 @@ public class DistributionalDatabase implements Database{
 	 * @return A Set of all the tags in the database.
 	 */
 	public Set<String> getTagsSet() {
-		return tagsMap.keySet();
+		return tagDictionary.getNameSet();
 	}
 	/**
 	 * Returns a set of all the resources that have been added to the database.
 	 * @return A set of all the resources in the database.
 	 */
 	public Set<String> getResourcesSet(){
-		return resourcesMap.keySet();
+		return resourceDictionary.getNameSet();
+	}
+	/**
+	 * Returns the dictionary that maps every tag to its id.
+	 * @return The tag dictionary of the database.
+	 */
+	public IdDictionary getTagDictionary(){
+		return tagDictionary;
+	}
+	/**
+	 * Returns the dictionary that maps every resource to its id.
+	 * @return The resource dictionary of the database.
+	 */
+	public IdDictionary getResourceDictionary(){
+		return resourceDictionary;
+	}
+	/**
+	 * Returns the frozen matrix with the distinct tag/resource associations of the database, freezing it first if needed.
+	 * @return The IncidenceMatrix of the database.
+	 */
+	public IncidenceMatrix getIncidenceMatrix(){
+		if(null == matrix)
+			freeze();
+		return matrix;
 	}
 	/**
-	 * Returns a HashMap with tags as keys and an ArrayList of the resources associated with such tag as values.
-	 * @return A HashMap with tags and keys and an ArrayList of the resources of such tag as values.
+	 * Returns how many times every tag was put on every resource. Position i holds the frequency of tag getIncidenceMatrix().getResourceTags()[i]
+	 * on the resource whose range contains i, so the histogram of a resource is read together with its sorted tag ids.
+	 * The array is shared, it must not be modified.
+	 * @return The tag frequencies of every resource.
 	 */
-	public HashMap<String, ArrayList<String>> getTagsMap(){
-		return tagsMap;
+	public int[] getTagFrequencies(){
+		getIncidenceMatrix();
+		return tagFrequencies;
 	}
 	/**
-	 * Returns a HashMap with resources as keys and an ArrayList of the tags associated with such resource as values.
-	 * @return A HashMap with resources as keys and an ArrayList of the tags of such resource as values.
+	 * Returns how many times a resource was tagged, counting repeated tags.
+	 * @param resource The id of the resource.
+	 * @return The number of entries of such resource.
 	 */
-	public HashMap<String, ArrayList<String>> getResourcesMap(){
-		return resourcesMap;
+	public int getResourceTotal(int resource){
+		getIncidenceMatrix();
+		return resourceTotals[resource];
 	}
 	/**
 	 * Returns the total number of entries in the database.
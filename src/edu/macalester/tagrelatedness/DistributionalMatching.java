@@ -1,48 +1,88 @@
 package edu.macalester.tagrelatedness;
 
-import java.util.HashMap;
-import java.util.HashSet;
 /**
  * The DistributionalMatching similarity measure is able to extract signals of similarity based on the frequency in which users have associated
  * a given tag with a resource. For reference of the construction of this algorithm look at: www2009.org/proceedings/pdf/p641.pdf
  * @author Alan Morales
  * @see DistributionalDatabase
  */
-public class DistributionalMatching implements TagSimilarityMeasure{
+public class DistributionalMatching implements WeightedCooccurrenceMeasure{
 	
 	ProjectionalDatabase db;
+	private double[] resourceWeights; // log(tags of the resource / total resources), indexed by resource id
 
 	public DistributionalMatching(ProjectionalDatabase database){
 		db = database;
+		
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
+		final double totalResources = db.getResourceCount();
+		resourceWeights = new double[matrix.getResourceCount()];
+		for(int resource = 0; resource < resourceWeights.length; resource++){
+			double associated = matrix.getResourceDegree(resource);
+			resourceWeights[resource] = Math.log(associated / totalResources );
+		}
 	}
 	/**
 	 * Calculates the similarity between two tags in the database.
 	 * @param tag1 the first tag
 	 * @param tag2 the second tag
 	 */
-	@SuppressWarnings("unchecked")
 	public double calculateSimilarity(String tag1, String tag2) {
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Calculates the similarity between two tags in the database.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
 		
-		HashMap<String, HashSet<String>> tagsMap = db.getTagsMap();
-		
-		HashSet<String> resources1 = (HashSet<String>) tagsMap.get(tag1).clone();
-		HashSet<String> resources2 = (HashSet<String>) tagsMap.get(tag2).clone();
-		
-		resources1.retainAll(resources2);
-		
-		double similarity = 0.0;
-		final double totalResources = db.getResourcesSet().size();
-		
-		HashMap<String, HashSet<String>> resourcesMap = db.getResourcesMap();
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
+		int[] resources = matrix.getTagResources();
 		
-		for(String resource : resources1 ){
-			double associated = resourcesMap.get(resource).size();
-			similarity += Math.log(associated / totalResources );
-		}
+		double similarity = SetIntersection.sumWeights(resources, matrix.getTagStart(tag1), matrix.getTagEnd(tag1),
+				resources, matrix.getTagStart(tag2), matrix.getTagEnd(tag2), resourceWeights);
 		
 		return similarity*-1;
 	}
-	
-	
+	/**
+	 * Calculates the similarity between two tags that share resources.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @param sharedResources the number of resources of both tags
+	 */
+	public double calculateSimilarity(int tag1, int tag2, int sharedResources) {
+		return calculateSimilarity(tag1, tag2);
+	}
+	/**
+	 * Calculates the similarity between two tags from the sum of the weights of their shared resources, as accumulated
+	 * by the CooccurrenceEngine.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @param sharedResources the number of resources of both tags
+	 * @param sharedWeight the sum of getResourceWeights() over those resources
+	 */
+	public double calculateSimilarity(int tag1, int tag2, int sharedResources, double sharedWeight) {
+		return sharedWeight*-1;
+	}
+	/**
+	 * Returns log(tags of the resource / total resources) for every resource id.
+	 */
+	public double[] getResourceWeights() {
+		return resourceWeights;
+	}
+	/**
+	 * Returns the dictionary with the ids of the tags in the database.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
+	/**
+	 * Returns the frozen incidence matrix of the database.
+	 */
+	public IncidenceMatrix getIncidenceMatrix() {
+		return db.getIncidenceMatrix();
+	}
 
 }
@@ -1,15 +1,15 @@
 package edu.macalester.tagrelatedness;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 /**
  * The DistributionalMutualInformation similarity measure is able to extract signals of similarity based on the frequency in which users have associated
  * a given tag with a resource. For reference of the construction of this algorithm look at: www2009.org/proceedings/pdf/p641.pdf
+ * <p>
+ * The resources of both tags are visited in id order and the shared frequencies of a pair of resources are added as integers before
+ * being divided by the number of entries. The previous implementation added every term in the iteration order of its hash sets, so
+ * the results match it to within rounding (a few units in the last place, about 1e-15 on MovieLens) rather than bit for bit.
  * @author Alan Morales
  * @see DistributionalDatabase
  */
-public class DistributionalMutualInformation implements TagSimilarityMeasure{
+public class DistributionalMutualInformation implements IndexedTagSimilarityMeasure{
 
 	private DistributionalDatabase db;
 	public DistributionalMutualInformation(DistributionalDatabase database){
@@ -21,54 +21,49 @@ public class DistributionalMutualInformation implements TagSimilarityMeasure{
 	 * @param tag2 the second tag
 	 */
 	public double calculateSimilarity(String tag1, String tag2) {
-		HashMap<String, ArrayList<String>> tagsMap = db.getTagsMap();
-		HashMap<String, ArrayList<String>> resourcesMap = db.getResourcesMap();
-		
-		ArrayList<String> resourceList1 = tagsMap.get(tag1);	
-		ArrayList<String> resourceList2 = tagsMap.get(tag2);
-		
-		HashSet<String> resourceSet1 = new HashSet<String>(resourceList1);
-		HashSet<String> resourceSet2 = new HashSet<String>(resourceList2);	
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Calculates the similarity between two tags in the database.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
+		int[] resources = matrix.getTagResources();
+		int[] histogramTags = matrix.getResourceTags();
+		int[] histogramFrequencies = db.getTagFrequencies();
 
 		double similarity = 0.0;
 		final double totalEntries = (double) db.getTotalEntries();		
-		for(String comparingResource : resourceSet1){
+		for(int i = matrix.getTagStart(tag1); i < matrix.getTagEnd(tag1); i++){
 			
-			ArrayList<String> tagsList1 = resourcesMap.get(comparingResource);
-			double marginalProbability1 = ( (double) tagsList1.size() )/totalEntries;
+			int comparingResource = resources[i];
+			double marginalProbability1 = ( (double) db.getResourceTotal(comparingResource) )/totalEntries;
 			
-			for(String comparedResource : resourceSet2){
+			for(int j = matrix.getTagStart(tag2); j < matrix.getTagEnd(tag2); j++){
 				
-				ArrayList<String> tagsList2 = resourcesMap.get(comparedResource);
-				double marginalProbability2 = ( (double) tagsList2.size() )/totalEntries;
+				int comparedResource = resources[j];
+				double marginalProbability2 = ( (double) db.getResourceTotal(comparedResource) )/totalEntries;
 				
-				HashSet<String> tagsSet1 = new HashSet<String>(tagsList1);				
-				HashSet<String> tagsSet2 = new HashSet<String>(tagsList2);
-								
-				tagsSet1.retainAll(tagsSet2); // tagSet1 now holds the intersection between both sets
+				// Each tag both resources share adds the smaller of its two frequencies to the joint probability
+				long sharedFrequency = SetIntersection.sumMinimums(
+						histogramTags, matrix.getResourceStart(comparingResource), matrix.getResourceEnd(comparingResource), histogramFrequencies,
+						histogramTags, matrix.getResourceStart(comparedResource), matrix.getResourceEnd(comparedResource), histogramFrequencies);
 				
-				double jointProbability = 0.0;
+				double jointProbability = sharedFrequency / totalEntries;
 				
-				for(String comparingTag : tagsSet1){
-					double freq1 = 0.0;
-					double freq2 = 0.0;
-						for(String comparedTag : tagsList1){
-							if(comparingTag.equals(comparedTag))
-								freq1++;
-						}
-						
-						for(String comparedTag : tagsList2){
-							if(comparingTag.equals(comparedTag))
-								freq2++;
-						}					
-						
-						jointProbability += freq1 - freq2 < 0 ? (freq1/ totalEntries ) : (freq2/ totalEntries );
-					}
 				similarity += jointProbability != 0 ? jointProbability * Math.log(jointProbability / (marginalProbability1* marginalProbability2) ) : 0;
 			}
 		}	
 		return similarity;
 	}
-	
+	/**
+	 * Returns the dictionary with the ids of the tags in the database.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
 
 }
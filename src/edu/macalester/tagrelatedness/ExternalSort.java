@@ -1,23 +1,31 @@
 package edu.macalester.tagrelatedness;
 
 //filename: ExternalSort.java
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
-import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.Deflater;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -57,7 +65,7 @@ public class ExternalSort {
              System.out.println("-v or --verbose: verbose output");
              System.out.println("-d or --distinct: prune duplicate lines");
              System.out
-                     .println("-t or --maxtmpfiles (followed by an integer): specify an upper bound on the number of temporary files");
+                     .println("-t or --maxtmpfiles (followed by an integer): specify an upper bound on the number of temporary files, unless the memory budget needs more");
              System.out
                      .println("-c or --charset (followed by a charset code): specify the character set to use (for sorting)");
              System.out
@@ -70,15 +78,16 @@ public class ExternalSort {
      }
 
      /**
-      * This method calls the garbage collector and then returns the free
-      * memory. This avoids problems with applications where the GC hasn't
-      * reclaimed memory and reports no available memory.
+      * Returns the default memory budget of a sort, a fixed share of the
+      * maximum heap. Unlike the free memory after a System.gc(), it does
+      * not depend on the moment it is asked, so the blocks and runs of a
+      * sort are predictable. Pass an explicit budget to fit a container
+      * memory limit.
       * 
       * @return available memory
       */
      public static long estimateAvailableMemory() {
-             System.gc();
-             return Runtime.getRuntime().freeMemory();
+             return Runtime.getRuntime().maxMemory() / DEFAULTMEMORYSHARE;
      }
 
      /**
@@ -86,30 +95,42 @@ public class ExternalSort {
       * shall create too many temporary files. If they are too big, we shall
       * be using too much memory.
       * 
+      * The lines of a block are counted with stringBytes, which never
+      * undercounts them, so a block can be given the whole budget besides
+      * the fixed memory of the sort instead of half of it. That gives at
+      * most maxtmpfiles temporary files whenever the budget can hold
+      * sizeoffile / maxtmpfiles bytes of lines; otherwise the budget wins,
+      * and there are more files rather than an OutOfMemoryError.
+      * 
       * @param sizeoffile
       *                how much data (in bytes) can we expect
       * @param maxtmpfiles
       *                how many temporary files can we create (e.g., 1024)
       * @param maxMemory
       *                Maximum memory to use (in bytes)
-      * @return the estimate
+      * @return the memory of the lines of a block, as counted by
+      *         stringBytes
       */
      public static long estimateBestSizeOfBlocks(final long sizeoffile,
              final int maxtmpfiles, final long maxMemory) {
              // we don't want to open up much more than maxtmpfiles temporary
-             // files, better run
-             // out of memory first.
-             long blocksize = sizeoffile / maxtmpfiles
-                     + (sizeoffile % maxtmpfiles == 0 ? 0 : 1);
-
-             // on the other hand, we don't want to create many temporary
-             // files
-             // for naught. If blocksize is smaller than half the free
-             // memory, grow it.
-             if (blocksize < maxMemory / 2) {
-                     blocksize = maxMemory / 2;
-             }
-             return blocksize;
+             // files, but neither to go over the budget: a block of a
+             // smaller file simply ends with the file.
+             return Math.max(MINBLOCKMEMORY, maxMemory - STRINGBLOCKMEMORY);
+     }
+
+     /**
+      * Returns the memory a line read as a String takes in a block of the
+      * comparator sort, at most: two bytes per character, which holds
+      * whether or not the JVM compacts Latin-1 strings, and STRINGBYTES for
+      * the objects and slots around them.
+      * 
+      * @param line
+      *                a line of the block
+      * @return the bytes counted for the line
+      */
+     static long stringBytes(String line) {
+             return STRINGBYTES + 2L * line.length();
      }
 
      /**
@@ -373,20 +394,8 @@ public class ExternalSort {
              boolean append, boolean usegzip) throws IOException {
              ArrayList<BinaryFileBuffer> bfbs = new ArrayList<BinaryFileBuffer>();
              for (File f : files) {
-                     final int BUFFERSIZE = 2048;
-                     InputStream in = new FileInputStream(f);
-                     BufferedReader br;
-                     if (usegzip) {
-                             br = new BufferedReader(
-                                     new InputStreamReader(
-                                             new GZIPInputStream(in,
-                                                     BUFFERSIZE), cs));
-                     } else {
-                             br = new BufferedReader(new InputStreamReader(
-                                     in, cs));
-                     }
-
-                     BinaryFileBuffer bfb = new BinaryFileBuffer(br);
+                     BinaryFileBuffer bfb = new BinaryFileBuffer(openTemporaryFile(
+                             f, cs, usegzip, 0));
                      bfbs.add(bfb);
              }
              BufferedWriter fbw = new BufferedWriter(new OutputStreamWriter(
@@ -397,6 +406,377 @@ public class ExternalSort {
              return rowcounter;
      }
 
+     /**
+      * Opens a temporary file, reading readahead bytes from the disk at a
+      * time if readahead is positive.
+      */
+     private static BufferedReader openTemporaryFile(File f, Charset cs,
+             boolean usegzip, int readahead) throws IOException {
+             final int BUFFERSIZE = 2048;
+             InputStream in = new FileInputStream(f);
+             if (readahead > 0)
+                     in = new BufferedInputStream(in, readahead);
+             if (usegzip)
+                     in = new GZIPInputStream(in, BUFFERSIZE);
+             return new BufferedReader(new InputStreamReader(in, cs));
+     }
+
+     /**
+      * Extracts a primitive sort key from a line, so that the keyed sort
+      * (sortInBatchByKey and mergeSortedFilesByKey) parses every line once
+      * instead of at every comparison. Lines are sorted by the signed order
+      * of their keys, and lines with equal keys either keep the order in
+      * which they were read, or are ordered by their bytes.
+      */
+     public interface KeyExtractor {
+             /**
+              * @param line
+              *                the bytes of a line to sort, in a charset that
+              *                encodes ASCII as ASCII
+              * @param from
+              *                the first byte of the line
+              * @param to
+              *                the byte after the line
+              * @return the key of the line
+              */
+             long getKey(byte[] line, int from, int to);
+
+             /**
+              * @return true if lines with equal keys are ordered by their
+              *         bytes, false if they keep the order in which they
+              *         were read
+              */
+             boolean breaksTies();
+     }
+
+     /**
+      * Orders lines by their bytes, unsigned, and shorter lines before the
+      * longer lines they start. For UTF-8 this is the order of the code
+      * points, which is the order of String.compareTo except for the
+      * characters beyond the Basic Multilingual Plane. The key is made of
+      * the first eight bytes.
+      */
+     public static final KeyExtractor BYTEORDER = new KeyExtractor() {
+             @Override
+             public long getKey(byte[] line, int from, int to) {
+                     long key = 0;
+                     for (int i = from; i < from + 8; i++)
+                             key = key << 8 | (i < to ? line[i] & 0xFF : 0);
+                     return key ^ Long.MIN_VALUE;
+             }
+
+             @Override
+             public boolean breaksTies() {
+                     return true;
+             }
+     };
+
+     /**
+      * Compares two lines by their bytes, unsigned, a line coming before
+      * the longer lines it starts.
+      */
+     static int compareLines(byte[] a, int from1, int length1, byte[] b,
+             int from2, int length2) {
+             int length = Math.min(length1, length2);
+             for (int j = 0; j < length; j++) {
+                     int c = (a[from1 + j] & 0xFF) - (b[from2 + j] & 0xFF);
+                     if (c != 0)
+                             return c;
+             }
+             return length1 - length2;
+     }
+
+     /**
+      * Tells whether the head of run a comes before the head of run b: its
+      * key is lower, or equal with lower bytes if the extractor breaks ties,
+      * or else equal with a lower run, which keeps the merge stable. Empty
+      * runs come after everything.
+      */
+     private static boolean beats(RunReader[] runs, int a, int b) {
+             if (runs[a].empty)
+                     return false;
+             if (runs[b].empty)
+                     return true;
+             int c = Long.compare(runs[a].key, runs[b].key);
+             if (c == 0 && runs[a].extractor.breaksTies()) {
+                     LineReader ra = runs[a].reader, rb = runs[b].reader;
+                     c = compareLines(ra.line, 0, ra.length, rb.line, 0,
+                             rb.length);
+             }
+             return c < 0 || (c == 0 && a < b);
+     }
+
+     /**
+      * This merges a bunch of temporary flat files sorted by
+      * sortInBatchByKey.
+      * 
+      * @param files
+      *                The {@link List} of sorted {@link File}s to be merged,
+      *                in the order of the runs.
+      * @param outputfile
+      *                The output {@link File} to merge the results to.
+      * @param extractor
+      *                The {@link KeyExtractor} the files were sorted with.
+      * @return The number of lines sorted.
+      * @throws IOException
+      */
+     public static int mergeSortedFilesByKey(List<File> files,
+             File outputfile, KeyExtractor extractor) throws IOException {
+             return mergeSortedFilesByKey(files, outputfile, extractor, false,
+                     false, false);
+     }
+
+     /**
+      * This merges a bunch of temporary flat files sorted by
+      * sortInBatchByKey.
+      * 
+      * @param files
+      *                The {@link List} of sorted {@link File}s to be merged,
+      *                in the order of the runs.
+      * @param outputfile
+      *                The output {@link File} to merge the results to.
+      * @param extractor
+      *                The {@link KeyExtractor} the files were sorted with.
+      * @param distinct
+      *                Pass <code>true</code> if duplicate lines should be
+      *                discarded.
+      * @param append
+      *                Pass <code>true</code> if result should append to
+      *                {@link File} instead of overwrite.
+      * @param usegzip
+      *                assumes we used gzip compression for temporary files
+      * @return The number of lines sorted.
+      * @throws IOException
+      */
+     public static int mergeSortedFilesByKey(List<File> files,
+             File outputfile, KeyExtractor extractor, boolean distinct,
+             boolean append, boolean usegzip) throws IOException {
+             return mergeSortedFilesByKey(files, outputfile, extractor,
+                     distinct, append, usegzip, estimateAvailableMemory());
+     }
+
+     /**
+      * This merges a bunch of temporary flat files sorted by
+      * sortInBatchByKey within a memory budget, merging at most
+      * DEFAULTMAXTEMPFILES of them at once.
+      * 
+      * @param files
+      *                The {@link List} of sorted {@link File}s to be merged,
+      *                in the order of the runs.
+      * @param outputfile
+      *                The output {@link File} to merge the results to.
+      * @param extractor
+      *                The {@link KeyExtractor} the files were sorted with.
+      * @param distinct
+      *                Pass <code>true</code> if duplicate lines should be
+      *                discarded.
+      * @param append
+      *                Pass <code>true</code> if result should append to
+      *                {@link File} instead of overwrite.
+      * @param usegzip
+      *                assumes we used gzip compression for temporary files
+      * @param maxMemory
+      *                maximum amount of memory to use (in bytes)
+      * @return The number of lines sorted.
+      * @throws IOException
+      */
+     public static int mergeSortedFilesByKey(List<File> files,
+             File outputfile, KeyExtractor extractor, boolean distinct,
+             boolean append, boolean usegzip, long maxMemory)
+             throws IOException {
+             return mergeSortedFilesByKey(files, outputfile, extractor,
+                     distinct, append, usegzip, maxMemory,
+                     DEFAULTMAXTEMPFILES, null);
+     }
+
+     /**
+      * This merges a bunch of temporary flat files sorted by
+      * sortInBatchByKey within a memory budget, which is shared by the
+      * read-ahead buffers of the runs. The lines are merged as bytes, so
+      * they are copied to the output as they were written to the runs.
+      * 
+      * When there are more runs than can be opened at once, within
+      * maxtmpfiles and the memory budget, consecutive runs are merged into
+      * temporary files first, in as many passes as needed. Merging
+      * consecutive runs keeps lines with equal keys in their order.
+      * 
+      * @param files
+      *                The {@link List} of sorted {@link File}s to be merged,
+      *                in the order of the runs.
+      * @param outputfile
+      *                The output {@link File} to merge the results to.
+      * @param extractor
+      *                The {@link KeyExtractor} the files were sorted with.
+      * @param distinct
+      *                Pass <code>true</code> if duplicate lines should be
+      *                discarded.
+      * @param append
+      *                Pass <code>true</code> if result should append to
+      *                {@link File} instead of overwrite.
+      * @param usegzip
+      *                assumes we used gzip compression for temporary files
+      * @param maxMemory
+      *                maximum amount of memory to use (in bytes)
+      * @param maxtmpfiles
+      *                maximal number of files merged at once
+      * @param tmpdirectory
+      *                location of the temporary files of the passes (set to
+      *                null for default location)
+      * @return The number of lines sorted.
+      * @throws IOException
+      */
+     public static int mergeSortedFilesByKey(List<File> files,
+             File outputfile, KeyExtractor extractor, boolean distinct,
+             boolean append, boolean usegzip, long maxMemory,
+             int maxtmpfiles, File tmpdirectory) throws IOException {
+             int fanin = (int) Math.max(2, Math.min(maxtmpfiles,
+                     (maxMemory - MERGEOUTPUTMEMORY)
+                             / (MINREADAHEAD + MERGERUNMEMORY)));
+             List<File> runs = new ArrayList<File>(files);
+             while (runs.size() > fanin) {
+                     List<File> merged = new ArrayList<File>();
+                     for (int i = 0; i < runs.size(); i += fanin) {
+                             List<File> group = runs.subList(i,
+                                     Math.min(runs.size(), i + fanin));
+                             if (group.size() == 1) {
+                                     merged.add(group.get(0));
+                                     continue;
+                             }
+                             File pass = File.createTempFile("sortInBatch",
+                                     "flatfile", tmpdirectory);
+                             pass.deleteOnExit();
+                             merged.add(pass);
+                             mergeRuns(group, openRunOutput(pass, false,
+                                     usegzip), extractor, distinct, usegzip,
+                                     maxMemory);
+                     }
+                     runs = merged;
+             }
+             return mergeRuns(runs, openRunOutput(outputfile, append, false),
+                     extractor, distinct, usegzip, maxMemory);
+     }
+
+     private static OutputStream openRunOutput(File f, boolean append,
+             boolean usegzip) throws IOException {
+             OutputStream out = new FileOutputStream(f, append);
+             if (usegzip)
+                     out = new GZIPOutputStream(out, LineBlock.ZIPBUFFERSIZE) {
+                             {
+                                     this.def.setLevel(Deflater.BEST_SPEED);
+                             }
+                     };
+             return new BufferedOutputStream(out, MERGEOUTPUTBYTES);
+     }
+
+     /**
+      * Merges the runs to the output in a single pass, closes the output
+      * and deletes the runs.
+      */
+     private static int mergeRuns(List<File> files, OutputStream out,
+             KeyExtractor extractor, boolean distinct, boolean usegzip,
+             long maxMemory) throws IOException {
+             // Large reads keep the disk streaming while the merge jumps
+             // from run to run.
+             long perrun = (maxMemory - MERGEOUTPUTMEMORY)
+                     / Math.max(1, files.size()) - MERGERUNMEMORY;
+             int readahead = (int) Math.max(MINREADAHEAD, Math.min(
+                     MAXREADAHEAD, perrun));
+             final int k = files.size();
+             RunReader[] runs = new RunReader[k];
+             int rowcounter = 0;
+             try {
+                     for (int i = 0; i < k; i++)
+                             runs[i] = new RunReader(files.get(i), extractor,
+                                     usegzip, readahead);
+                     byte[] newline = System.getProperty("line.separator")
+                             .getBytes("US-ASCII");
+                     byte[] lastLine = new byte[256];
+                     int lastLength = -1;
+                     if (k > 0) {
+                             // A loser tree: the leaf of run i is node k+i,
+                             // and the internal node n holds the loser of the
+                             // match between the winners of nodes 2n and
+                             // 2n+1. Once the overall winner gives its head,
+                             // only its path to the root is replayed, against
+                             // the losers kept there: log2(k) comparisons per
+                             // line.
+                             int[] losers = new int[k];
+                             int[] winners = new int[2 * k];
+                             for (int i = 0; i < k; i++)
+                                     winners[k + i] = i;
+                             for (int n = k - 1; n > 0; n--) {
+                                     int a = winners[2 * n], b = winners[2 * n + 1];
+                                     boolean swap = beats(runs, b, a);
+                                     winners[n] = swap ? b : a;
+                                     losers[n] = swap ? a : b;
+                             }
+                             int winner = winners[1];
+                             while (!runs[winner].empty) {
+                                     LineReader r = runs[winner].reader;
+                                     // Skip duplicate lines
+                                     if (!distinct || r.length != lastLength
+                                             || !LineBlock.equal(r.line, 0,
+                                                     lastLine, 0, r.length)) {
+                                             out.write(r.line, 0, r.length);
+                                             out.write(newline);
+                                             if (distinct) {
+                                                     if (lastLine.length < r.length)
+                                                             lastLine = new byte[r.line.length];
+                                                     System.arraycopy(r.line, 0,
+                                                             lastLine, 0, r.length);
+                                                     lastLength = r.length;
+                                             }
+                                     }
+                                     ++rowcounter;
+                                     runs[winner].next();
+                                     for (int n = (k + winner) >>> 1; n > 0; n >>>= 1) {
+                                             if (beats(runs, losers[n], winner)) {
+                                                     int swap = losers[n];
+                                                     losers[n] = winner;
+                                                     winner = swap;
+                                             }
+                                     }
+                             }
+                     }
+             } finally {
+                     out.close();
+                     for (RunReader run : runs)
+                             if (run != null)
+                                     run.reader.in.close();
+             }
+             for (File f : files)
+                     f.delete();
+             return rowcounter;
+     }
+
+     /**
+      * A sorted run read by the keyed merge, with the key of its head.
+      */
+     private static final class RunReader {
+             final LineReader reader;
+             final KeyExtractor extractor;
+             boolean empty;
+             long key;
+
+             RunReader(File f, KeyExtractor extractor, boolean usegzip,
+                     int readahead) throws IOException {
+                     InputStream in = new FileInputStream(f);
+                     if (usegzip)
+                             in = new GZIPInputStream(new BufferedInputStream(
+                                     in, readahead), LineBlock.ZIPBUFFERSIZE);
+                     this.reader = new LineReader(in, usegzip ? MERGEZIPCHUNK
+                             : readahead);
+                     this.extractor = extractor;
+                     next();
+             }
+
+             void next() throws IOException {
+                     empty = !reader.next();
+                     if (!empty)
+                             key = extractor.getKey(reader.line, 0, reader.length);
+             }
+     }
+
      /**
       * This sorts a file (input) to an output file (output) using default
       * parameters
@@ -462,6 +842,15 @@ public class ExternalSort {
              Comparator<String> cmp, Charset cs, File tmpdirectory,
              boolean distinct, boolean usegzip) throws IOException {
              Collections.sort(tmplist, cmp);
+             return save(tmplist, cs, tmpdirectory, distinct, usegzip);
+     }
+
+     /**
+      * Save a sorted list to a temporary file
+      */
+     private static File save(List<String> tmplist, Charset cs,
+             File tmpdirectory, boolean distinct, boolean usegzip)
+             throws IOException {
              File newtmpfile = File.createTempFile("sortInBatch",
                      "flatfile", tmpdirectory);
              newtmpfile.deleteOnExit();
@@ -574,33 +963,24 @@ public class ExternalSort {
 
              try {
                      List<String> tmplist = new ArrayList<String>();
-                     String line = "";
-                     try {
-                             int counter = 0;
-                             while (line != null) {
-                                     long currentblocksize = 0;// in bytes
-                                     while ((currentblocksize < blocksize)
-                                             && ((line = fbr.readLine()) != null)) {
-                                             // as long as you have enough
-                                             // memory
-                                             if (counter < numHeader) {
-                                                     counter++;
-                                                     continue;
-                                             }
-                                             tmplist.add(line);
-                                             currentblocksize += StringSizeEstimator
-                                                     .estimatedSizeOf(line);
-                                     }
-                                     files.add(sortAndSave(tmplist, cmp, cs,
-                                             tmpdirectory, distinct, usegzip));
-                                     tmplist.clear();
-                             }
-                     } catch (EOFException oef) {
-                             if (tmplist.size() > 0) {
-                                     files.add(sortAndSave(tmplist, cmp, cs,
-                                             tmpdirectory, distinct, usegzip));
-                                     tmplist.clear();
+                     String line = fbr.readLine();
+                     for (int counter = 0; counter < numHeader
+                             && line != null; counter++)
+                             line = fbr.readLine();
+                     while (line != null) {
+                             long currentblocksize = 0;// in bytes
+                             // as long as the line fits in the budget, or
+                             // the block is empty
+                             while (line != null
+                                     && (tmplist.isEmpty() || currentblocksize
+                                             + stringBytes(line) <= blocksize)) {
+                                     tmplist.add(line);
+                                     currentblocksize += stringBytes(line);
+                                     line = fbr.readLine();
                              }
+                             files.add(sortAndSave(tmplist, cmp, cs,
+                                     tmpdirectory, distinct, usegzip));
+                             tmplist.clear();
                      }
              } finally {
                      fbr.close();
@@ -733,6 +1113,564 @@ public class ExternalSort {
                      numHeader, usegzip);
      }
 
+     /**
+      * A block of lines read as bytes, sorted by key and saved to a
+      * temporary file by a worker. Every line is stored in pages of bytes
+      * after its key and its length, so the block never copies what it has
+      * read, and its memory is counted exactly: the pages it allocated, the
+      * arrays the sort will need for each line, and the fixed memory of the
+      * sort and of the output of the run. The charset must encode
+      * ASCII as ASCII, so that lines can be split on the byte of '\n'.
+      */
+     private static final class LineBlock {
+             /**
+              * Bytes in front of every line: its key and its length.
+              */
+             static final int HEADER = 8 + 4;
+
+             /**
+              * Bytes the sort allocates for every line: its key and its
+              * position, the order and scratch arrays of sortByKey, and the
+              * scratch of the order of lines with equal keys.
+              */
+             static final int SORTBYTES = 8 + 8 + 4 + 8 + 4 + 8 + 4;
+
+             /**
+              * Bytes the block needs whatever its lines: the table of
+              * sortByKey and the buffers of the output of the run.
+              */
+             static final int FIXEDBYTES = RADIXMEMORY
+                     + LineBlock.OUTPUTBUFFERSIZE + LineBlock.ZIPBUFFERSIZE;
+
+             static final int OUTPUTBUFFERSIZE = 1 << 16;
+
+             static final int ZIPBUFFERSIZE = 2048;
+
+             final long maxMemory;
+             final int pagesize;
+             final List<byte[]> pages = new ArrayList<byte[]>();
+             int[] used = new int[16];
+             long allocated;
+             int count;
+
+             LineBlock(long maxMemory) {
+                     this.maxMemory = maxMemory;
+                     this.pagesize = (int) Math.max(1 << 12, Math.min(
+                             MAXPAGESIZE, maxMemory / 16));
+             }
+
+             /**
+              * Adds a line, unless it would take the block over its budget.
+              * An empty block takes any line.
+              */
+             boolean add(byte[] line, int length, long key) {
+                     int record = HEADER + length;
+                     int last = pages.size() - 1;
+                     boolean newpage = last < 0
+                             || pages.get(last).length - used[last] < record;
+                     long needed = FIXEDBYTES + allocated
+                             + (newpage ? Math.max(pagesize, record) : 0)
+                             + (long) SORTBYTES * (count + 1);
+                     if (count > 0 && needed > maxMemory)
+                             return false;
+                     if (newpage) {
+                             byte[] page = new byte[Math.max(pagesize, record)];
+                             pages.add(page);
+                             allocated += page.length;
+                             last++;
+                             if (used.length == last)
+                                     used = Arrays.copyOf(used, 2 * last);
+                     }
+                     byte[] page = pages.get(last);
+                     int p = used[last];
+                     for (int shift = 56; shift >= 0; shift -= 8)
+                             page[p++] = (byte) (key >>> shift);
+                     for (int shift = 24; shift >= 0; shift -= 8)
+                             page[p++] = (byte) (length >>> shift);
+                     System.arraycopy(line, 0, page, p, length);
+                     used[last] = p + length;
+                     count++;
+                     return true;
+             }
+
+             /**
+              * Sorts the lines by key and writes them to a temporary file.
+              */
+             File sortAndSave(KeyExtractor extractor, byte[] newline,
+                     File tmpdirectory, boolean distinct, boolean usegzip)
+                     throws IOException {
+                     long[] keys = new long[count];
+                     long[] positions = new long[count]; // page << 32 | offset
+                     int i = 0;
+                     for (int page = 0; page < pages.size(); page++) {
+                             byte[] bytes = pages.get(page);
+                             for (int p = 0; p < used[page]; p += HEADER + length(bytes, p)) {
+                                     long key = 0;
+                                     for (int j = 0; j < 8; j++)
+                                             key = key << 8 | (bytes[p + j] & 0xFF);
+                                     keys[i] = key;
+                                     positions[i++] = (long) page << 32 | p;
+                             }
+                     }
+                     int[] order = sortByKey(keys, count);
+                     if (extractor.breaksTies()) {
+                             int[] scratch = null;
+                             for (int from = 0, to; from < count; from = to) {
+                                     to = from + 1;
+                                     while (to < count
+                                             && keys[order[to]] == keys[order[from]])
+                                             to++;
+                                     if (to - from < 2)
+                                             continue;
+                                     if (scratch == null)
+                                             scratch = new int[count];
+                                     sortLines(order, from, to, positions, scratch);
+                             }
+                     }
+
+                     File newtmpfile = File.createTempFile("sortInBatch",
+                             "flatfile", tmpdirectory);
+                     newtmpfile.deleteOnExit();
+                     OutputStream out = new FileOutputStream(newtmpfile);
+                     if (usegzip)
+                             out = new GZIPOutputStream(out, ZIPBUFFERSIZE) {
+                                     {
+                                             this.def.setLevel(Deflater.BEST_SPEED);
+                                     }
+                             };
+                     out = new BufferedOutputStream(out, OUTPUTBUFFERSIZE);
+                     try {
+                             byte[] last = null;
+                             int lastfrom = 0, lastlength = -1;
+                             for (int k : order) {
+                                     byte[] bytes = pages.get((int) (positions[k] >>> 32));
+                                     int p = (int) positions[k];
+                                     int length = length(bytes, p);
+                                     // Skip duplicate lines
+                                     if (distinct && length == lastlength
+                                             && equal(bytes, p + HEADER, last, lastfrom, length))
+                                             continue;
+                                     out.write(bytes, p + HEADER, length);
+                                     out.write(newline);
+                                     last = bytes;
+                                     lastfrom = p + HEADER;
+                                     lastlength = length;
+                             }
+                     } finally {
+                             out.close();
+                     }
+                     return newtmpfile;
+             }
+
+             /**
+              * Sorts order[from..to) by the bytes of the lines, with a merge
+              * sort that keeps equal lines in their order.
+              */
+             private void sortLines(int[] order, int from, int to,
+                     long[] positions, int[] scratch) {
+                     if (to - from < 8) {
+                             for (int i = from + 1; i < to; i++) {
+                                     int line = order[i], j = i;
+                                     for (; j > from && compare(positions[order[j - 1]],
+                                             positions[line]) > 0; j--)
+                                             order[j] = order[j - 1];
+                                     order[j] = line;
+                             }
+                             return;
+                     }
+                     int middle = (from + to) >>> 1;
+                     sortLines(order, from, middle, positions, scratch);
+                     sortLines(order, middle, to, positions, scratch);
+                     if (compare(positions[order[middle - 1]],
+                             positions[order[middle]]) <= 0)
+                             return;
+                     System.arraycopy(order, from, scratch, from, to - from);
+                     for (int i = from, a = from, b = middle; i < to; i++)
+                             order[i] = b == to || (a < middle && compare(
+                                     positions[scratch[a]], positions[scratch[b]]) <= 0)
+                                     ? scratch[a++] : scratch[b++];
+             }
+
+             private int compare(long position1, long position2) {
+                     byte[] a = pages.get((int) (position1 >>> 32));
+                     byte[] b = pages.get((int) (position2 >>> 32));
+                     int p1 = (int) position1, p2 = (int) position2;
+                     return compareLines(a, p1 + HEADER, length(a, p1), b,
+                             p2 + HEADER, length(b, p2));
+             }
+
+             private static int length(byte[] bytes, int p) {
+                     return (bytes[p + 8] & 0xFF) << 24 | (bytes[p + 9] & 0xFF) << 16
+                             | (bytes[p + 10] & 0xFF) << 8 | (bytes[p + 11] & 0xFF);
+             }
+
+             private static boolean equal(byte[] a, int from1, byte[] b,
+                     int from2, int length) {
+                     for (int j = 0; j < length; j++)
+                             if (a[from1 + j] != b[from2 + j])
+                                     return false;
+                     return true;
+             }
+     }
+
+     /**
+      * Reads the lines of a stream as bytes, without the '\n' or "\r\n"
+      * that ends them. The current line is the first length bytes of line.
+      */
+     private static final class LineReader {
+             final InputStream in;
+             final byte[] buffer;
+             int position, limit;
+             byte[] line = new byte[256];
+             int length;
+
+             LineReader(InputStream in, int buffersize) {
+                     this.in = in;
+                     this.buffer = new byte[buffersize];
+             }
+
+             /**
+              * Reads the next line, returning false at the end of the stream.
+              */
+             boolean next() throws IOException {
+                     length = 0;
+                     boolean any = false;
+                     while (true) {
+                             if (position == limit) {
+                                     limit = in.read(buffer);
+                                     position = 0;
+                                     if (limit <= 0) {
+                                             limit = 0;
+                                             return any;
+                                     }
+                             }
+                             any = true;
+                             int end = position;
+                             while (end < limit && buffer[end] != '\n')
+                                     end++;
+                             if (line.length < length + end - position)
+                                     line = Arrays.copyOf(line, Math.max(
+                                             2 * line.length, length + end - position));
+                             System.arraycopy(buffer, position, line, length,
+                                     end - position);
+                             length += end - position;
+                             position = end;
+                             if (end < limit) {
+                                     position++;
+                                     if (length > 0 && line[length - 1] == '\r')
+                                             length--;
+                                     return true;
+                             }
+                     }
+             }
+     }
+
+     /**
+      * Returns the positions of the first count keys in the signed order of
+      * the keys, equal keys keeping their order. This is a least significant
+      * digit radix sort on 8 bits at a time, which skips the digits shared
+      * by every key (such as the high bits of scores of the same sign).
+      * Besides the arrays of its count keys, it only allocates a table of
+      * RADIXMEMORY bytes.
+      */
+     static int[] sortByKey(long[] keys, int count) {
+             int[] order = new int[count];
+             long[] sorted = new long[count];
+             for (int i = 0; i < count; i++) {
+                     order[i] = i;
+                     sorted[i] = keys[i] ^ Long.MIN_VALUE; // unsigned order
+             }
+             if (count < 2)
+                     return order;
+             int[] scratchOrder = new int[count];
+             long[] scratchKeys = new long[count];
+             int[] offsets = new int[RADIX + 1];
+             for (int shift = 0; shift < 64; shift += 8) {
+                     Arrays.fill(offsets, 0);
+                     for (int i = 0; i < count; i++)
+                             offsets[((int) (sorted[i] >>> shift) & (RADIX - 1)) + 1]++;
+                     if (offsets[((int) (sorted[0] >>> shift) & (RADIX - 1)) + 1] == count)
+                             continue;
+                     for (int d = 0; d < RADIX; d++)
+                             offsets[d + 1] += offsets[d];
+                     for (int i = 0; i < count; i++) {
+                             int j = offsets[(int) (sorted[i] >>> shift) & (RADIX - 1)]++;
+                             scratchKeys[j] = sorted[i];
+                             scratchOrder[j] = order[i];
+                     }
+                     long[] keysSwap = sorted;
+                     sorted = scratchKeys;
+                     scratchKeys = keysSwap;
+                     int[] orderSwap = order;
+                     order = scratchOrder;
+                     scratchOrder = orderSwap;
+             }
+             return order;
+     }
+
+     /**
+      * Digits of a pass of sortByKey.
+      */
+     private static final int RADIX = 1 << 8;
+
+     /**
+      * Bytes sortByKey allocates whatever the number of keys: its table of
+      * digit counts, with the header of the array.
+      */
+     static final int RADIXMEMORY = 4 * (RADIX + 1) + 16;
+
+     /**
+      * This will load the file by blocks of lines, extract the key of every
+      * line once, sort the blocks by key in memory, and write the result to
+      * temporary files that have to be merged later by
+      * mergeSortedFilesByKey.
+      * 
+      * @param file
+      *                some flat file
+      * @param extractor
+      *                the key of every line
+      * @return a list of temporary flat files, in the order of the runs
+      * @throws IOException
+      */
+     public static List<File> sortInBatchByKey(File file,
+             KeyExtractor extractor) throws IOException {
+             return sortInBatchByKey(file, extractor, Runtime.getRuntime()
+                     .availableProcessors());
+     }
+
+     /**
+      * This will load the file by blocks of lines, extract the key of every
+      * line once, sort the blocks by key in memory, and write the result to
+      * temporary files that have to be merged later by
+      * mergeSortedFilesByKey.
+      * 
+      * @param file
+      *                some flat file
+      * @param extractor
+      *                the key of every line
+      * @param threads
+      *                number of blocks sorted and written at the same time
+      * @return a list of temporary flat files, in the order of the runs
+      * @throws IOException
+      */
+     public static List<File> sortInBatchByKey(File file,
+             KeyExtractor extractor, int threads) throws IOException {
+             return sortInBatchByKey(file, extractor,
+                     estimateAvailableMemory(), Charset.defaultCharset(),
+                     null, false, 0, false, threads);
+     }
+
+     /**
+      * This will load the file by blocks of lines, extract the key of every
+      * line once, sort the blocks by key in memory, and write the result to
+      * temporary files that have to be merged later by
+      * mergeSortedFilesByKey.
+      * 
+      * @param file
+      *                some flat file
+      * @param extractor
+      *                the key of every line
+      * @param maxMemory
+      *                maximum amount of memory to use (in bytes)
+      * @param cs
+      *                character set of the file, which must encode ASCII as
+      *                ASCII (such as UTF-8 or ISO-8859-1)
+      * @param tmpdirectory
+      *                location of the temporary files (set to null for
+      *                default location)
+      * @param distinct
+      *                Pass <code>true</code> if duplicate lines should be
+      *                discarded.
+      * @param numHeader
+      *                number of lines to preclude before sorting starts
+      * @param usegzip
+      *                use gzip compression for the temporary files
+      * @param threads
+      *                number of blocks sorted and written at the same time
+      * @return a list of temporary flat files, in the order of the runs
+      * @throws IOException
+      */
+     public static List<File> sortInBatchByKey(File file,
+             KeyExtractor extractor, long maxMemory, Charset cs,
+             File tmpdirectory, boolean distinct, int numHeader,
+             boolean usegzip, int threads) throws IOException {
+             return sortInBatchByKey(new FileInputStream(file), extractor,
+                     maxMemory, cs, tmpdirectory, distinct, numHeader,
+                     usegzip, threads);
+     }
+
+     /**
+      * The reading thread fills blocks of lines while up to threads earlier
+      * blocks are sorted and written by worker threads, so reading, sorting
+      * and writing overlap. The lines are kept as bytes and every block gets
+      * an even share of the memory budget, counted exactly, so the size and
+      * the number of the runs only depend on the budget and the data.
+      * 
+      * @param in
+      *                data source
+      * @param extractor
+      *                the key of every line
+      * @param maxMemory
+      *                maximum amount of memory to use (in bytes)
+      * @param cs
+      *                character set of the data, which must encode ASCII as
+      *                ASCII (such as UTF-8 or ISO-8859-1)
+      * @param tmpdirectory
+      *                location of the temporary files (set to null for
+      *                default location)
+      * @param distinct
+      *                Pass <code>true</code> if duplicate lines should be
+      *                discarded.
+      * @param numHeader
+      *                number of lines to preclude before sorting starts
+      * @param usegzip
+      *                use gzip compression for the temporary files
+      * @param threads
+      *                number of blocks sorted and written at the same time
+      * @return a list of temporary flat files, in the order of the runs
+      * @throws IOException
+      */
+     public static List<File> sortInBatchByKey(final InputStream in,
+             final KeyExtractor extractor, long maxMemory, final Charset cs,
+             final File tmpdirectory, final boolean distinct,
+             final int numHeader, final boolean usegzip, int threads)
+             throws IOException {
+             final byte[] newline = System.getProperty("line.separator")
+                     .getBytes(cs);
+             if (!Arrays.equals("\r\n".getBytes(cs), new byte[] { '\r', '\n' })) {
+                     in.close();
+                     throw new IllegalArgumentException("The keyed sort reads "
+                             + "lines as bytes and needs a charset that encodes "
+                             + "ASCII as ASCII, not " + cs);
+             }
+             threads = Math.max(1, threads);
+             long blockmemory = Math.max(MINBLOCKMEMORY,
+                     (maxMemory - READERMEMORY) / (threads + 1));
+
+             ExecutorService workers = Executors.newFixedThreadPool(threads);
+             List<Future<File>> runs = new ArrayList<Future<File>>();
+             try {
+                     LineReader reader = new LineReader(in, 1 << 16);
+                     int counter = 0;
+                     while (counter < numHeader && reader.next())
+                             counter++;
+                     boolean more = reader.next();
+                     while (more) {
+                             // wait for a worker before reading another block
+                             if (runs.size() >= threads)
+                                     waitFor(runs.get(runs.size() - threads));
+
+                             final LineBlock block = new LineBlock(blockmemory);
+                             while (more && block.add(reader.line, reader.length,
+                                     extractor.getKey(reader.line, 0, reader.length)))
+                                     more = reader.next();
+                             runs.add(workers.submit(new Callable<File>() {
+                                     @Override
+                                     public File call() throws IOException {
+                                             return block.sortAndSave(extractor, newline,
+                                                     tmpdirectory, distinct, usegzip);
+                                     }
+                             }));
+                     }
+
+                     List<File> files = new ArrayList<File>();
+                     for (Future<File> run : runs)
+                             files.add(waitFor(run));
+                     return files;
+             } finally {
+                     in.close();
+                     workers.shutdown();
+             }
+     }
+
+     private static File waitFor(Future<File> run) throws IOException {
+             try {
+                     return run.get();
+             } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                     throw new InterruptedIOException(
+                             "Interrupted while sorting a block");
+             } catch (ExecutionException e) {
+                     Throwable cause = e.getCause();
+                     if (cause instanceof IOException)
+                             throw (IOException) cause;
+                     if (cause instanceof RuntimeException)
+                             throw (RuntimeException) cause;
+                     if (cause instanceof Error)
+                             throw (Error) cause;
+                     throw new IOException(cause);
+             }
+     }
+
+     /**
+      * Share of the maximum heap given to a sort by default.
+      */
+     private static final int DEFAULTMEMORYSHARE = 4;
+
+     /**
+      * Smallest budget of a block of either sort, whatever the budget of
+      * the sort, so that a tiny budget does not make a run of every line.
+      * It leaves most of the block to its lines besides its fixed memory.
+      */
+     private static final int MINBLOCKMEMORY = 1 << 18;
+
+     /**
+      * Bytes counted for every line of a block of the comparator sort
+      * besides its characters: the String and the header of its array
+      * without compressed references, with their padding (64), and the
+      * references the block list keeps for the line as it grows by half,
+      * that Collections.sort copies to an array and that its merges use
+      * (24).
+      */
+     private static final int STRINGBYTES = 64 + 24;
+
+     /**
+      * Memory of the comparator sort besides its lines: the buffers of the
+      * reader, of the writer and its encoder, and of the compression of a
+      * run.
+      */
+     private static final int STRINGBLOCKMEMORY = 1 << 16;
+
+     /**
+      * Largest page of the blocks of the keyed sort.
+      */
+     private static final int MAXPAGESIZE = 1 << 20;
+
+     /**
+      * Memory of the reading thread of the keyed sort besides its blocks:
+      * its read buffer and a few long lines.
+      */
+     private static final int READERMEMORY = 1 << 18;
+
+     /**
+      * Bounds of the bytes read from every run at a time by the keyed merge.
+      */
+     private static final int MINREADAHEAD = 1 << 13;
+
+     private static final int MAXREADAHEAD = 1 << 22;
+
+     /**
+      * Bytes a gzipped run of the keyed merge decompresses at a time.
+      */
+     private static final int MERGEZIPCHUNK = 8192;
+
+     /**
+      * Memory of every run of the keyed merge besides its read-ahead: the
+      * buffers of its decompression and its line.
+      */
+     private static final int MERGERUNMEMORY = MERGEZIPCHUNK
+             + LineBlock.ZIPBUFFERSIZE + 256;
+
+     /**
+      * Bytes buffered before the keyed merge writes, and the memory of the
+      * output with its compression and the last line kept to skip
+      * duplicates.
+      */
+     private static final int MERGEOUTPUTBYTES = 1 << 16;
+
+     private static final int MERGEOUTPUTMEMORY = MERGEOUTPUTBYTES
+             + LineBlock.ZIPBUFFERSIZE + 256;
+
      /**
       * default comparator between strings.
       */
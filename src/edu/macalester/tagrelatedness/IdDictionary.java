@@ -0,0 +1,163 @@
+package edu.macalester.tagrelatedness;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+/**
+ * The IdDictionary interns the tags, resources and users read by a database, handing out a dense int id for every distinct name.
+ * Ids are assigned in the order in which the names are first seen, starting at 0, so they can be used directly as array indexes.
+ * Databases keep their internal structures keyed by these ids and only translate back to strings at the edges.
+ * <p>
+ * Names can also be interned straight from the UTF-8 bytes of a file with intern(byte[], int, int). A String is then only created the
+ * first time a name is seen: the bytes of every name are kept in an open addressing hash table, built the first time bytes are interned.
+ */
+public class IdDictionary {
+
+	private HashMap<String, Integer> ids;
+	private ArrayList<String> names;
+	private int[] byteTable; // id+1 of the name in every slot, 0 for empty slots, null until bytes are interned
+	private byte[] nameBytes; // the UTF-8 bytes of every name, one after the other
+	private int[] nameStarts; // where the bytes of every name start in nameBytes, plus where the next name would start
+	
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	public IdDictionary(){
+		ids = new HashMap<String, Integer>();
+		names = new ArrayList<String>();
+	}
+	/**
+	 * Returns the id of a name, assigning it the next free id if it has not been seen before.
+	 * @param name The name to be interned.
+	 * @return The id of the name.
+	 */
+	public int intern(String name){
+		Integer id = ids.get(name);
+		
+		if(null == id){
+			id = names.size();
+			ids.put(name, id);
+			names.add(name);
+			
+			if(null != byteTable)
+				indexBytes(id, name.getBytes(UTF8));
+		}
+		
+		return id;
+	}
+	/**
+	 * Returns the id of the name encoded by a range of UTF-8 bytes, assigning it the next free id if it has not been seen before.
+	 * No object is created unless the name is new.
+	 * @param bytes The array holding the name.
+	 * @param from The start of the name (inclusive).
+	 * @param to The end of the name (exclusive).
+	 * @return The id of the name.
+	 */
+	public int intern(byte[] bytes, int from, int to){
+		if(null == byteTable){
+			byteTable = new int[16];
+			nameBytes = new byte[64];
+			nameStarts = new int[16];
+			for(int id = 0; id < names.size(); id++)
+				indexBytes(id, names.get(id).getBytes(UTF8));
+		}
+		
+		int mask = byteTable.length - 1;
+		for(int slot = hash(bytes, from, to) & mask; byteTable[slot] != 0; slot = (slot + 1) & mask){
+			int id = byteTable[slot] - 1;
+			if(equals(id, bytes, from, to))
+				return id;
+		}
+		
+		// Bytes that are not valid UTF-8 decode to a name with different bytes, which may already be in the dictionary.
+		return intern(new String(bytes, from, to - from, UTF8));
+	}
+	
+	private boolean equals(int id, byte[] bytes, int from, int to){
+		int start = nameStarts[id];
+		if(nameStarts[id+1] - start != to - from)
+			return false;
+		
+		for(int i = from; i < to; i++){
+			if(nameBytes[start++] != bytes[i])
+				return false;
+		}
+		return true;
+	}
+	
+	private static int hash(byte[] bytes, int from, int to){
+		int hash = 0;
+		for(int i = from; i < to; i++)
+			hash = 31 * hash + bytes[i];
+		return hash ^ (hash >>> 16);
+	}
+	/**
+	 * Appends the bytes of a new name to the byte table, growing the table to keep it at most half full.
+	 */
+	private void indexBytes(int id, byte[] bytes){
+		if(id + 2 > nameStarts.length)
+			nameStarts = Arrays.copyOf(nameStarts, nameStarts.length * 2);
+		int start = nameStarts[id];
+		if(start + bytes.length > nameBytes.length)
+			nameBytes = Arrays.copyOf(nameBytes, Math.max(nameBytes.length * 2, start + bytes.length));
+		System.arraycopy(bytes, 0, nameBytes, start, bytes.length);
+		nameStarts[id+1] = start + bytes.length;
+		
+		if(2 * (id + 1) > byteTable.length){
+			byteTable = new int[byteTable.length * 2];
+			for(int other = 0; other < id; other++)
+				insert(other);
+		}
+		insert(id);
+	}
+	
+	private void insert(int id){
+		int mask = byteTable.length - 1;
+		int slot = hash(nameBytes, nameStarts[id], nameStarts[id+1]) & mask;
+		while(byteTable[slot] != 0)
+			slot = (slot + 1) & mask;
+		byteTable[slot] = id + 1;
+	}
+	/**
+	 * Returns the id of a name without interning it.
+	 * @param name The name to look up.
+	 * @return The id of the name, or -1 if the name is not in the dictionary.
+	 */
+	public int getId(String name){
+		Integer id = ids.get(name);
+		return null == id ? -1 : id;
+	}
+	/**
+	 * Returns the name that was interned with the given id.
+	 * @param id An id handed out by this dictionary.
+	 * @return The name associated with the id.
+	 */
+	public String getName(int id){
+		return names.get(id);
+	}
+	/**
+	 * Returns the number of names in the dictionary. Valid ids go from 0 to size()-1.
+	 * @return The number of names interned so far.
+	 */
+	public int size(){
+		return names.size();
+	}
+	/**
+	 * Returns all the names in the dictionary, indexed by their id.
+	 * @return An unmodifiable list with the name of every id.
+	 */
+	public List<String> getNames(){
+		return Collections.unmodifiableList(names);
+	}
+	/**
+	 * Returns all the names in the dictionary as a set.
+	 * @return An unmodifiable set with every name in the dictionary.
+	 */
+	public Set<String> getNameSet(){
+		return Collections.unmodifiableSet(ids.keySet());
+	}
+
+}
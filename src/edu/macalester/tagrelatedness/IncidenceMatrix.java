@@ -0,0 +1,258 @@
+package edu.macalester.tagrelatedness;
+
+import java.io.IOException;
+import java.util.Arrays;
+/**
+ * The IncidenceMatrix is a frozen, read only copy of the tag/resource associations of a ProjectionalDatabase.
+ * It is stored in compressed sparse row form in both directions: for every tag a sorted posting list with the ids of its resources,
+ * and for every resource a sorted posting list with the ids of its tags. All posting lists of one direction live in a single int[]
+ * and an offsets array tells where each of them starts, so the posting list of tag t is tagResources[tagOffsets[t]] up to
+ * tagResources[tagOffsets[t+1]] (exclusive).
+ * <p>
+ * Tags that are attached to a large fraction of the resources (e.g. "classic" or "comedy" in MovieLens) also get a dense bitset over
+ * all the resources. A bitset takes one bit per resource while a posting list takes 32 bits per entry, so it is only built when it is
+ * not bigger than the posting list. Intersections involving these tags are then computed a word at a time instead of merging.
+ */
+public class IncidenceMatrix {
+
+	private final int[] tagOffsets;
+	private final int[] tagResources;
+	private final int[] resourceOffsets;
+	private final int[] resourceTags;
+	private final long[][] tagBits; // indexed by tag id, null for the tags that only have a posting list
+	
+	/**
+	 * Tags with fewer resources than this never get a bitset, their posting lists fit in a few cache lines anyway.
+	 */
+	private static final int MIN_BITSET_DEGREE = 64;
+	
+	private IncidenceMatrix(int[] tagOffsets, int[] tagResources, int[] resourceOffsets, int[] resourceTags){
+		this.tagOffsets = tagOffsets;
+		this.tagResources = tagResources;
+		this.resourceOffsets = resourceOffsets;
+		this.resourceTags = resourceTags;
+		
+		int resourceCount = resourceOffsets.length-1;
+		int words = (resourceCount + 63) >>> 6;
+		tagBits = new long[tagOffsets.length-1][];
+		for(int tag = 0; tag < tagBits.length; tag++){
+			int degree = getTagDegree(tag);
+			if(degree < MIN_BITSET_DEGREE || degree < resourceCount / 32)
+				continue;
+			
+			long[] bits = new long[words];
+			for(int i = tagOffsets[tag]; i < tagOffsets[tag+1]; i++)
+				bits[tagResources[i] >>> 6] |= 1L << tagResources[i];
+			tagBits[tag] = bits;
+		}
+	}
+	/**
+	 * Builds the matrix from a list of (tag, resource) associations. Repeated associations are only stored once.
+	 * @param tagCount The number of tags, every tag id must be smaller than this.
+	 * @param resourceCount The number of resources, every resource id must be smaller than this.
+	 * @param tags The tag id of every association.
+	 * @param resources The resource id of every association, at the same positions as in tags.
+	 * @return The frozen matrix.
+	 */
+	public static IncidenceMatrix build(int tagCount, int resourceCount, IntArrayList tags, IntArrayList resources){
+		int[] tagOffsets = new int[tagCount+1];
+		int[] tagResources = groupBy(tags, resources, tagOffsets);
+		
+		// The tag side has no repeated entries anymore, so the resource side is built from it.
+		IntArrayList uniqueTags = new IntArrayList(tagResources.length);
+		IntArrayList uniqueResources = new IntArrayList(tagResources.length);
+		for(int tag = 0; tag < tagCount; tag++){
+			for(int i = tagOffsets[tag]; i < tagOffsets[tag+1]; i++){
+				uniqueTags.add(tag);
+				uniqueResources.add(tagResources[i]);
+			}
+		}
+		
+		int[] resourceOffsets = new int[resourceCount+1];
+		int[] resourceTags = groupBy(uniqueResources, uniqueTags, resourceOffsets);
+		
+		return new IncidenceMatrix(tagOffsets, tagResources, resourceOffsets, resourceTags);
+	}
+	/**
+	 * Writes the posting lists of the matrix to a snapshot. The bitsets are not stored, they are rebuilt by read().
+	 * @param snapshot The snapshot being written.
+	 * @throws IOException If the snapshot can not be written.
+	 */
+	public void write(Snapshot.Writer snapshot) throws IOException{
+		snapshot.writeInts(tagOffsets);
+		snapshot.writeInts(tagResources);
+		snapshot.writeInts(resourceOffsets);
+		snapshot.writeInts(resourceTags);
+	}
+	/**
+	 * Reads a matrix written by write(), checking that its offsets and ids match the dictionaries read before it.
+	 * @param snapshot The snapshot being read.
+	 * @param tagCount The number of tags in the tag dictionary.
+	 * @param resourceCount The number of resources in the resource dictionary.
+	 * @return The frozen matrix.
+	 * @throws IOException If the snapshot can not be read or does not hold a valid matrix of that size.
+	 */
+	public static IncidenceMatrix read(Snapshot.Reader snapshot, int tagCount, int resourceCount) throws IOException{
+		int[] tagOffsets = snapshot.readInts();
+		int[] tagResources = snapshot.readInts();
+		int[] resourceOffsets = snapshot.readInts();
+		int[] resourceTags = snapshot.readInts();
+		
+		Snapshot.checkOffsets(tagOffsets, tagCount, tagResources.length);
+		Snapshot.checkIds(tagResources, tagResources.length, resourceCount);
+		Snapshot.checkOffsets(resourceOffsets, resourceCount, resourceTags.length);
+		Snapshot.checkIds(resourceTags, tagResources.length, tagCount);
+		
+		return new IncidenceMatrix(tagOffsets, tagResources, resourceOffsets, resourceTags);
+	}
+	/**
+	 * Groups the values by their key with a counting sort, sorting and removing repeated values inside each group.
+	 * @param keys The key of every entry.
+	 * @param values The value of every entry.
+	 * @param offsets An array of length number of keys + 1 that is filled with the start of every group.
+	 * @return The values of every group, one group after the other.
+	 */
+	private static int[] groupBy(IntArrayList keys, IntArrayList values, int[] offsets){
+		int[] grouped = new int[keys.size()];
+		int[] next = new int[offsets.length];
+		
+		for(int i = 0; i < keys.size(); i++)
+			next[keys.get(i)+1]++;
+		for(int key = 1; key < next.length; key++)
+			next[key] += next[key-1];
+		for(int i = 0; i < keys.size(); i++)
+			grouped[next[keys.get(i)]++] = values.get(i);
+		
+		// next[key] now holds the end of each group, compact every group after sorting it.
+		int size = 0;
+		int start = 0;
+		for(int key = 0; key < offsets.length-1; key++){
+			int end = next[key];
+			Arrays.sort(grouped, start, end);
+			offsets[key] = size;
+			for(int i = start; i < end; i++){
+				if(i == start || grouped[i] != grouped[i-1])
+					grouped[size++] = grouped[i];
+			}
+			start = end;
+		}
+		offsets[offsets.length-1] = size;
+		
+		return Arrays.copyOf(grouped, size);
+	}
+	/**
+	 * Returns the number of tags in the matrix.
+	 * @return The number of tags.
+	 */
+	public int getTagCount(){
+		return tagOffsets.length-1;
+	}
+	/**
+	 * Returns the number of resources in the matrix.
+	 * @return The number of resources.
+	 */
+	public int getResourceCount(){
+		return resourceOffsets.length-1;
+	}
+	/**
+	 * Returns the number of distinct (tag, resource) associations in the matrix.
+	 * @return The number of non zero entries.
+	 */
+	public int getEntryCount(){
+		return tagResources.length;
+	}
+	/**
+	 * Returns the array holding the posting lists of all the tags. Use getTagStart and getTagEnd to find the one of a tag.
+	 * The array is shared, it must not be modified.
+	 * @return The resource ids of every tag, sorted inside each tag.
+	 */
+	public int[] getTagResources(){
+		return tagResources;
+	}
+	/**
+	 * Returns the position in getTagResources() where the posting list of a tag starts.
+	 * @param tag The id of the tag.
+	 * @return The first position of the tag (inclusive).
+	 */
+	public int getTagStart(int tag){
+		return tagOffsets[tag];
+	}
+	/**
+	 * Returns the position in getTagResources() where the posting list of a tag ends.
+	 * @param tag The id of the tag.
+	 * @return The last position of the tag (exclusive).
+	 */
+	public int getTagEnd(int tag){
+		return tagOffsets[tag+1];
+	}
+	/**
+	 * Returns the number of resources associated with a tag.
+	 * @param tag The id of the tag.
+	 * @return The number of resources of such tag.
+	 */
+	public int getTagDegree(int tag){
+		return tagOffsets[tag+1] - tagOffsets[tag];
+	}
+	/**
+	 * Returns the array holding the posting lists of all the resources. Use getResourceStart and getResourceEnd to find the one of a resource.
+	 * The array is shared, it must not be modified.
+	 * @return The tag ids of every resource, sorted inside each resource.
+	 */
+	public int[] getResourceTags(){
+		return resourceTags;
+	}
+	/**
+	 * Returns the position in getResourceTags() where the posting list of a resource starts.
+	 * @param resource The id of the resource.
+	 * @return The first position of the resource (inclusive).
+	 */
+	public int getResourceStart(int resource){
+		return resourceOffsets[resource];
+	}
+	/**
+	 * Returns the position in getResourceTags() where the posting list of a resource ends.
+	 * @param resource The id of the resource.
+	 * @return The last position of the resource (exclusive).
+	 */
+	public int getResourceEnd(int resource){
+		return resourceOffsets[resource+1];
+	}
+	/**
+	 * Returns the number of tags associated with a resource.
+	 * @param resource The id of the resource.
+	 * @return The number of tags of such resource.
+	 */
+	public int getResourceDegree(int resource){
+		return resourceOffsets[resource+1] - resourceOffsets[resource];
+	}
+	/**
+	 * Returns the bitset of a high frequency tag, in which bit (r % 64) of word r / 64 is set if resource r is associated with the tag.
+	 * The array is shared, it must not be modified.
+	 * @param tag The id of the tag.
+	 * @return The words of the bitset, or null if the tag only has a posting list.
+	 */
+	public long[] getTagBits(int tag){
+		return tagBits[tag];
+	}
+	/**
+	 * Counts the resources shared by two tags. The bitsets are used when the tags have them, otherwise the posting lists are intersected.
+	 * @param tag1 The id of the first tag.
+	 * @param tag2 The id of the second tag.
+	 * @return The size of the intersection of the resources of both tags.
+	 */
+	public int countSharedResources(int tag1, int tag2){
+		long[] bits1 = tagBits[tag1];
+		long[] bits2 = tagBits[tag2];
+		
+		if(null != bits1 && null != bits2)
+			return SetIntersection.count(bits1, bits2);
+		if(null != bits1)
+			return SetIntersection.count(tagResources, tagOffsets[tag2], tagOffsets[tag2+1], bits1);
+		if(null != bits2)
+			return SetIntersection.count(tagResources, tagOffsets[tag1], tagOffsets[tag1+1], bits2);
+		
+		return SetIntersection.count(tagResources, tagOffsets[tag1], tagOffsets[tag1+1],
+				tagResources, tagOffsets[tag2], tagOffsets[tag2+1]);
+	}
+
+}
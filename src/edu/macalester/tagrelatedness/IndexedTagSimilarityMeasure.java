@@ -0,0 +1,10 @@
+package edu.macalester.tagrelatedness;
+/**
+ * A TagSimilarityMeasure that can also be calculated directly on the tag ids of the database it works on.
+ * Callers that compare many pairs should translate every tag to its id once through getTagDictionary() and then use
+ * calculateSimilarity(int, int), so the tag strings are not hashed again for every pair.
+ */
+public interface IndexedTagSimilarityMeasure extends TagSimilarityMeasure {
+	double calculateSimilarity(int tag1, int tag2);
+	IdDictionary getTagDictionary();
+}
@@ -0,0 +1,89 @@
+package edu.macalester.tagrelatedness;
+
+import java.util.Arrays;
+/**
+ * A growable list of primitive ints. The databases use it instead of ArrayList&lt;Integer&gt; to avoid boxing every id they store.
+ */
+public class IntArrayList {
+
+	private int[] elements;
+	private int size;
+	
+	public IntArrayList(){
+		this(4);
+	}
+	
+	public IntArrayList(int initialCapacity){
+		elements = new int[Math.max(1, initialCapacity)];
+		size = 0;
+	}
+	/**
+	 * Appends a value at the end of the list.
+	 * @param value The value to be added.
+	 */
+	public void add(int value){
+		if(size == elements.length)
+			elements = Arrays.copyOf(elements, elements.length * 2);
+		
+		elements[size++] = value;
+	}
+	/**
+	 * Returns the value at the given position.
+	 * @param index The position of the value.
+	 * @return The value stored at index.
+	 */
+	public int get(int index){
+		if(index >= size)
+			throw new IndexOutOfBoundsException("Index: "+index+", Size: "+size);
+		
+		return elements[index];
+	}
+	/**
+	 * Appends count zeros at the end of the list, to be overwritten with set().
+	 * @param count The number of values to be added.
+	 * @return The position of the first value added.
+	 */
+	public int grow(int count){
+		int position = size;
+		if(size + count > elements.length)
+			elements = Arrays.copyOf(elements, Math.max(size + count, elements.length * 2));
+		
+		size += count;
+		return position;
+	}
+	/**
+	 * Overwrites the values of the list from a position on with the values of another list. Several threads can set disjoint
+	 * ranges of the list at the same time, as long as none of them grows it.
+	 * @param index The position of the first value to be overwritten.
+	 * @param values The values to be copied.
+	 */
+	public void set(int index, IntArrayList values){
+		if(index + values.size > size)
+			throw new IndexOutOfBoundsException("Index: "+(index + values.size)+", Size: "+size);
+		
+		System.arraycopy(values.elements, 0, elements, index, values.size);
+	}
+	/**
+	 * Replaces every value v of the list by mapping[v].
+	 * @param mapping The new value of every value of the list.
+	 */
+	public void map(int[] mapping){
+		for(int i = 0; i < size; i++)
+			elements[i] = mapping[elements[i]];
+	}
+	/**
+	 * Returns the number of values in the list.
+	 * @return The size of the list.
+	 */
+	public int size(){
+		return size;
+	}
+	/**
+	 * Returns a copy of the values in the list.
+	 * @return An array holding exactly the values of the list.
+	 */
+	public int[] toArray(){
+		return Arrays.copyOf(elements, size);
+	}
+
+}
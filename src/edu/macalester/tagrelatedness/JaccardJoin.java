@@ -0,0 +1,175 @@
+package edu.macalester.tagrelatedness;
+
+import java.util.Arrays;
+/**
+ * The JaccardJoin finds the pairs of tags whose ProjectionalJaccard similarity is at least a given threshold with prefix
+ * filtering (the AllPairs algorithm), without looking at most of the pairs below it.
+ * <p>
+ * The resources are ranked by the number of tags they have, the rarest first, and the resources of every tag are sorted by rank.
+ * If two tags x and y have a similarity of at least t, they share at least m(x) resources, m(x) being the smallest overlap with
+ * m(x)/|x| &gt;= t, and the same goes for y. So the first |x|-m(x)+1 resources of x, its prefix, and the prefix of y share a
+ * resource, and only the prefixes are put in an inverted index. The tags are processed from the smallest to the largest: a tag
+ * probes the index with its own prefix, meeting only earlier tags that are not too small to reach its minimum overlap, and the
+ * tags it meets are the candidates. Since the prefixes start with rare resources, the lists in the index are short and most pairs
+ * are never met at all. Every candidate is verified by counting its shared resources, and its similarity is calculated by the
+ * measure itself, so the pairs found are exactly the ones calculateSimilarity would report at the threshold.
+ * <p>
+ * The overlaps are compared with the threshold in the same double arithmetic the measure uses, so rounding never drops a pair.
+ * The index is built before any probing, and tags are probed in parallel with ParallelForEach.
+ */
+public class JaccardJoin {
+
+	/**
+	 * Calls the procedure with the similarity of every pair (tags[i], tags[j]), i &lt; j, whose similarity is not below the
+	 * threshold. The procedure may be called from several threads at the same time.
+	 * @param tags The ids of the tags to compare, a pair is only emitted in the order in which its tags appear in this array.
+	 * @param measure The measure whose pairs are searched.
+	 * @param threshold The lowest similarity of a pair to emit, must be positive.
+	 * @param threads The number of threads to use.
+	 * @param procedure The procedure receiving every pair and its similarity.
+	 */
+	public static void run(final int[] tags, final ProjectionalJaccard measure, final double threshold, int threads, final PairProcedure procedure){
+		if(!(threshold > 0))
+			throw new IllegalArgumentException("Prefix filtering needs a positive threshold: "+threshold);
+		if(threshold > 1)
+			return; // no pair is more similar than 1
+
+		final IncidenceMatrix matrix = measure.getIncidenceMatrix();
+		int[] tagResources = matrix.getTagResources();
+
+		// The resources ranked by their number of tags, the rarest first.
+		int resourceCount = matrix.getResourceCount();
+		long[] keys = new long[resourceCount];
+		for(int resource = 0; resource < resourceCount; resource++)
+			keys[resource] = ((long) matrix.getResourceDegree(resource) << 32) | resource;
+		Arrays.sort(keys);
+		int[] rank = new int[resourceCount];
+		for(int i = 0; i < resourceCount; i++)
+			rank[(int) keys[i]] = i;
+
+		// The tags from the smallest to the largest, tags of the same size in the order of the tags array.
+		keys = new long[tags.length];
+		for(int i = 0; i < tags.length; i++)
+			keys[i] = ((long) matrix.getTagDegree(tags[i]) << 32) | i;
+		Arrays.sort(keys);
+		final int[] order = new int[tags.length]; // position in tags of every tag, in processing order
+		final int[] sizes = new int[tags.length];
+		final int[] overlaps = new int[tags.length]; // minimum overlap of every tag, in processing order
+		final int[] prefixOffsets = new int[tags.length + 1];
+		for(int i = 0; i < tags.length; i++){
+			order[i] = (int) keys[i];
+			sizes[i] = (int) (keys[i] >>> 32);
+			overlaps[i] = minimumOverlap(sizes[i], threshold);
+			prefixOffsets[i + 1] = prefixOffsets[i] + Math.max(0, Math.min(sizes[i], sizes[i] - overlaps[i] + 1));
+		}
+
+		// The prefix of every tag: the ranks of its rarest resources, sorted.
+		final int[] prefixes = new int[prefixOffsets[tags.length]];
+		int[] ranks = new int[0];
+		for(int i = 0; i < tags.length; i++){
+			int tag = tags[order[i]];
+			int start = matrix.getTagStart(tag);
+			if(ranks.length < sizes[i])
+				ranks = new int[Math.max(sizes[i], 2 * ranks.length)];
+			for(int j = 0; j < sizes[i]; j++)
+				ranks[j] = rank[tagResources[start + j]];
+			Arrays.sort(ranks, 0, sizes[i]);
+			System.arraycopy(ranks, 0, prefixes, prefixOffsets[i], prefixOffsets[i + 1] - prefixOffsets[i]);
+		}
+
+		// The inverted index of the prefixes: for every resource rank, the tags whose prefix holds it in processing order.
+		final int[] indexOffsets = new int[resourceCount + 1];
+		for(int r : prefixes)
+			indexOffsets[r + 1]++;
+		for(int r = 0; r < resourceCount; r++)
+			indexOffsets[r + 1] += indexOffsets[r];
+		final int[] index = new int[prefixes.length];
+		int[] fill = Arrays.copyOf(indexOffsets, resourceCount);
+		for(int i = 0; i < tags.length; i++){
+			for(int j = prefixOffsets[i]; j < prefixOffsets[i + 1]; j++)
+				index[fill[prefixes[j]]++] = i;
+		}
+
+		final ThreadLocal<Candidates> candidates = new ThreadLocal<Candidates>(){
+			protected Candidates initialValue(){
+				return new Candidates(order.length);
+			}
+		};
+
+		ParallelForEach.range(0, tags.length, threads, new Procedure<Integer>() {
+			public void call(Integer current) throws Exception {
+				Candidates scratch = candidates.get();
+				int[] counts = scratch.counts;
+				int[] found = scratch.found;
+				int foundCount = 0;
+
+				// Probe with the prefix, meeting the earlier tags that are big enough to reach the minimum overlap.
+				int minimum = overlaps[current];
+				for(int j = prefixOffsets[current]; j < prefixOffsets[current + 1]; j++){
+					int r = prefixes[j];
+					for(int k = firstOfSize(index, indexOffsets[r], indexOffsets[r + 1], sizes, minimum); k < indexOffsets[r + 1]; k++){
+						int other = index[k];
+						if(other >= current)
+							break;
+						if(counts[other]++ == 0)
+							found[foundCount++] = other;
+					}
+				}
+
+				try{
+					for(int k = 0; k < foundCount; k++){
+						int other = found[k];
+						int position1 = Math.min(order[current], order[other]);
+						int position2 = Math.max(order[current], order[other]);
+						int tag1 = tags[position1];
+						int tag2 = tags[position2];
+						double similarity = measure.calculateSimilarity(tag1, tag2, matrix.countSharedResources(tag1, tag2));
+						if(!(similarity < threshold))
+							procedure.call(tag1, tag2, similarity);
+					}
+				}finally{
+					for(int k = 0; k < foundCount; k++)
+						counts[found[k]] = 0;
+				}
+			}
+		});
+	}
+	/**
+	 * Returns the smallest overlap m with m/size &gt;= threshold in double arithmetic. A tag of that size shares at least m
+	 * resources with any tag it has a similarity of at least threshold with.
+	 */
+	static int minimumOverlap(int size, double threshold){
+		int m = (int) Math.ceil(threshold * size);
+		while(m > 0 && (double) (m - 1) / size >= threshold)
+			m--;
+		while((double) m / size < threshold)
+			m++;
+		return m;
+	}
+	/**
+	 * Returns the first index in [from, to) of a list of tags in processing order whose size is at least the given size.
+	 */
+	private static int firstOfSize(int[] list, int from, int to, int[] sizes, int size){
+		while(from < to){
+			int middle = (from + to) >>> 1;
+			if(sizes[list[middle]] < size)
+				from = middle + 1;
+			else
+				to = middle;
+		}
+		return from;
+	}
+	/**
+	 * The per thread scratch space of the join: the number of prefix resources shared with every tag, and the tags met so far.
+	 */
+	private static class Candidates {
+		final int[] counts;
+		final int[] found;
+
+		Candidates(int tagCount){
+			counts = new int[tagCount];
+			found = new int[tagCount];
+		}
+	}
+
+}
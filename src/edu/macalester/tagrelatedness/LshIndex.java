@@ -0,0 +1,218 @@
+package edu.macalester.tagrelatedness;
+
+import java.util.Arrays;
+import java.util.Random;
+/**
+ * A locality sensitive hashing index over MinHash signatures, which finds the pairs of tags likely to have a high Jaccard
+ * similarity without looking at all the pairs.
+ * <p>
+ * The signatures are cut into bands of rows consecutive values, and the values of every band of every tag are hashed into a key.
+ * Two tags are a candidate pair when they have the same key in at least one band. Tags with a Jaccard similarity s agree on a band
+ * with a probability of s^rows, so they become candidates with a probability of 1-(1-s^rows)^bands: an S curve that rises around
+ * the threshold (1/bands)^(1/rows). More bands or fewer rows lower the threshold and find more pairs, at the cost of more
+ * candidates. The values left over when the length of the signatures is not a multiple of the number of bands are not banded.
+ * <p>
+ * The candidates are found band by band, by sorting the keys of the band so that the tags of a bucket end up next to each other.
+ * A pair is only emitted for the first band it agrees on, so every candidate comes out once. Tags without resources are left out of
+ * every bucket: their signatures would all be equal, and expanding their bucket would take time quadratic in their number.
+ */
+public class LshIndex {
+
+	private final MinHashSignatures signatures;
+	private final int bands;
+	private final int rows;
+	private final int[] keys; // the key of band b of tag t is keys[t*bands+b]
+
+	/**
+	 * Hashes the bands of the signatures of every tag.
+	 * @param signatures The MinHash signatures of the tags.
+	 * @param bands The number of bands, the signatures are cut into bands of getLength()/bands values.
+	 */
+	public LshIndex(MinHashSignatures signatures, int bands){
+		if(bands < 1 || bands > signatures.getLength())
+			throw new IllegalArgumentException("Signatures of length "+signatures.getLength()+" can not be cut into "+bands+" bands");
+
+		this.signatures = signatures;
+		this.bands = bands;
+		this.rows = signatures.getLength() / bands;
+
+		int length = signatures.getLength();
+		int[] values = signatures.getSignatures();
+		int tagCount = signatures.getTagCount();
+		keys = new int[tagCount * bands];
+		for(int tag = 0; tag < tagCount; tag++){
+			for(int band = 0; band < bands; band++){
+				long hash = band;
+				int start = tag * length + band * rows;
+				for(int i = start; i < start + rows; i++)
+					hash = MinHashSignatures.mix(hash * 0x9E3779B97F4A7C15L + (values[i] & 0xFFFFFFFFL));
+				keys[tag * bands + band] = (int) (hash >>> 32) ^ (int) hash;
+			}
+		}
+	}
+	/**
+	 * Calls the procedure with the similarity of every candidate pair (tags[i], tags[j]), i &lt; j. The procedure may be called from
+	 * several threads at the same time.
+	 * @param tags The ids of the tags to compare, a pair is only emitted in the order in which its tags appear in this array.
+	 * @param measure The measure calculated for every candidate pair, e.g. the MinHashJaccard estimate or the exact measure.
+	 * @param threads The number of threads to use.
+	 * @param procedure The procedure receiving every candidate pair and its similarity.
+	 */
+	public void run(final int[] tags, final IndexedTagSimilarityMeasure measure, int threads, final PairProcedure procedure){
+		ParallelForEach.range(0, bands, threads, new Procedure<Integer>() {
+			public void call(Integer band) throws Exception {
+				// The tags sorted by their key in this band, then by position, so every bucket is a run of equal keys.
+				long[] entries = new long[tags.length];
+				int count = 0;
+				for(int i = 0; i < tags.length; i++){
+					if(!signatures.isEmpty(tags[i]))
+						entries[count++] = ((long) keys[tags[i] * bands + band] << 32) | i;
+				}
+				entries = Arrays.copyOf(entries, count);
+				Arrays.sort(entries);
+
+				for(int start = 0; start < entries.length; ){
+					int key = (int) (entries[start] >>> 32);
+					int end = start + 1;
+					while(end < entries.length && (int) (entries[end] >>> 32) == key)
+						end++;
+
+					for(int i = start; i < end; i++){
+						int tag1 = tags[(int) entries[i]];
+						for(int j = i + 1; j < end; j++){
+							int tag2 = tags[(int) entries[j]];
+							if(firstSharedBand(tag1, tag2) == band)
+								procedure.call(tag1, tag2, measure.calculateSimilarity(tag1, tag2));
+						}
+					}
+					start = end;
+				}
+			}
+		});
+	}
+	/**
+	 * Tells whether two tags are a candidate pair, that is whether both have resources and they have the same key in at least one band.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @return True if run() emits the pair when both tags are compared.
+	 */
+	public boolean isCandidate(int tag1, int tag2){
+		if(signatures.isEmpty(tag1) || signatures.isEmpty(tag2))
+			return false;
+		return firstSharedBand(tag1, tag2) < bands;
+	}
+
+	private int firstSharedBand(int tag1, int tag2){
+		int base1 = tag1 * bands;
+		int base2 = tag2 * bands;
+		int band = 0;
+		while(band < bands && keys[base1 + band] != keys[base2 + band])
+			band++;
+		return band;
+	}
+	/**
+	 * Returns the similarity at which a pair has about even odds of becoming a candidate, (1/bands)^(1/rows).
+	 * @return The approximate threshold of the index.
+	 */
+	public double getThreshold(){
+		return Math.pow(1.0 / bands, 1.0 / rows);
+	}
+
+	public int getBands(){
+		return bands;
+	}
+
+	public int getRows(){
+		return rows;
+	}
+	/**
+	 * Estimates the recall of the index on a random sample of tags: every pair of a sampled tag whose exact similarity is at
+	 * least the threshold is looked up among the candidates, and the MinHash estimate of the candidates found is compared with
+	 * their exact similarity.
+	 * @param exact The exact measure, over the same tags as the signatures.
+	 * @param sampleSize The number of tags to sample.
+	 * @param threshold The similarity from which a pair should be found, must be positive.
+	 * @param seed The seed of the sample.
+	 * @return The recall on the sample.
+	 */
+	public Recall measureRecall(ProjectionalJaccard exact, int sampleSize, double threshold, long seed){
+		if(!(threshold > 0))
+			throw new IllegalArgumentException("The recall is measured from a positive threshold: "+threshold);
+
+		IncidenceMatrix matrix = exact.getIncidenceMatrix();
+		int tagCount = matrix.getTagCount();
+		int[] tagResources = matrix.getTagResources();
+		int[] resourceTags = matrix.getResourceTags();
+
+		// A partial shuffle puts the sample at the start of the array.
+		int[] sample = new int[tagCount];
+		for(int i = 0; i < tagCount; i++)
+			sample[i] = i;
+		Random random = new Random(seed);
+		sampleSize = Math.min(sampleSize, tagCount);
+		for(int i = 0; i < sampleSize; i++){
+			int j = i + random.nextInt(tagCount - i);
+			int swap = sample[i];
+			sample[i] = sample[j];
+			sample[j] = swap;
+		}
+
+		// Only the tags that share a resource with a sampled tag can reach a positive threshold.
+		int[] counts = new int[tagCount];
+		int[] touched = new int[tagCount];
+		int relevant = 0;
+		int found = 0;
+		double error = 0.0;
+		for(int s = 0; s < sampleSize; s++){
+			int tag = sample[s];
+			int touchedCount = 0;
+			for(int i = matrix.getTagStart(tag); i < matrix.getTagEnd(tag); i++){
+				int resource = tagResources[i];
+				for(int j = matrix.getResourceStart(resource); j < matrix.getResourceEnd(resource); j++){
+					int other = resourceTags[j];
+					if(other != tag && counts[other]++ == 0)
+						touched[touchedCount++] = other;
+				}
+			}
+			for(int k = 0; k < touchedCount; k++){
+				int other = touched[k];
+				double similarity = exact.calculateSimilarity(tag, other, counts[other]);
+				counts[other] = 0;
+				if(similarity < threshold)
+					continue;
+				relevant++;
+				if(isCandidate(tag, other)){
+					found++;
+					error += Math.abs(signatures.estimateJaccard(tag, other) - similarity);
+				}
+			}
+		}
+
+		return new Recall(sampleSize, relevant, found, found == 0 ? 0.0 : error / found);
+	}
+
+	/**
+	 * The outcome of measureRecall(): how many of the pairs of the sampled tags that reach the threshold are candidates, and how
+	 * far the MinHash estimate of those candidates is from their exact similarity on average.
+	 */
+	public static final class Recall {
+		public final int sampledTags;
+		public final int relevantPairs;
+		public final int foundPairs;
+		public final double meanError;
+
+		Recall(int sampledTags, int relevantPairs, int foundPairs, double meanError){
+			this.sampledTags = sampledTags;
+			this.relevantPairs = relevantPairs;
+			this.foundPairs = foundPairs;
+			this.meanError = meanError;
+		}
+		/**
+		 * Returns the fraction of the pairs reaching the threshold that are candidates, 1 if there are no such pairs.
+		 */
+		public double getRecall(){
+			return 0 == relevantPairs ? 1.0 : (double) foundPairs / relevantPairs;
+		}
+	}
+
+}
@@ -1,17 +1,19 @@
 package edu.macalester.tagrelatedness;
-
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 /**
  * This MacroAggregation similarity determines tag similarity by making each user have a vote on a projectional database.
  * For more reference on the construction of this algorithm look at: www2009.org/proceedings/pdf/p641.pdf
  * @author alan
  *
  */
-public class MacroAggregationMatching implements TagSimilarityMeasure{
+public class MacroAggregationMatching implements IndexedTagSimilarityMeasure{
 	
 	CollaborativeDatabase db;
+	// scratch space for the users shared by the two tags being compared, one per thread
+	private ThreadLocal<CollaborativeDatabase.SharedUsers> sharedUsers = new ThreadLocal<CollaborativeDatabase.SharedUsers>(){
+		protected CollaborativeDatabase.SharedUsers initialValue(){
+			return db.newSharedUsers();
+		}
+	};
 	
 	public MacroAggregationMatching(CollaborativeDatabase database){
 		db = database;
@@ -21,29 +23,33 @@ public class MacroAggregationMatching implements TagSimilarityMeasure{
 	 * @param tag1 first tag
 	 * @param tag2 second tag
 	 */
-	@SuppressWarnings("unchecked")
 	public double calculateSimilarity(String tag1, String tag2) {
-		HashMap<String, ArrayList<HashMap<String, HashSet<String>>>> userMap = db.getUserMap();
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Calculates the similarity between two tags in the CollaborativeDatabase.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
 		double similarity = 0.0;
-				
-		for(String user : userMap.keySet()){
 		
-			HashMap<String, HashSet<String>> tagsMap = userMap.get(user).get(1);
-			
-			if(null == tagsMap.get(tag1) || null == tagsMap.get(tag2))
-				continue;
-			
-			HashSet<String> resources1 = (HashSet<String>) tagsMap.get(tag1).clone();
-			HashSet<String> resources2 = (HashSet<String>) tagsMap.get(tag2).clone();
+		// Only the users that used both tags can add to the similarity
+		CollaborativeDatabase.SharedUsers shared = sharedUsers.get();
+		db.findSharedUsers(tag1, tag2, shared);
+		int[] tagResources = db.getTagResources();
+				
+		for(int k = 0; k < shared.count; k++){
+			int user = shared.users[k];
 			
-			resources1.retainAll(resources2);
+			int resourceCount = SetIntersection.intersect(tagResources, shared.starts1[k], shared.ends1[k],
+					tagResources, shared.starts2[k], shared.ends2[k], shared.resources);
 						
-			HashMap<String, HashSet<String>> resourcesMap = userMap.get(user).get(0);
-			
-			final double totalResources = resourcesMap.keySet().size();
+			final double totalResources = db.getUserResourceCount(user);
 			
-			for(String resource : resources1 ){
-				double associated = resourcesMap.get(resource).size();
+			for(int i = 0; i < resourceCount; i++){
+				double associated = db.getResourceTagCount(user, shared.resources[i]);
 				similarity += Math.log(associated / totalResources );
 			}
 			
@@ -52,5 +58,11 @@ public class MacroAggregationMatching implements TagSimilarityMeasure{
 		return similarity*-1;
 		
 	}
+	/**
+	 * Returns the dictionary with the ids of the tags in the CollaborativeDatabase.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
 	
 }
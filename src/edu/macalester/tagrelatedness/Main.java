@@ -7,9 +7,22 @@ import java.util.LinkedList;
 
 
 public class Main {	
+	/**
+	 * Defaults of approx-jaccard: 128 MinHash values per tag, cut into 32 bands of 4, which finds the pairs above a Jaccard
+	 * similarity of about 0.42. The seed is fixed so that runs on the same input give the same output.
+	 */
+	private static final int DEFAULT_SIGNATURE_LENGTH = 128;
+	private static final int DEFAULT_BANDS = 32;
+	private static final long MINHASH_SEED = 0x5DEECE66DL;
+	private static final int RECALL_SAMPLE = 1000;
+
 	public static void main(String[] args) {
         CommandLineParser parser = new PosixParser();
-        String availableAlgorithms = "dist-matching" +
+        String availableAlgorithms = "proj-matching" +
+                " proj-jaccard" +
+                " proj-overlap" +
+                " approx-jaccard" +
+                " dist-matching" +
                 " dist-mi" +
                 " collab-matching" +
                 " collab-mi" +
@@ -19,17 +32,55 @@ public class Main {
 
         Options options = new Options();
         options.addOption(OptionBuilder.withLongOpt("output-file")
-                                        .withDescription("Output CSV with tag similarities.")
+                                        .withDescription("Output CSV with tag similarities, or the binary similarity file indexed by tag if its name ends in "+SimilarityFile.EXTENSION+".")
                                         .hasArg()
                                         .withArgName("FILE")
                                         .withType(File.class)
                                         .create("o"));
         options.addOption(OptionBuilder.withLongOpt("input-file")
-                                        .withDescription("Input database with tags.")
+                                        .withDescription("Input database with tags, optionally compressed as .gz or .zst.")
                                         .hasArg()
                                         .withType(File.class)
                                         .withArgName("FILE")
                                         .create("i"));
+        options.addOption(OptionBuilder.withLongOpt("sparse")
+                                        .withDescription("Only output the tag pairs that share at least one resource. Supported by the proj-* algorithms and dist-matching.")
+                                        .create("s"));
+        options.addOption(OptionBuilder.withLongOpt("top-k")
+                                        .withDescription("Only output the K most similar tags of every tag, grouped by tag and sorted by similarity, instead of every pair sorted by similarity.")
+                                        .hasArg()
+                                        .withArgName("K")
+                                        .withType(Integer.class)
+                                        .create("k"));
+        options.addOption(OptionBuilder.withLongOpt("min-similarity")
+                                        .withDescription("Only output the tag pairs whose similarity is at least X. proj-jaccard, proj-overlap and proj-matching skip the pairs that can not reach it without comparing their resources.")
+                                        .hasArg()
+                                        .withArgName("X")
+                                        .withType(Double.class)
+                                        .create("m"));
+        options.addOption(OptionBuilder.withLongOpt("signature-length")
+                                        .withDescription("Number of MinHash values per tag for approx-jaccard, the error of its estimates is about 1/sqrt(N). Default: "+DEFAULT_SIGNATURE_LENGTH+".")
+                                        .hasArg()
+                                        .withArgName("N")
+                                        .withType(Integer.class)
+                                        .create("l"));
+        options.addOption(OptionBuilder.withLongOpt("bands")
+                                        .withDescription("Number of LSH bands the signatures of approx-jaccard are cut into. Only the tag pairs that agree on a whole band are compared: more bands find pairs of lower similarity, and more candidates. Default: "+DEFAULT_BANDS+".")
+                                        .hasArg()
+                                        .withArgName("B")
+                                        .withType(Integer.class)
+                                        .create("b"));
+        options.addOption(OptionBuilder.withLongOpt("threads")
+                                        .withDescription("Number of threads that compute the similarities, build the MinHash signatures of approx-jaccard and sort the output. Default: the number of available processors.")
+                                        .hasArg()
+                                        .withArgName("N")
+                                        .withType(Integer.class)
+                                        .create("t"));
+        options.addOption(OptionBuilder.withLongOpt("sort-memory")
+                                        .withDescription("Memory for sorting the output CSV, in bytes or with a k, m or g suffix (e.g. 512m). The pairs are held and spilled in sorted runs within it, and merged with read-ahead buffers sharing it. Default: a quarter of the maximum heap.")
+                                        .hasArg()
+                                        .withArgName("SIZE")
+                                        .create("M"));
 
         HelpFormatter formatter = new HelpFormatter();
         
@@ -37,6 +88,14 @@ public class Main {
         TagSimilarityMeasure algorithm = null;
         String outputFileDir = null;
         String algorithmType = "";
+        boolean sparse = false;
+        int topK = 0;
+        double minSimilarity = Double.NEGATIVE_INFINITY;
+        int signatureLength = DEFAULT_SIGNATURE_LENGTH;
+        int bands = DEFAULT_BANDS;
+        LshIndex lshIndex = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        long sortMemory = ExternalSort.estimateAvailableMemory();
         
         if(args.length < 1){
         	printHelp(formatter, options);
@@ -66,36 +125,70 @@ public class Main {
             	System.out.println("ERROR: An output file needs to be specified.");
             	printHelp(formatter, options);
             }
+            
+            sparse = line.hasOption("s") || line.hasOption("sparse");
 
-        }catch (ParseException exp){
-            System.out.println("Exception: "+exp.toString());
-            System.exit(1);
-        }
-        
-        // Detect the database
+            if(line.hasOption("k")){
+                try {
+                    topK = Integer.parseInt(line.getOptionValue("k"));
+                } catch (NumberFormatException e) {
+                    topK = -1;
+                }
+                if(topK < 1){
+                    System.out.println("ERROR: --top-k needs a positive number of tags, not "+line.getOptionValue("k")+".");
+                    printHelp(formatter, options);
+                }
+            }
 
-        BufferedReader inputReader = null;
-        String firstLine = "";
-        try {
-            inputReader = new BufferedReader(new FileReader(inputFile));
-            firstLine = inputReader.readLine();
-        } catch (FileNotFoundException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+            if(line.hasOption("m")){
+                try {
+                    minSimilarity = Double.parseDouble(line.getOptionValue("m"));
+                } catch (NumberFormatException e) {
+                    System.out.println("ERROR: --min-similarity needs a number, not "+line.getOptionValue("m")+".");
+                    printHelp(formatter, options);
+                }
+            }
 
+            try {
+                if(line.hasOption("l"))
+                    signatureLength = Integer.parseInt(line.getOptionValue("l"));
+                if(line.hasOption("b"))
+                    bands = Integer.parseInt(line.getOptionValue("b"));
+            } catch (NumberFormatException e) {
+                signatureLength = -1;
+            }
+            if(signatureLength < 1 || bands < 1 || bands > signatureLength){
+                System.out.println("ERROR: --bands needs between 1 and --signature-length bands, and --signature-length a positive number of values.");
+                printHelp(formatter, options);
+            }
 
-        String databaseType = "";
-        if(firstLine.split("::").length == 4 ){
-            System.out.println("INFO: Detected database: movielens "+inputFile.getName());
-            databaseType = "movielens";
-        }else if(firstLine.split("\t").length == 5){
-            System.out.println("INFO: Detected database: bibsonomy "+inputFile.getName());
-            databaseType = "bibsonomy";
-        }else{
-            System.out.println("ERROR: Database from inputFile "+inputFile.getName()+" does not seem to be one of available supported Databases. "+supportedDatabases);
-            printHelp(formatter, options);
+            if(line.hasOption("t")){
+                try {
+                    threads = Integer.parseInt(line.getOptionValue("t"));
+                } catch (NumberFormatException e) {
+                    threads = -1;
+                }
+                if(threads < 1){
+                    System.out.println("ERROR: --threads needs a positive number of threads, not "+line.getOptionValue("t")+".");
+                    printHelp(formatter, options);
+                }
+            }
+
+            if(line.hasOption("M")){
+                try {
+                    sortMemory = parseSize(line.getOptionValue("M"));
+                } catch (NumberFormatException e) {
+                    sortMemory = -1;
+                }
+                if(sortMemory < SortedRunWriter.MIN_MEMORY){
+                    System.out.println("ERROR: --sort-memory needs a size of at least "+((SortedRunWriter.MIN_MEMORY >> 20) + 1)+"m, such as 512m, not "+line.getOptionValue("M")+".");
+                    printHelp(formatter, options);
+                }
+            }
+
+        }catch (ParseException exp){
+            System.out.println("Exception: "+exp.toString());
+            System.exit(1);
         }
         
         Database db = null;
@@ -111,80 +204,159 @@ public class Main {
                 break;
             case "collab-matching":
                 db = new CollaborativeDatabase();
-                switch (databaseType){
-                    case "bibsonomy":
-                        db.initializeBibsonomyTags(inputFile.getAbsolutePath());
-                        break;
-                    case "movielens":
-                        db.initializeMovieLensTags(inputFile.getAbsolutePath());
-                        break;
-                }
+                loadDatabase(db, inputFile, supportedDatabases);
                 algorithm = new CollaborativeMatching((CollaborativeDatabase) db);
                 break;
             case "collab-mi":
                 db = new CollaborativeDatabase();
-                switch (databaseType){
-                    case "bibsonomy":
-                        db.initializeBibsonomyTags(inputFile.getAbsolutePath());
-                        break;
-                    case "movielens":
-                        db.initializeMovieLensTags(inputFile.getAbsolutePath());
-                        break;
-                }
+                loadDatabase(db, inputFile, supportedDatabases);
                 algorithm = new CollaborativeMutualInformation((CollaborativeDatabase) db);
                 break;
+            case "proj-matching":
+            case "proj-jaccard":
+            case "proj-overlap":
+                db = new ProjectionalDatabase();
+                loadDatabase(db, inputFile, supportedDatabases);
+                if(algorithmType.equals("proj-matching"))
+                    algorithm = new ProjectionalMatching((ProjectionalDatabase) db);
+                else if(algorithmType.equals("proj-jaccard"))
+                    algorithm = new ProjectionalJaccard((ProjectionalDatabase) db);
+                else
+                    algorithm = new ProjectionalOverlap((ProjectionalDatabase) db);
+                break;
+            case "approx-jaccard":
+                db = new ProjectionalDatabase();
+                loadDatabase(db, inputFile, supportedDatabases);
+                algorithm = new MinHashJaccard((ProjectionalDatabase) db, ((ProjectionalDatabase) db).buildMinHashSignatures(signatureLength, MINHASH_SEED, threads));
+                lshIndex = new LshIndex(((MinHashJaccard) algorithm).getSignatures(), bands);
+                reportRecall(lshIndex, new ProjectionalJaccard((ProjectionalDatabase) db), minSimilarity > 0 ? minSimilarity : lshIndex.getThreshold());
+                break;
             case "dist-matching":
                 db = new ProjectionalDatabase();
-                switch (databaseType){
-                    case "bibsonomy":
-                        db.initializeBibsonomyTags(inputFile.getAbsolutePath());
-                        break;
-                    case "movielens":
-                        db.initializeMovieLensTags(inputFile.getAbsolutePath());
-                        break;
-                }
+                loadDatabase(db, inputFile, supportedDatabases);
                 algorithm = new DistributionalMatching((ProjectionalDatabase) db);
                 break;
             case "dist-mi":
                 db = new DistributionalDatabase();
-                switch (databaseType){
-                    case "bibsonomy":
-                        db.initializeBibsonomyTags(inputFile.getAbsolutePath());
-                        break;
-                    case "movielens":
-                        db.initializeMovieLensTags(inputFile.getAbsolutePath());
-                        break;
-                }
+                loadDatabase(db, inputFile, supportedDatabases);
                 algorithm = new DistributionalMutualInformation((DistributionalDatabase) db);
                 break;
         }
 
         System.out.println(outputFileDir);
-        File temp = null;
-        try {
-            temp = File.createTempFile("tmp"+outputFileDir,".tmp");
 
-        } catch (IOException e) {
-            e.printStackTrace();
+        if(topK > 0){
+            // Every tag keeps its best pairs while they are computed, and they come out already sorted.
+            System.out.println("INFO: Generating CSV with the "+topK+" most similar tags of every tag.");
+            if(null != lshIndex){
+                CSVUtils.generateLshTopKTagSimilarityCSV(new LinkedList<String>(db.getTagsSet()), lshIndex, (IndexedTagSimilarityMeasure) algorithm, new File(outputFileDir), topK, minSimilarity, threads);
+            }else if(sparse && algorithm instanceof CooccurrenceMeasure){
+                CSVUtils.generateSparseTopKTagSimilarityCSV(new LinkedList<String>(db.getTagsSet()), (CooccurrenceMeasure) algorithm, new File(outputFileDir), topK, minSimilarity, threads);
+            }else{
+                if(sparse)
+                    System.out.println("WARNING: "+algorithmType+" does not support --sparse, comparing every tag pair.");
+                CSVUtils.generateTopKTagSimilarityCSV(new LinkedList<String>(db.getTagsSet()), algorithm, new File(outputFileDir), topK, minSimilarity, threads);
+            }
+            return;
         }
 
-        System.out.println("INFO: Generating CSV.");
-        CSVUtils.generateTagSimilarityCSV(new LinkedList<String>(db.getTagsSet()), algorithm, temp);
+        // The binary format is grouped by tag, and a CSV file is written sorted from sorted runs, so neither needs sorting afterwards.
+        File output = new File(outputFileDir);
+        System.out.println(SimilarityFile.isBinary(output) ? "INFO: Generating binary similarity file." : "INFO: Generating CSV.");
+        if(null != lshIndex){
+            CSVUtils.generateLshTagSimilarityCSV(new LinkedList<String>(db.getTagsSet()), lshIndex, (IndexedTagSimilarityMeasure) algorithm, output, minSimilarity, threads, sortMemory);
+        }else if(sparse && algorithm instanceof CooccurrenceMeasure){
+            CSVUtils.generateSparseTagSimilarityCSV(new LinkedList<String>(db.getTagsSet()), (CooccurrenceMeasure) algorithm, output, minSimilarity, threads, sortMemory);
+        }else{
+            if(sparse)
+                System.out.println("WARNING: "+algorithmType+" does not support --sparse, writing every tag pair.");
+            CSVUtils.generateTagSimilarityCSV(new LinkedList<String>(db.getTagsSet()), algorithm, output, minSimilarity, threads, sortMemory);
+        }
+	}
+	
+	/**
+	 * Parses a number of bytes, optionally followed by k, m or g for kibibytes, mebibytes or gibibytes.
+	 */
+	private static long parseSize(String size){
+		String digits = size.trim().toLowerCase();
+		int shift = 0;
+		if(digits.endsWith("k"))
+			shift = 10;
+		else if(digits.endsWith("m"))
+			shift = 20;
+		else if(digits.endsWith("g"))
+			shift = 30;
+		if(shift > 0)
+			digits = digits.substring(0, digits.length() - 1);
+		long value = Long.parseLong(digits);
+		if(value > Long.MAX_VALUE >> shift)
+			throw new NumberFormatException("Too large: "+size);
+		return value << shift;
+	}
+
+	/**
+	 * Loads the input file into an empty database. The first time, the input is parsed and the database is saved to a binary
+	 * snapshot next to it (e.g. tags.dat.ProjectionalDatabase.snapshot); later runs load that snapshot instead, as long as it is
+	 * newer than the input file. The input is only opened, and its format detected from a sample of its lines, when it has to be
+	 * parsed, so a valid snapshot is used even if the input has been moved away.
+	 */
+	private static void loadDatabase(Database db, File inputFile, String supportedDatabases){
+        File snapshot = new File(inputFile.getAbsolutePath()+"."+db.getClass().getSimpleName()+".snapshot");
+
+        if(snapshot.lastModified() > inputFile.lastModified()){
+            try {
+                db.initializeSnapshot(snapshot.getAbsolutePath());
+                System.out.println("INFO: Loaded snapshot "+snapshot.getName());
+                return;
+            } catch (IOException e) {
+                System.out.println("WARNING: Could not load snapshot "+snapshot.getName()+", parsing the input file. "+e.toString());
+            }
+        }
 
+        // Detect the database from a sample of its lines, which the loader then reuses
         try {
-			ExternalSort.mergeSortedFiles(ExternalSort.sortInBatch(temp, new CSVComparator()),
-					new File(outputFileDir));
-		} catch (IOException e) {
-            e.printStackTrace();
-		}
+            TagInput input = TagInput.open(inputFile.getAbsolutePath());
+            try {
+                if(null == input.getFormat()){
+                    System.out.println("ERROR: Database from inputFile "+inputFile.getName()+" does not seem to be one of available supported Databases. "+supportedDatabases);
+                    System.exit(1);
+                }
+                System.out.println("INFO: Detected database: "+input.getFormat().name().toLowerCase()+" "+inputFile.getName());
+                db.initializeTags(input);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            System.out.println("ERROR: Could not read inputFile "+inputFile.getName()+". "+e.toString());
+            System.exit(1);
+        }
 
-        temp.deleteOnExit();
+        try {
+            db.writeSnapshot(snapshot.getAbsolutePath());
+            System.out.println("INFO: Wrote snapshot "+snapshot.getName());
+        } catch (IOException e) {
+            System.out.println("WARNING: Could not write snapshot "+snapshot.getName()+". "+e.toString());
+            snapshot.delete();
+        }
+	}
+	
+	/**
+	 * Prints how many of the pairs above a threshold the LSH index finds, on a sample of the tags compared with the exact Jaccard
+	 * similarity, and how far the MinHash estimates of the pairs found are from it.
+	 */
+	private static void reportRecall(LshIndex index, ProjectionalJaccard exact, double threshold){
+        LshIndex.Recall recall = index.measureRecall(exact, RECALL_SAMPLE, threshold, MINHASH_SEED);
+        System.out.println("INFO: LSH with "+index.getBands()+" bands of "+index.getRows()+" values finds the pairs above a similarity of about "+
+                String.format("%.3f", index.getThreshold())+".");
+        System.out.println("INFO: Estimated recall on "+recall.sampledTags+" sampled tags: "+recall.foundPairs+" of the "+recall.relevantPairs+
+                " pairs with a Jaccard similarity of at least "+String.format("%.3f", threshold)+" are found ("+
+                String.format("%.1f", 100 * recall.getRecall())+"%), with a mean estimate error of "+String.format("%.4f", recall.meanError)+".");
 	}
 	
 	public static void printHelp(HelpFormatter formatter, Options options){
 		System.out.println("Tagrelatedness Help: ");
 		System.out.println("java edu.macalester.tagrelatedness.Main <ALGORITHM> <OPTIONS>");
-		System.out.println("ALGORITHM		one of collab-matching, collab-mi, dist-matching or dist-mi");
+		System.out.println("ALGORITHM		one of proj-matching, proj-jaccard, proj-overlap, approx-jaccard, collab-matching, collab-mi, dist-matching or dist-mi");
 		System.out.println("OPTIONS			see below");
 		formatter.printHelp( "tag-relatedness", options );
 		System.exit(1);
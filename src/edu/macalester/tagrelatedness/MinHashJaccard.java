@@ -0,0 +1,45 @@
+package edu.macalester.tagrelatedness;
+/**
+ * This MinHashJaccard similarity estimates the ProjectionalJaccard similarity of two tags from their MinHash signatures, as the
+ * fraction of equal values in them. It never looks at the resources of the tags, so every pair costs the same whatever the size
+ * of the tags, at the price of an error of about 1/sqrt(length of the signatures).
+ */
+public class MinHashJaccard implements IndexedTagSimilarityMeasure{
+	
+	ProjectionalDatabase db;
+	MinHashSignatures signatures;
+	
+	public MinHashJaccard(ProjectionalDatabase database, MinHashSignatures signatures){
+		db = database;
+		this.signatures = signatures;
+	}
+	/**
+	 * Estimates the similarity between two tags in the ProjectionalDatabase.
+	 * @param tag1 first tag
+	 * @param tag2 second tag
+	 */
+	public double calculateSimilarity(String tag1, String tag2) {
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Estimates the similarity between two tags in the ProjectionalDatabase.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
+		return signatures.estimateJaccard(tag1, tag2);
+	}
+	/**
+	 * Returns the dictionary with the ids of the tags in the ProjectionalDatabase.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
+	/**
+	 * Returns the signatures the similarity is estimated from.
+	 */
+	public MinHashSignatures getSignatures() {
+		return signatures;
+	}
+}
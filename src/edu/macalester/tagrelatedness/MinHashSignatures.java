@@ -0,0 +1,146 @@
+package edu.macalester.tagrelatedness;
+
+import java.util.Arrays;
+/**
+ * MinHash signatures of the resource sets of the tags of an IncidenceMatrix.
+ * <p>
+ * The signature of a tag holds, for each of a number of random hash functions over the resource ids, the smallest hash of its
+ * resources. Two tags get the same minimum from a hash function exactly when the resource with the smallest hash of their
+ * union is one of their shared resources, which happens with a probability equal to their Jaccard similarity. So the fraction of
+ * equal values in two signatures estimates the Jaccard similarity of the tags, with a standard error of at most
+ * 1/(2*sqrt(length)), without comparing their resources.
+ * <p>
+ * The hash functions are h(r) = (a * mix(r) + b) &gt;&gt;&gt; 32 with a random odd a and a random b per function, mix() spreading
+ * the bits of the resource id. The signatures of all tags live in a single int[], length values per tag.
+ * <p>
+ * A tag without resources has no minimum to keep, so its signature is meaningless: estimateJaccard() treats it like the exact
+ * measure does, and an LshIndex never puts it in a bucket.
+ */
+public class MinHashSignatures {
+
+	/**
+	 * Tags whose signatures are built by one task.
+	 */
+	private static final int TAGS_PER_TASK = 1024;
+
+	private final int length;
+	private final int[] signatures; // the signature of tag t is signatures[t*length] up to signatures[(t+1)*length] (exclusive)
+	private final boolean[] empty; // indexed by tag id, true for the tags without resources
+
+	private MinHashSignatures(int length, int[] signatures, boolean[] empty){
+		this.length = length;
+		this.signatures = signatures;
+		this.empty = empty;
+	}
+	/**
+	 * Builds the signatures of every tag of a matrix.
+	 * @param matrix The tags and their resources.
+	 * @param length The number of hash functions, i.e. of values in every signature.
+	 * @param seed The seed of the random hash functions. Signatures can only be compared with signatures of the same seed.
+	 * @param threads The number of threads to use.
+	 * @return The signatures.
+	 */
+	public static MinHashSignatures build(final IncidenceMatrix matrix, final int length, long seed, int threads){
+		if(length < 1)
+			throw new IllegalArgumentException("The signatures need at least one value: "+length);
+		if((long) matrix.getTagCount() * length > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException(matrix.getTagCount()+" signatures of length "+length+" do not fit in an array");
+
+		// The random coefficients of the hash functions, from a splitmix64 sequence.
+		final long[] multipliers = new long[length];
+		final long[] increments = new long[length];
+		long state = seed;
+		for(int i = 0; i < length; i++){
+			state += 0x9E3779B97F4A7C15L;
+			multipliers[i] = mix(state) | 1L;
+			state += 0x9E3779B97F4A7C15L;
+			increments[i] = mix(state);
+		}
+
+		final int tagCount = matrix.getTagCount();
+		final int[] signatures = new int[tagCount * length];
+		final int[] tagResources = matrix.getTagResources();
+		boolean[] empty = new boolean[tagCount];
+		for(int tag = 0; tag < tagCount; tag++)
+			empty[tag] = matrix.getTagDegree(tag) == 0;
+		ParallelForEach.range(0, (tagCount + TAGS_PER_TASK - 1) / TAGS_PER_TASK, threads, new Procedure<Integer>() {
+			public void call(Integer task) throws Exception {
+				long[] minimums = new long[length];
+				int end = Math.min(tagCount, (task + 1) * TAGS_PER_TASK);
+				for(int tag = task * TAGS_PER_TASK; tag < end; tag++){
+					Arrays.fill(minimums, Long.MAX_VALUE);
+					for(int i = matrix.getTagStart(tag); i < matrix.getTagEnd(tag); i++){
+						long mixed = mix(tagResources[i]);
+						for(int j = 0; j < length; j++){
+							long hash = (multipliers[j] * mixed + increments[j]) >>> 32;
+							if(hash < minimums[j])
+								minimums[j] = hash;
+						}
+					}
+					int base = tag * length;
+					for(int j = 0; j < length; j++)
+						signatures[base + j] = (int) minimums[j];
+				}
+			}
+		});
+
+		return new MinHashSignatures(length, signatures, empty);
+	}
+	/**
+	 * The finalizer of splitmix64, a bijection of the longs that spreads every input bit over the output.
+	 */
+	static long mix(long z){
+		z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+		z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+		return z ^ (z >>> 31);
+	}
+	/**
+	 * Estimates the Jaccard similarity of two tags as the fraction of equal values in their signatures. Like ProjectionalJaccard, it
+	 * is 0 if only one of the tags has no resources and NaN if neither has any.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @return The estimated similarity, between 0 and 1, or NaN for two tags without resources.
+	 */
+	public double estimateJaccard(int tag1, int tag2){
+		if(empty[tag1] || empty[tag2])
+			return empty[tag1] && empty[tag2] ? Double.NaN : 0.0;
+		int base1 = tag1 * length;
+		int base2 = tag2 * length;
+		int equal = 0;
+		for(int j = 0; j < length; j++){
+			if(signatures[base1 + j] == signatures[base2 + j])
+				equal++;
+		}
+		return (double) equal / length;
+	}
+	/**
+	 * Tells whether a tag has no resources, and so no meaningful signature.
+	 * @param tag id of the tag
+	 * @return True if the tag has no resources.
+	 */
+	public boolean isEmpty(int tag){
+		return empty[tag];
+	}
+	/**
+	 * Returns the number of values in every signature.
+	 * @return The length of the signatures.
+	 */
+	public int getLength(){
+		return length;
+	}
+	/**
+	 * Returns the number of tags with a signature. Valid tag ids go from 0 to getTagCount()-1.
+	 * @return The number of tags.
+	 */
+	public int getTagCount(){
+		return signatures.length / length;
+	}
+	/**
+	 * Returns the signatures of all tags. The array is shared, it must not be modified.
+	 * @return The values of all signatures, the signature of tag t starting at t*getLength().
+	 */
+	public int[] getSignatures(){
+		return signatures;
+	}
+
+}
@@ -0,0 +1,12 @@
+package edu.macalester.tagrelatedness;
+
+public interface PairProcedure {
+    /**
+     * Call the function with the similarity of a pair of tag ids. If an exception occurs, it must be handled by the caller.
+     * @param tag1
+     * @param tag2
+     * @param similarity
+     * @throws Exception
+     */
+    public void call(int tag1, int tag2, double similarity) throws Exception;
+}
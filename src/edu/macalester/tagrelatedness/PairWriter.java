@@ -0,0 +1,350 @@
+package edu.macalester.tagrelatedness;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+/**
+ * Writes the lines of a tag similarity CSV file, "tag1","tag2",similarity, from many threads at once.
+ * <p>
+ * Every thread formats its lines into a block of bytes of its own, so writing a line takes no lock. The tags are escaped and
+ * encoded once, when the writer is created, and the similarity is laid out with 17 decimals from the digits of Double.toString
+ * instead of a DecimalFormat, giving the same text. Full blocks go through a bounded queue to a single thread that writes them to a FileChannel,
+ * and empty blocks are reused.
+ * <p>
+ * Lines of different threads are interleaved in no particular order, as they were with a shared FileWriter.
+ */
+public class PairWriter implements SimilarityOutput {
+
+	/**
+	 * Size of the blocks of lines, and how many full blocks can wait to be written.
+	 */
+	private static final int BLOCK = 1 << 18;
+	private static final int QUEUED_BLOCKS = 16;
+	private static final int DECIMALS = 17;
+	/**
+	 * The most bytes of lines a writer written from a single thread holds: the block being filled, the queued blocks and the block
+	 * being written.
+	 */
+	static final int SINGLE_THREAD_MEMORY = (QUEUED_BLOCKS + 2) * BLOCK;
+	private static final CSVComparator KEYS = new CSVComparator();
+
+	private final byte[][] tagBytes; // "tag", escaped and encoded, for every tag index
+	private final FileOutputStream stream;
+	private final FileChannel channel;
+	private final BlockingQueue<Block> full = new ArrayBlockingQueue<Block>(QUEUED_BLOCKS);
+	private final ConcurrentLinkedQueue<Block> free = new ConcurrentLinkedQueue<Block>();
+	private final List<Slot> slots = new ArrayList<Slot>();
+	private final Thread writerThread;
+	private volatile IOException error;
+
+	private final ThreadLocal<Slot> slot = new ThreadLocal<Slot>(){
+		protected Slot initialValue(){
+			Slot created = new Slot();
+			synchronized(slots){
+				slots.add(created);
+			}
+			return created;
+		}
+	};
+
+	/**
+	 * Creates the file and starts the thread that writes it.
+	 * @param file The CSV file to be written.
+	 * @param tags The name of every tag, indexed by the tag numbers later given to write().
+	 * @throws IOException If the file can not be created.
+	 */
+	public PairWriter(File file, String[] tags) throws IOException {
+		this(file, encodeTags(tags));
+	}
+	/**
+	 * Creates the file with tags already encoded by encodeTags(), which can be shared by many writers.
+	 */
+	PairWriter(File file, byte[][] tagBytes) throws IOException {
+		this.tagBytes = tagBytes;
+		stream = new FileOutputStream(file);
+		channel = stream.getChannel();
+		writerThread = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "write "+file.getName());
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+	/**
+	 * Escapes and encodes the name of every tag as it is written in the CSV file.
+	 */
+	static byte[][] encodeTags(String[] tags){
+		// Remove newlines, commas and apostrophes that may distort the CSV file when being written.
+		Charset charset = Charset.defaultCharset();
+		byte[][] tagBytes = new byte[tags.length][];
+		for(int i = 0; i < tags.length; i++){
+			if(null != tags[i])
+				tagBytes[i] = ('"' + tags[i].replace("\"", "").replace("\n", "").replace(",", "") + '"').getBytes(charset);
+		}
+		return tagBytes;
+	}
+	/**
+	 * Writes the line of a pair of tags. Can be called from any number of threads at the same time.
+	 * @param tag1 The number of the first tag.
+	 * @param tag2 The number of the second tag.
+	 * @param similarity The similarity between both tags.
+	 * @throws IOException If writing the file failed.
+	 */
+	public void write(int tag1, int tag2, double similarity) throws IOException {
+		Slot current = slot.get();
+		byte[] first = tagBytes[tag1];
+		byte[] second = tagBytes[tag2];
+
+		int textLength = format(similarity, current);
+
+		// Two tags, two commas, the similarity and the newline.
+		int needed = first.length + second.length + textLength + 3;
+		if(current.block.length + needed > current.block.bytes.length){
+			send(current.block);
+			current.block = take(needed);
+		}
+
+		Block block = current.block;
+		byte[] bytes = block.bytes;
+		int position = block.length;
+
+		System.arraycopy(first, 0, bytes, position, first.length);
+		position += first.length;
+		bytes[position++] = ',';
+		System.arraycopy(second, 0, bytes, position, second.length);
+		position += second.length;
+		bytes[position++] = ',';
+		System.arraycopy(current.text, 0, bytes, position, textLength);
+		position += textLength;
+		bytes[position++] = '\n';
+
+		block.length = position;
+	}
+	/**
+	 * Writes the lines still held by the threads and closes the file. Must only be called once every thread is done writing.
+	 * @throws IOException If writing the file failed.
+	 */
+	public void close() throws IOException {
+		try {
+			synchronized(slots){
+				for(Slot open : slots){
+					if(open.block.length > 0)
+						send(open.block);
+				}
+				slots.clear();
+			}
+			send(Block.END);
+			writerThread.join();
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while closing "+e.toString());
+		} finally {
+			stream.close();
+		}
+
+		if(null != error)
+			throw error;
+	}
+	/**
+	 * Writes the blocks in the queue until the end mark comes, on the writer thread.
+	 */
+	private void drain(){
+		try {
+			for(Block block = full.take(); block != Block.END; block = full.take()){
+				if(null == error){
+					try {
+						ByteBuffer buffer = ByteBuffer.wrap(block.bytes, 0, block.length);
+						while(buffer.hasRemaining())
+							channel.write(buffer);
+					} catch (IOException e) {
+						error = e;
+					}
+				}
+				block.length = 0;
+				free.offer(block);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void send(Block block) throws IOException {
+		if(null != error)
+			throw error;
+		try {
+			full.put(block);
+		} catch (InterruptedException e) {
+			throw new InterruptedIOException("Interrupted while writing "+e.toString());
+		}
+	}
+
+	private Block take(int needed){
+		Block block = free.poll();
+		if(null == block || block.bytes.length < needed)
+			block = new Block(Math.max(BLOCK, needed));
+		return block;
+	}
+	/**
+	 * Formats a similarity into the text array of a slot as new DecimalFormat("0.00000000000000000") with RoundingMode.HALF_UP
+	 * would. Like DecimalFormat, it rounds the shortest decimal digits that identify the double, the ones given by Double.toString,
+	 * and only looks at the exact binary value to break a tie. NaN and the infinities are left to the DecimalFormat of the slot.
+	 * @return The number of bytes written.
+	 */
+	static int format(double value, Slot slot){
+		if(Double.isNaN(value) || Double.isInfinite(value)){
+			byte[] text = slot.formatter().format(value).getBytes(Charset.defaultCharset());
+			slot.reserve(text.length);
+			System.arraycopy(text, 0, slot.text, 0, text.length);
+			return text.length;
+		}
+
+		// The value is 0.D * 10^point, D being the significant digits of Double.toString without leading or trailing zeros.
+		String shortest = Double.toString(Math.abs(value));
+		char[] digits = slot.digits;
+		int count = 0;
+		int point = 0;
+		int exponent = 0;
+		for(int i = 0; i < shortest.length(); i++){
+			char c = shortest.charAt(i);
+			if('.' == c){
+				point = count;
+			}else if('E' == c){
+				boolean negative = '-' == shortest.charAt(i + 1);
+				for(int j = negative ? i + 2 : i + 1; j < shortest.length(); j++)
+					exponent = 10 * exponent + shortest.charAt(j) - '0';
+				if(negative)
+					exponent = -exponent;
+				break;
+			}else{
+				digits[count++] = c;
+			}
+		}
+		int first = 0;
+		while(first < count && '0' == digits[first])
+			first++;
+		while(count > first && '0' == digits[count - 1])
+			count--;
+		point += exponent - first;
+		int significant = count - first;
+
+		// The integer and the fraction digits of the fixed notation, after a spare zero for the carry of the rounding.
+		int integerDigits = Math.max(point, 1);
+		int fixedDigits = integerDigits + DECIMALS;
+		byte[] fixed = slot.reserve(fixedDigits + 3);
+		fixed[0] = '0';
+		for(int k = 0; k < fixedDigits; k++){
+			int index = k + point - integerDigits;
+			fixed[k + 1] = (byte) (index >= 0 && index < significant ? digits[first + index] : '0');
+		}
+
+		int dropped = point + DECIMALS; // the index in D of the first digit left out
+		if(dropped >= 0 && dropped < significant && digits[first + dropped] >= '5'){
+			boolean up = digits[first + dropped] > '5' || dropped + 1 < significant;
+			if(!up) // a tie in the shortest digits is broken by the exact value
+				up = new BigDecimal(Math.abs(value)).compareTo(new BigDecimal(shortest)) >= 0;
+			if(up){
+				int i = fixedDigits;
+				while('9' == fixed[i])
+					fixed[i--] = '0';
+				fixed[i]++;
+			}
+		}
+
+		byte[] text = slot.text;
+		int length = 0;
+		if(Double.doubleToRawLongBits(value) < 0)
+			text[length++] = '-';
+		int lead = '0' == fixed[0] ? 1 : 0;
+		for(int i = lead; i <= integerDigits; i++)
+			text[length++] = fixed[i];
+		text[length++] = '.';
+		for(int i = integerDigits + 1; i <= fixedDigits; i++)
+			text[length++] = fixed[i];
+		return length;
+	}
+
+	/**
+	 * Returns a slot without a block of lines, only to format similarities with getKey().
+	 * @return The slot.
+	 */
+	static Slot newFormatSlot(){
+		return new Slot(null);
+	}
+	/**
+	 * Returns the CSVComparator key of the text format() gives a similarity, which similarities that only differ beyond the 17th
+	 * decimal share.
+	 * @param similarity The similarity.
+	 * @param slot The slot whose scratch arrays format the similarity.
+	 * @return The key of the similarity as written.
+	 */
+	static long getKey(double similarity, Slot slot){
+		return KEYS.getKey(slot.text, 0, format(similarity, slot));
+	}
+
+	/**
+	 * The bytes of some lines, the first length bytes of the array.
+	 */
+	private static final class Block {
+
+		static final Block END = new Block(0);
+
+		final byte[] bytes;
+		int length;
+
+		Block(int size){
+			bytes = new byte[size];
+		}
+	}
+
+	/**
+	 * The block a thread is writing to, the scratch arrays of format(), and a DecimalFormat for NaN and the infinities.
+	 */
+	static final class Slot {
+
+		Block block;
+		final char[] digits = new char[32]; // Double.toString never gives more characters
+		byte[] fixed = new byte[64];
+		byte[] text = new byte[64];
+		private DecimalFormat formatter;
+
+		Slot(){
+			this(new Block(BLOCK));
+		}
+
+		private Slot(Block block){
+			this.block = block;
+		}
+
+		/**
+		 * Makes room in the fixed and text arrays for a number of digits, returning the fixed array.
+		 */
+		byte[] reserve(int length){
+			if(text.length < length + 1){
+				fixed = new byte[2 * length];
+				text = new byte[2 * length + 1];
+			}
+			return fixed;
+		}
+
+		DecimalFormat formatter(){
+			if(null == formatter){
+				formatter = new DecimalFormat("0.00000000000000000");
+				formatter.setRoundingMode(RoundingMode.HALF_UP);
+			}
+			return formatter;
+		}
+	}
+
+}
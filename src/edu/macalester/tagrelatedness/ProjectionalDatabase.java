@@ -1,13 +1,7 @@
 package edu.macalester.tagrelatedness;
 
-import java.io.BufferedInputStream;
-import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -18,14 +12,19 @@ import java.util.Set;
  */
 public class ProjectionalDatabase implements Database{
 
-	protected HashMap<String, HashSet<String>> tagsMap;
-	protected HashMap<String, HashSet<String>> resourcesMap;
-	private int totalEntries;
+	protected IdDictionary tagDictionary;
+	protected IdDictionary resourceDictionary;
+	// Associations added since the last freeze(), kept as two parallel lists of ids until the matrix is built.
+	protected IntArrayList pendingTags;
+	protected IntArrayList pendingResources;
+	protected IncidenceMatrix matrix;
 	
 	public ProjectionalDatabase(){
-		tagsMap = new HashMap<String, HashSet<String>>();
-		resourcesMap = new HashMap<String, HashSet<String>>();
-		totalEntries = 0;
+		tagDictionary = new IdDictionary();
+		resourceDictionary = new IdDictionary();
+		pendingTags = new IntArrayList();
+		pendingResources = new IntArrayList();
+		matrix = null;
 	}
 	/**
 	 * Adds a tag to the projectional database.
@@ -33,82 +32,114 @@ public class ProjectionalDatabase implements Database{
 	 * @param tagName The name of the tag to be added.
 	 */
 	public void addTag(String resourceName, String tagName){
+		addTag(resourceDictionary.intern(resourceName), tagDictionary.intern(tagName));
+	}
+	/**
+	 * Adds a tag to the projectional database using ids already interned in the resource and tag dictionaries.
+	 * Tags can not be added anymore once the database has been frozen.
+	 * @param resource The id of the resource to be added.
+	 * @param tag The id of the tag to be added.
+	 */
+	public void addTag(int resource, int tag){
+		if(null != matrix)
+			throw new IllegalStateException("Can not add tags to a frozen ProjectionalDatabase.");
 		
-		HashSet<String> tagsSet = resourcesMap.get(resourceName);
-		
-		if(null == tagsSet)
-			tagsSet = new HashSet<String>();
-		
-		if(!tagsSet.contains(tagName))
-			totalEntries++; // if this is a new tag added, increment the number of total entries
-		
-		tagsSet.add(tagName);
-		resourcesMap.put(resourceName, tagsSet);
-		
-		HashSet<String> resourcesSet = tagsMap.get(tagName);
-		
-		if(null == resourcesSet)
-			resourcesSet = new HashSet<String>();
-		
-		resourcesSet.add(resourceName);	
-		tagsMap.put(tagName, resourcesSet);
+		pendingResources.add(resource);
+		pendingTags.add(tag);
+	}
+	/**
+	 * Builds the read only IncidenceMatrix with all the tags added so far. It is called at the end of initializeMovieLensTags and
+	 * initializeBibsonomyTags, and by getIncidenceMatrix() if tags were added by hand. After this the database can not be modified.
+	 */
+	public synchronized void freeze(){
+		if(null != matrix)
+			return;
 		
+		matrix = IncidenceMatrix.build(tagDictionary.size(), resourceDictionary.size(), pendingTags, pendingResources);
+		pendingTags = null;
+		pendingResources = null;
 	}
 	/**
 	 * Get a set containing all the tags added to the projectional database.
 	 * @returns a set with all the tags in the database
 	 */
 	public Set<String> getTagsSet(){
-		return tagsMap.keySet();
+		return tagDictionary.getNameSet();
 	}
 	/**
 	 * Gets a set containing all the resources added to the projectional database.
 	 * @return a set with all the resources that have been added to the database
 	 */
 	public Set<String> getResourcesSet(){
-		return resourcesMap.keySet();
+		return resourceDictionary.getNameSet();
+	}
+	/**
+	 * Returns the dictionary that maps every tag to its id.
+	 * @return The tag dictionary of the database.
+	 */
+	public IdDictionary getTagDictionary(){
+		return tagDictionary;
+	}
+	/**
+	 * Returns the dictionary that maps every resource to its id.
+	 * @return The resource dictionary of the database.
+	 */
+	public IdDictionary getResourceDictionary(){
+		return resourceDictionary;
+	}
+	/**
+	 * Returns the number of distinct resources in the database.
+	 * @return The number of resources.
+	 */
+	public int getResourceCount(){
+		return resourceDictionary.size();
 	}
 	/**
-	 * Returns a HashMap with tags as keys and a HashSet of the resources associated with such tag as values.
-	 * @return A HashMap with tags and keys and a HashSet of the resources of such tag as values.
+	 * Returns the frozen tag/resource incidence matrix of the database, freezing it first if needed.
+	 * @return The IncidenceMatrix with the tags and resources of the database.
 	 */
-	public HashMap<String, HashSet<String>> getTagsMap(){
-		return tagsMap;
+	public IncidenceMatrix getIncidenceMatrix(){
+		if(null == matrix)
+			freeze();
+		return matrix;
 	}
 	/**
-	 * Returns a HashMap with resources as keys and a HashSet of the tags associated with such resource as values.
-	 * @return A HashMap with resources as keys and an HashSet of the tags of such resource as values.
+	 * Builds the MinHash signatures of the resources of every tag, to estimate their Jaccard similarity or to find similar tags
+	 * with an LshIndex.
+	 * @param length The number of values in every signature.
+	 * @param seed The seed of the random hash functions.
+	 * @param threads The number of threads to use.
+	 * @return The signatures of the tags, indexed by tag id.
 	 */
-	public HashMap<String, HashSet<String>> getResourcesMap(){
-		return resourcesMap;
+	public MinHashSignatures buildMinHashSignatures(int length, long seed, int threads){
+		return MinHashSignatures.build(getIncidenceMatrix(), length, seed, threads);
 	}
 	/**
 	 * Adds all the tags from a specified movie lens tags.dat file.
 	 * @param tagsDataFileDir The directory of the tags.dat file to be added to the database.
 	 */
 	public void initializeMovieLensTags(String tagsDataFileDir){
-		
-		FileInputStream fileStream;
-		BufferedInputStream bufferedStream;
-		BufferedReader readerStream;
-		
+		initializeTags(tagsDataFileDir, TagFileFormat.MOVIELENS);
+	}
+	/**
+	 * Adds all the tags from a specified Bibsonomy tas file.
+	 * @param dir The directory of the Bibsonomy tas file to be added.
+	 */
+	public void initializeBibsonomyTags(String dir){
+		initializeTags(dir, TagFileFormat.BIBSONOMY);
+	}
+	/**
+	 * Adds all the tags of a tag file, reading it with a TagFileReader, and freezes the database.
+	 * @param dir The directory of the tag file.
+	 * @param format The layout of the tag file.
+	 */
+	private void initializeTags(String dir, TagFileFormat format){
 		try {
-			
-			fileStream = new FileInputStream(tagsDataFileDir);
-			bufferedStream = new BufferedInputStream(fileStream);
-			readerStream = new BufferedReader(new InputStreamReader(bufferedStream));
-			
-			while(readerStream.ready()){
-				
-				String line = readerStream.readLine();	
-				
-				String tagInfo[] = line.split("::");
-				
-				String resource = tagInfo[1];
-				String tag = tagInfo[2];
-				
-				if(tagInfo.length == 4)
-					addTag(resource, tag);
+			TagInput input = TagInput.open(dir, format);
+			try {
+				initializeTags(input);
+			} finally {
+				input.close();
 			}
 			
 		} catch (FileNotFoundException e) {
@@ -120,38 +151,74 @@ public class ProjectionalDatabase implements Database{
 		}
 	}
 	/**
-	 * Adds all the tags from a specified Bibsonomy tas file.
-	 * @param dir The directory of the Bibsonomy tas file to be added.
+	 * Adds all the tags of an open tag file, whose format is already known, and freezes the database.
+	 * @param input The open tag file.
+	 * @throws IOException If the file can not be read.
 	 */
-	public void initializeBibsonomyTags(String dir){
-		FileInputStream fileStream;
-		BufferedInputStream bufferedStream;
-		BufferedReader readerStream;
+	public void initializeTags(TagInput input) throws IOException{
+		TagFileReader.read(input, null, resourceDictionary, tagDictionary, new TagFileReader.BulkHandler(){
+			public void addTag(int user, int resource, int tag){
+				ProjectionalDatabase.this.addTag(resource, tag);
+			}
+			public int reserve(int count){
+				if(null != matrix)
+					throw new IllegalStateException("Can not add tags to a frozen ProjectionalDatabase.");
+				pendingTags.grow(count);
+				return pendingResources.grow(count);
+			}
+			public void setTags(int position, IntArrayList users, IntArrayList resources, IntArrayList tags){
+				pendingResources.set(position, resources);
+				pendingTags.set(position, tags);
+			}
+		});
+		
+		freeze();
+	}
+	/**
+	 * Loads the database from a snapshot written by writeSnapshot, instead of parsing a tags file. The arrays and dictionaries are
+	 * copied into the heap, see Snapshot.
+	 * @param dir The path of the snapshot file.
+	 * @throws IOException If the snapshot can not be read or does not hold a valid database, in which case the database is left untouched.
+	 */
+	public void initializeSnapshot(String dir) throws IOException{
+		Snapshot.Reader snapshot = new Snapshot.Reader(dir, Snapshot.PROJECTIONAL);
 		
 		try {
-			fileStream = new FileInputStream(dir);
-			bufferedStream = new BufferedInputStream(fileStream);
-			readerStream = new BufferedReader(new InputStreamReader(bufferedStream));
+			IdDictionary tags = snapshot.readDictionary();
+			IdDictionary resources = snapshot.readDictionary();
+			IncidenceMatrix frozen = IncidenceMatrix.read(snapshot, tags.size(), resources.size());
+			snapshot.finish();
 			
-			while(readerStream.ready()){
+			synchronized(this){
+				if(null != matrix || pendingTags.size() > 0)
+					throw new IllegalStateException("Can not load a snapshot into a ProjectionalDatabase that already has tags.");
 				
-				String line = readerStream.readLine();	
-				
-				String tagInfo[] = line.split("\t");
-				
-				String tag = tagInfo[1];
-				String resource = tagInfo[2];
-				
-				if(tagInfo.length == 5)
-					addTag(resource, tag);
+				tagDictionary = tags;
+				resourceDictionary = resources;
+				pendingTags = null;
+				pendingResources = null;
+				matrix = frozen;
 			}
-			
-		} catch (FileNotFoundException e) {
-			System.out.println("File not found exception: "+e.toString());
-			e.printStackTrace();
-		} catch (IOException e) {
-			System.out.println("Input output exception: "+e.toString());
-			e.printStackTrace();
+		} finally {
+			snapshot.close();
+		}
+	}
+	/**
+	 * Writes the database to a snapshot file, freezing it first if needed.
+	 * @param dir The path of the snapshot file.
+	 * @throws IOException If the snapshot can not be written.
+	 */
+	public void writeSnapshot(String dir) throws IOException{
+		IncidenceMatrix frozen = getIncidenceMatrix();
+		Snapshot.Writer snapshot = new Snapshot.Writer(dir, Snapshot.PROJECTIONAL);
+		
+		try {
+			snapshot.writeDictionary(tagDictionary);
+			snapshot.writeDictionary(resourceDictionary);
+			frozen.write(snapshot);
+			snapshot.finish();
+		} finally {
+			snapshot.close();
 		}
 	}
 	/**
@@ -159,7 +226,7 @@ public class ProjectionalDatabase implements Database{
 	 * @return An int with the size of entries in the database.
 	 */
 	public int getTotalEntries() {
-		return totalEntries;
+		return getIncidenceMatrix().getEntryCount();
 	}
 
 
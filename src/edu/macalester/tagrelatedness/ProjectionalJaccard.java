@@ -1,13 +1,12 @@
 package edu.macalester.tagrelatedness;
 
-import java.util.HashSet;
 /**
  * This ProjectionalJaccard similarity determines tag similarity by making each user have a vote on a Projectionaldatabase.
  * For more reference on the construction of this algorithm look at: www2009.org/proceedings/pdf/p641.pdf
  * @author alan
  *
  */
-public class ProjectionalJaccard implements TagSimilarityMeasure{
+public class ProjectionalJaccard implements CooccurrenceMeasure, BoundedSimilarityMeasure{
 	
 	ProjectionalDatabase db;
 	
@@ -19,20 +18,63 @@ public class ProjectionalJaccard implements TagSimilarityMeasure{
 	 * @param tag1 first tag
 	 * @param tag2 second tag
 	 */
-	@SuppressWarnings("unchecked")
 	public double calculateSimilarity(String tag1, String tag2) {
-		HashSet<String> resourceSet1 = (HashSet<String>) db.getTagsMap().get(tag1).clone();
-		HashSet<String> resourceSet2 = (HashSet<String>) db.getTagsMap().get(tag2).clone();
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Calculates the similarity between two tags in the ProjectionalDatabase.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
 		
-		double sum = resourceSet1.size() + resourceSet2.size();
+		double sum = matrix.getTagDegree(tag1) + matrix.getTagDegree(tag2);
 		
-		resourceSet1.retainAll(resourceSet2);
-		double intersection =  resourceSet1.size();
+		double intersection = matrix.countSharedResources(tag1, tag2);
 		
 		double union = sum - intersection;
 		
 		return intersection/union;
 	}
-
-
+	/**
+	 * Calculates the similarity between two tags from the number of resources they share.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @param sharedResources the number of resources of both tags
+	 */
+	public double calculateSimilarity(int tag1, int tag2, int sharedResources) {
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
+		
+		double intersection = sharedResources;
+		double union = matrix.getTagDegree(tag1) + matrix.getTagDegree(tag2) - intersection;
+		
+		return intersection/union;
+	}
+	/**
+	 * Returns an upper bound of the similarity from the number of resources of each tag: at best the resources of the smaller tag
+	 * are all shared and the union is the larger tag, so the similarity is at most min/max.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double getUpperBound(int tag1, int tag2) {
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
+		int size1 = matrix.getTagDegree(tag1);
+		int size2 = matrix.getTagDegree(tag2);
+		
+		return (double) Math.min(size1, size2) / Math.max(size1, size2);
+	}
+	/**
+	 * Returns the dictionary with the ids of the tags in the ProjectionalDatabase.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
+	/**
+	 * Returns the frozen incidence matrix of the database.
+	 */
+	public IncidenceMatrix getIncidenceMatrix() {
+		return db.getIncidenceMatrix();
+	}
 }
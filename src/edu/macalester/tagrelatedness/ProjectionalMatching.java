@@ -1,13 +1,12 @@
 package edu.macalester.tagrelatedness;
 
-import java.util.HashSet;
 /**
  * This ProjectionalMatching similarity determines tag similarity by making each user have a vote on a Projectionaldatabase.
  * For more reference on the construction of this algorithm look at: www2009.org/proceedings/pdf/p641.pdf
  * @author alan
  *
  */
-public class ProjectionalMatching implements TagSimilarityMeasure{
+public class ProjectionalMatching implements CooccurrenceMeasure, BoundedSimilarityMeasure{
 	
 	ProjectionalDatabase db;
 	
@@ -19,12 +18,47 @@ public class ProjectionalMatching implements TagSimilarityMeasure{
 	 * @param tag1 first tag
 	 * @param tag2 second tag
 	 */
-	@SuppressWarnings("unchecked")
 	public double calculateSimilarity(String tag1, String tag2) {
-		HashSet<String> resourceSet1 = (HashSet<String>) db.getTagsMap().get(tag1).clone();
-		HashSet<String> resourceSet2 = (HashSet<String>) db.getTagsMap().get(tag2).clone();
-		
-		resourceSet1.retainAll(resourceSet2);
-		return resourceSet1.size();
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Calculates the similarity between two tags in the ProjectionalDatabase.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
+		return db.getIncidenceMatrix().countSharedResources(tag1, tag2);
+	}
+	/**
+	 * Calculates the similarity between two tags that share resources, which is the number of shared resources itself.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @param sharedResources the number of resources of both tags
+	 */
+	public double calculateSimilarity(int tag1, int tag2, int sharedResources) {
+		return sharedResources;
+	}
+	/**
+	 * Returns an upper bound of the similarity from the number of resources of each tag: they can not share more resources
+	 * than the smaller tag has.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double getUpperBound(int tag1, int tag2) {
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
+		return Math.min(matrix.getTagDegree(tag1), matrix.getTagDegree(tag2));
+	}
+	/**
+	 * Returns the dictionary with the ids of the tags in the ProjectionalDatabase.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
+	/**
+	 * Returns the frozen incidence matrix of the database.
+	 */
+	public IncidenceMatrix getIncidenceMatrix() {
+		return db.getIncidenceMatrix();
 	}
 }
@@ -1,8 +1,6 @@
 package edu.macalester.tagrelatedness;
 
-import java.util.HashSet;
-
-public class ProjectionalOverlap implements TagSimilarityMeasure{
+public class ProjectionalOverlap implements CooccurrenceMeasure, BoundedSimilarityMeasure{
 	
 	ProjectionalDatabase db;
 	/**
@@ -19,18 +17,57 @@ public class ProjectionalOverlap implements TagSimilarityMeasure{
 	 * @param tag1 first tag
 	 * @param tag2 second tag
 	 */
-	@SuppressWarnings("unchecked")
 	public double calculateSimilarity(String tag1, String tag2) {
-		HashSet<String> resourceSet1 = (HashSet<String>) db.getTagsMap().get(tag1).clone();
-		HashSet<String> resourceSet2 = (HashSet<String>) db.getTagsMap().get(tag2).clone();
+		IdDictionary tags = db.getTagDictionary();
+		return calculateSimilarity(tags.getId(tag1), tags.getId(tag2));
+	}
+	/**
+	 * Calculates the similarity between two tags in the ProjectionalDatabase.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double calculateSimilarity(int tag1, int tag2) {
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
+		int size1 = matrix.getTagDegree(tag1);
+		int size2 = matrix.getTagDegree(tag2);
 		
-		double minimum = resourceSet1.size() - resourceSet2.size() > 0 ? resourceSet2.size() : resourceSet1.size();
+		double minimum = size1 - size2 > 0 ? size2 : size1;
 		
-		resourceSet1.retainAll(resourceSet2);
-		double intersection =  resourceSet1.size();
+		double intersection = matrix.countSharedResources(tag1, tag2);
 		
 		return intersection/minimum;
 	}
-
-
+	/**
+	 * Calculates the similarity between two tags from the number of resources they share.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @param sharedResources the number of resources of both tags
+	 */
+	public double calculateSimilarity(int tag1, int tag2, int sharedResources) {
+		IncidenceMatrix matrix = db.getIncidenceMatrix();
+		double minimum = Math.min(matrix.getTagDegree(tag1), matrix.getTagDegree(tag2));
+		
+		return sharedResources/minimum;
+	}
+	/**
+	 * Returns an upper bound of the similarity. The shared resources are at most the resources of the smaller tag, so the
+	 * similarity is never more than 1 whatever the sizes of the tags.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 */
+	public double getUpperBound(int tag1, int tag2) {
+		return 1.0;
+	}
+	/**
+	 * Returns the dictionary with the ids of the tags in the ProjectionalDatabase.
+	 */
+	public IdDictionary getTagDictionary() {
+		return db.getTagDictionary();
+	}
+	/**
+	 * Returns the frozen incidence matrix of the database.
+	 */
+	public IncidenceMatrix getIncidenceMatrix() {
+		return db.getIncidenceMatrix();
+	}
 }
@@ -0,0 +1,280 @@
+package edu.macalester.tagrelatedness;
+
+import java.util.Set;
+/**
+ * Intersection kernels shared by the similarity measures. None of the methods allocate, so they can be called for every tag pair
+ * without producing garbage.
+ * Sorted int[] ranges are intersected with a linear merge when both sides have a similar size, and with a galloping (exponential)
+ * search of the larger side when one side is much smaller than the other. Hash sets are intersected by probing the larger set with
+ * every element of the smaller one.
+ */
+public final class SetIntersection {
+
+	/**
+	 * If one range is this many times longer than the other one, galloping through it is cheaper than merging.
+	 */
+	private static final int GALLOP_RATIO = 32;
+	
+	private SetIntersection(){
+	}
+	/**
+	 * Counts the values present in two sorted ranges without repeated values.
+	 * @param a The array holding the first range.
+	 * @param aFrom The start of the first range (inclusive).
+	 * @param aTo The end of the first range (exclusive).
+	 * @param b The array holding the second range.
+	 * @param bFrom The start of the second range (inclusive).
+	 * @param bTo The end of the second range (exclusive).
+	 * @return The size of the intersection of both ranges.
+	 */
+	public static int count(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo){
+		int aSize = aTo - aFrom;
+		int bSize = bTo - bFrom;
+		
+		if(aSize == 0 || bSize == 0)
+			return 0;
+		if(aSize * (long) GALLOP_RATIO < bSize)
+			return countGalloping(a, aFrom, aTo, b, bFrom, bTo);
+		if(bSize * (long) GALLOP_RATIO < aSize)
+			return countGalloping(b, bFrom, bTo, a, aFrom, aTo);
+		
+		return countMerging(a, aFrom, aTo, b, bFrom, bTo);
+	}
+	/**
+	 * Writes the values present in two sorted ranges without repeated values into an output array.
+	 * @param a The array holding the first range.
+	 * @param aFrom The start of the first range (inclusive).
+	 * @param aTo The end of the first range (exclusive).
+	 * @param b The array holding the second range.
+	 * @param bFrom The start of the second range (inclusive).
+	 * @param bTo The end of the second range (exclusive).
+	 * @param out The array receiving the intersection, in increasing order. It must have room for the smaller range.
+	 * @return The number of values written to out.
+	 */
+	public static int intersect(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, int[] out){
+		int aSize = aTo - aFrom;
+		int bSize = bTo - bFrom;
+		int shared = 0;
+		
+		if(bSize * (long) GALLOP_RATIO < aSize){
+			int[] swap = a; a = b; b = swap;
+			int from = aFrom; aFrom = bFrom; bFrom = from;
+			int to = aTo; aTo = bTo; bTo = to;
+		}else if(aSize * (long) GALLOP_RATIO >= bSize){
+			int i = aFrom, j = bFrom;
+			while(i < aTo && j < bTo){
+				if(a[i] < b[j]){
+					i++;
+				}else if(a[i] > b[j]){
+					j++;
+				}else{
+					out[shared++] = a[i];
+					i++;
+					j++;
+				}
+			}
+			return shared;
+		}
+		
+		int j = bFrom;
+		for(int i = aFrom; i < aTo && j < bTo; i++){
+			j = gallop(b, j, bTo, a[i]);
+			if(j < bTo && b[j] == a[i])
+				out[shared++] = a[i];
+		}
+		return shared;
+	}
+	/**
+	 * Adds up weights[v] for every value v present in two sorted ranges without repeated values.
+	 * The weights are added in increasing order of v, whatever the sizes of the ranges.
+	 * @param a The array holding the first range.
+	 * @param aFrom The start of the first range (inclusive).
+	 * @param aTo The end of the first range (exclusive).
+	 * @param b The array holding the second range.
+	 * @param bFrom The start of the second range (inclusive).
+	 * @param bTo The end of the second range (exclusive).
+	 * @param weights The weight of every value.
+	 * @return The sum of the weights of the intersection of both ranges.
+	 */
+	public static double sumWeights(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo, double[] weights){
+		int aSize = aTo - aFrom;
+		int bSize = bTo - bFrom;
+		
+		if(aSize == 0 || bSize == 0)
+			return 0.0;
+		if(bSize * (long) GALLOP_RATIO < aSize){
+			int[] swap = a; a = b; b = swap;
+			int from = aFrom; aFrom = bFrom; bFrom = from;
+			int to = aTo; aTo = bTo; bTo = to;
+		}else if(aSize * (long) GALLOP_RATIO >= bSize){
+			double sum = 0.0;
+			int i = aFrom, j = bFrom;
+			while(i < aTo && j < bTo){
+				if(a[i] < b[j]){
+					i++;
+				}else if(a[i] > b[j]){
+					j++;
+				}else{
+					sum += weights[a[i]];
+					i++;
+					j++;
+				}
+			}
+			return sum;
+		}
+		
+		double sum = 0.0;
+		int j = bFrom;
+		for(int i = aFrom; i < aTo && j < bTo; i++){
+			j = gallop(b, j, bTo, a[i]);
+			if(j < bTo && b[j] == a[i])
+				sum += weights[a[i]];
+		}
+		return sum;
+	}
+	/**
+	 * Merges two histograms stored as sorted ranges of keys with their counts at the same positions, adding up the smaller of
+	 * the two counts of every key present in both.
+	 * @param a The array holding the keys of the first histogram.
+	 * @param aFrom The start of the first histogram (inclusive).
+	 * @param aTo The end of the first histogram (exclusive).
+	 * @param aCounts The counts of the first histogram, aligned with a.
+	 * @param b The array holding the keys of the second histogram.
+	 * @param bFrom The start of the second histogram (inclusive).
+	 * @param bTo The end of the second histogram (exclusive).
+	 * @param bCounts The counts of the second histogram, aligned with b.
+	 * @return The sum of min(count in a, count in b) over the shared keys.
+	 */
+	public static long sumMinimums(int[] a, int aFrom, int aTo, int[] aCounts, int[] b, int bFrom, int bTo, int[] bCounts){
+		int i = aFrom, j = bFrom;
+		long sum = 0;
+		
+		while(i < aTo && j < bTo){
+			if(a[i] < b[j]){
+				i++;
+			}else if(a[i] > b[j]){
+				j++;
+			}else{
+				sum += Math.min(aCounts[i], bCounts[j]);
+				i++;
+				j++;
+			}
+		}
+		
+		return sum;
+	}
+	/**
+	 * Counts the values present in two bitsets, a word at a time.
+	 * @param a The words of the first bitset, value v is bit (v % 64) of word v / 64.
+	 * @param b The words of the second bitset.
+	 * @return The number of bits set in both bitsets.
+	 */
+	public static int count(long[] a, long[] b){
+		int words = Math.min(a.length, b.length);
+		int shared = 0;
+		
+		for(int i = 0; i < words; i++)
+			shared += Long.bitCount(a[i] & b[i]);
+		
+		return shared;
+	}
+	/**
+	 * Counts the values of a sorted range that are set in a bitset.
+	 * @param a The array holding the range.
+	 * @param aFrom The start of the range (inclusive).
+	 * @param aTo The end of the range (exclusive).
+	 * @param bits The words of the bitset, value v is bit (v % 64) of word v / 64.
+	 * @return The size of the intersection of the range and the bitset.
+	 */
+	public static int count(int[] a, int aFrom, int aTo, long[] bits){
+		int shared = 0;
+		
+		for(int i = aFrom; i < aTo; i++){
+			int word = a[i] >>> 6;
+			if(word < bits.length && (bits[word] & (1L << a[i])) != 0)
+				shared++;
+		}
+		
+		return shared;
+	}
+	/**
+	 * Counts the elements present in two sets by probing the larger one with the elements of the smaller one.
+	 * @param a The first set.
+	 * @param b The second set.
+	 * @return The size of the intersection of both sets.
+	 */
+	public static <T> int count(Set<T> a, Set<T> b){
+		Set<T> smaller = a.size() < b.size() ? a : b;
+		Set<T> larger = smaller == a ? b : a;
+		int shared = 0;
+		
+		for(T element : smaller){
+			if(larger.contains(element))
+				shared++;
+		}
+		
+		return shared;
+	}
+	
+	private static int countMerging(int[] a, int aFrom, int aTo, int[] b, int bFrom, int bTo){
+		int i = aFrom, j = bFrom;
+		int shared = 0;
+		
+		while(i < aTo && j < bTo){
+			if(a[i] < b[j]){
+				i++;
+			}else if(a[i] > b[j]){
+				j++;
+			}else{
+				shared++;
+				i++;
+				j++;
+			}
+		}
+		
+		return shared;
+	}
+	
+	private static int countGalloping(int[] small, int smallFrom, int smallTo, int[] large, int largeFrom, int largeTo){
+		int j = largeFrom;
+		int shared = 0;
+		
+		for(int i = smallFrom; i < smallTo && j < largeTo; i++){
+			j = gallop(large, j, largeTo, small[i]);
+			if(j < largeTo && large[j] == small[i])
+				shared++;
+		}
+		
+		return shared;
+	}
+	/**
+	 * Finds the first position in the sorted range [from, to) holding a value greater or equal than the key, doubling the step until the key is passed
+	 * and then binary searching the last step.
+	 */
+	private static int gallop(int[] array, int from, int to, int key){
+		if(from >= to || array[from] >= key)
+			return from;
+		
+		int low = from; // array[low] < key always holds
+		int step = 1;
+		int high = from + step;
+		while(high < to && array[high] < key){
+			low = high;
+			step <<= 1;
+			high = from + step;
+		}
+		if(high > to)
+			high = to;
+		
+		// array[low] < key and (high == to or array[high] >= key)
+		while(high - low > 1){
+			int middle = (low + high) >>> 1;
+			if(array[middle] < key)
+				low = middle;
+			else
+				high = middle;
+		}
+		return high;
+	}
+
+}
@@ -0,0 +1,663 @@
+package edu.macalester.tagrelatedness;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+/**
+ * The binary similarity format: the similarities of tag pairs grouped by tag, so a reader gets every score of a tag with a single
+ * read instead of parsing a CSV file with a 17 digit decimal per pair.
+ * <p>
+ * After a header (magic number, format version, flags, number of tags and number of records) comes one block per tag, in tag
+ * order. The block of a tag holds its records in two columns, first the ids of the other tags as ints and then the similarities as
+ * doubles, sorted from the most similar to the least similar, ties by tag id. Then come the index, the number of records before
+ * every block as tagCount+1 longs, and the dictionary with the UTF-8 name of every tag. The file ends with the offsets of the index
+ * and of the dictionary and the magic number again, which is only written once the rest is complete. Everything is little endian,
+ * as in a Snapshot.
+ * <p>
+ * In a symmetric file, the usual one, every pair is stored in the blocks of both of its tags. Otherwise it is only stored in the
+ * block of its first tag, as for the k most similar tags of every tag.
+ */
+public final class SimilarityFile {
+
+	/**
+	 * Files whose name ends with this are written in the binary format instead of as CSV.
+	 */
+	public static final String EXTENSION = ".sim";
+
+	private static final int MAGIC = 0x5453494D; // "TSIM"
+	private static final int VERSION = 1;
+	private static final int SYMMETRIC = 1;
+	private static final int HEADER = 24;
+	private static final int TRAILER = 20;
+	private static final int RECORD = 12; // an int and a double
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	private SimilarityFile(){
+	}
+	/**
+	 * Tells whether a file is meant to hold the binary format, from its name.
+	 * @param file The file.
+	 * @return True if the name of the file ends with EXTENSION.
+	 */
+	public static boolean isBinary(File file){
+		return file.getName().endsWith(EXTENSION);
+	}
+
+	/**
+	 * Writes a similarity file from any number of threads.
+	 * <p>
+	 * The pairs come in no particular order, so every thread holds them in arrays of its own, counting the records of every tag.
+	 * When its arrays are full, the thread sorts its records by the tag whose block they go to and appends them as a sorted run to
+	 * a temporary file next to the output. close() then knows where every block goes, and merges the runs tag after tag, so every
+	 * block is built, sorted and appended to the output as soon as its records are read, and every record is read once. When there
+	 * are more runs than the memory budget can read at once, consecutive runs are first merged into longer ones, in as many passes
+	 * as needed.
+	 * <p>
+	 * The memory budget is shared by the arrays of the threads while the pairs are written, and by the read buffers of the runs
+	 * while they are merged.
+	 */
+	public static final class Writer implements SimilarityOutput {
+
+		/**
+		 * Size of the output buffer.
+		 */
+		private static final int BUFFER = 1 << 20;
+		private static final int SPILL_RECORD = 16; // the tag of the block, the other tag and the similarity
+		/**
+		 * Bytes of every pair held by a thread: the pair, and the two records it makes in a run.
+		 */
+		private static final int PAIR_MEMORY = 4 + 4 + 8 + 2 * SPILL_RECORD;
+		private static final int MIN_PAIRS = 1 << 14;
+		private static final int MAX_PAIRS = 1 << 24;
+		/**
+		 * Bounds of the bytes read from a run at a time by the merge.
+		 */
+		private static final int MIN_READ = 1 << 16;
+		private static final int MAX_READ = 1 << 22;
+
+		private final File file;
+		private final String[] tags;
+		private final boolean symmetric;
+		private final long memory;
+		private final int slotPairs;
+		private File spill;
+		private RandomAccessFile spillFile;
+		private FileChannel spillChannel;
+		private List<long[]> runs = new ArrayList<long[]>();
+		private final List<Slot> slots = new ArrayList<Slot>();
+		private volatile IOException error;
+
+		private final ThreadLocal<Slot> slot = new ThreadLocal<Slot>(){
+			protected Slot initialValue(){
+				Slot created = new Slot(tags.length, slotPairs, symmetric);
+				synchronized(slots){
+					slots.add(created);
+				}
+				return created;
+			}
+		};
+
+		/**
+		 * Starts a similarity file written by a single thread, within the default memory budget of a sort.
+		 * @param file The file to be written.
+		 * @param tags The name of every tag, indexed by the tag numbers later given to write().
+		 * @param symmetric True to store every pair in the blocks of both of its tags, false to only store it in the block of its first tag.
+		 * @throws IOException If the temporary file can not be created.
+		 */
+		public Writer(File file, String[] tags, boolean symmetric) throws IOException {
+			this(file, tags, symmetric, ExternalSort.estimateAvailableMemory(), 1);
+		}
+		/**
+		 * Starts a similarity file.
+		 * @param file The file to be written.
+		 * @param tags The name of every tag, indexed by the tag numbers later given to write().
+		 * @param symmetric True to store every pair in the blocks of both of its tags, false to only store it in the block of its first tag.
+		 * @param memory The memory budget of the writer in bytes, besides the counts of records of every thread.
+		 * @param threads The number of threads that will write pairs, each getting an even share of the budget.
+		 * @throws IOException If the temporary file can not be created.
+		 */
+		public Writer(File file, String[] tags, boolean symmetric, long memory, int threads) throws IOException {
+			this.file = file;
+			this.tags = tags;
+			this.symmetric = symmetric;
+			this.memory = memory;
+			this.slotPairs = (int) Math.max(MIN_PAIRS, Math.min(MAX_PAIRS, memory / Math.max(1, threads) / PAIR_MEMORY));
+			spill = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+			spillFile = new RandomAccessFile(spill, "rw");
+			spillChannel = spillFile.getChannel();
+		}
+
+		public void write(int tag1, int tag2, double similarity) throws IOException {
+			Slot current = slot.get();
+			int i = current.count++;
+			current.tags1[i] = tag1;
+			current.tags2[i] = tag2;
+			current.similarities[i] = similarity;
+			current.counts[tag1]++;
+			if(symmetric)
+				current.counts[tag2]++;
+			if(current.count == slotPairs)
+				flush(current);
+		}
+		/**
+		 * Sorts the records of a thread by the tag of their block, with a counting sort, and appends them to the temporary file as a run.
+		 */
+		private void flush(Slot full) throws IOException {
+			if(null != error)
+				throw error;
+			int[] offsets = full.offsets;
+			Arrays.fill(offsets, 0);
+			for(int i = 0; i < full.count; i++){
+				offsets[full.tags1[i] + 1]++;
+				if(symmetric)
+					offsets[full.tags2[i] + 1]++;
+			}
+			for(int tag = 0; tag < tags.length; tag++)
+				offsets[tag + 1] += offsets[tag];
+			ByteBuffer run = full.run;
+			run.clear();
+			for(int i = 0; i < full.count; i++){
+				put(run, offsets[full.tags1[i]]++, full.tags1[i], full.tags2[i], full.similarities[i]);
+				if(symmetric)
+					put(run, offsets[full.tags2[i]]++, full.tags2[i], full.tags1[i], full.similarities[i]);
+			}
+			run.limit(offsets[tags.length] * SPILL_RECORD);
+			full.count = 0;
+			try {
+				synchronized(spillChannel){
+					long start = spillChannel.position();
+					while(run.hasRemaining())
+						spillChannel.write(run);
+					runs.add(new long[]{start, spillChannel.position()});
+				}
+			} catch (IOException e) {
+				error = e;
+				throw e;
+			}
+		}
+
+		private static void put(ByteBuffer run, int record, int tag, int other, double similarity){
+			int position = record * SPILL_RECORD;
+			run.putInt(position, tag);
+			run.putInt(position + 4, other);
+			run.putDouble(position + 8, similarity);
+		}
+		/**
+		 * Writes the similarity file from the records written so far. Must only be called once every thread is done writing.
+		 * @throws IOException If writing either file failed.
+		 */
+		public void close() throws IOException {
+			try {
+				long[] starts = new long[tags.length + 1];
+				synchronized(slots){
+					for(Slot open : slots){
+						if(open.count > 0)
+							flush(open);
+						for(int tag = 0; tag < tags.length; tag++)
+							starts[tag + 1] += open.counts[tag];
+					}
+					slots.clear();
+				}
+				int largest = 0;
+				for(int tag = 0; tag < tags.length; tag++){
+					largest = (int) Math.max(largest, starts[tag + 1]);
+					starts[tag + 1] += starts[tag];
+				}
+
+				// The merge holds a block, the output buffer, and a read buffer for every run.
+				long readMemory = Math.max(0, memory - BUFFER - (long) largest * (4 + 8));
+				int fanIn = (int) Math.max(2, readMemory / MIN_READ);
+				while(runs.size() > fanIn)
+					mergePass(fanIn, readMemory, largest);
+				writeFile(starts, largest, readMemory);
+			} finally {
+				spillFile.close();
+				spill.delete();
+			}
+		}
+		/**
+		 * Merges groups of fanIn consecutive runs into single runs of a new temporary file, which replaces the current one.
+		 */
+		private void mergePass(int fanIn, long readMemory, int largest) throws IOException {
+			File passFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+			RandomAccessFile pass = new RandomAccessFile(passFile, "rw");
+			List<long[]> merged = new ArrayList<long[]>();
+			try {
+				Output out = new Output(pass.getChannel());
+				int[] others = new int[largest];
+				double[] similarities = new double[largest];
+				for(int i = 0; i < runs.size(); i += fanIn){
+					List<long[]> group = runs.subList(i, Math.min(runs.size(), i + fanIn));
+					RunMerger merger = new RunMerger(spillChannel, group, tags.length, readMemory);
+					long start = out.position();
+					for(int tag = 0; tag < tags.length; tag++){
+						int count = merger.take(tag, others, similarities);
+						for(int j = 0; j < count; j++){
+							out.putInt(tag);
+							out.putInt(others[j]);
+							out.putDouble(similarities[j]);
+						}
+					}
+					merged.add(new long[]{start, out.position()});
+				}
+				out.flush();
+			} catch (IOException e) {
+				pass.close();
+				passFile.delete();
+				throw e;
+			}
+			spillFile.close();
+			spill.delete();
+			spill = passFile;
+			spillFile = pass;
+			spillChannel = pass.getChannel();
+			runs = merged;
+		}
+
+		private void writeFile(long[] starts, int largest, long readMemory) throws IOException {
+			RandomAccessFile output = new RandomAccessFile(file, "rw");
+			try {
+				output.setLength(0);
+				Output out = new Output(output.getChannel());
+				out.putInt(MAGIC);
+				out.putInt(VERSION);
+				out.putInt(symmetric ? SYMMETRIC : 0);
+				out.putInt(tags.length);
+				out.putLong(starts[tags.length]);
+
+				RunMerger merger = new RunMerger(spillChannel, runs, tags.length, readMemory);
+				int[] neighbors = new int[largest];
+				double[] similarities = new double[largest];
+				for(int tag = 0; tag < tags.length; tag++){
+					int count = merger.take(tag, neighbors, similarities);
+					if(count != starts[tag + 1] - starts[tag])
+						throw new EOFException("Missing records of tag "+tag+" in "+spill.getName());
+					sort(neighbors, similarities, 0, count);
+					for(int i = 0; i < count; i++)
+						out.putInt(neighbors[i]);
+					for(int i = 0; i < count; i++)
+						out.putDouble(similarities[i]);
+				}
+
+				long indexOffset = out.position();
+				for(long start : starts)
+					out.putLong(start);
+
+				long dictionaryOffset = out.position();
+				out.putInt(tags.length);
+				for(String tag : tags){
+					byte[] bytes = tag.getBytes(UTF8);
+					out.putInt(bytes.length);
+					out.put(bytes);
+				}
+
+				out.putLong(indexOffset);
+				out.putLong(dictionaryOffset);
+				out.putInt(MAGIC);
+				out.flush();
+			} finally {
+				output.close();
+			}
+		}
+
+		/**
+		 * Merges runs sorted by tag, handing out the records of one tag after the other. The runs whose next record goes to the
+		 * same tag are chained together, so a tag only visits the runs that have records for it.
+		 */
+		private static final class RunMerger {
+
+			private final FileChannel channel;
+			private final ByteBuffer[] buffers;
+			private final long[] positions;
+			private final long[] ends;
+			private final int[] heads;
+			private final int[] next;
+
+			RunMerger(FileChannel channel, List<long[]> runs, int tagCount, long readMemory) throws IOException {
+				this.channel = channel;
+				int count = runs.size();
+				int read = (int) Math.max(MIN_READ, Math.min(MAX_READ, readMemory / Math.max(1, count)));
+				read -= read % SPILL_RECORD;
+				buffers = new ByteBuffer[count];
+				positions = new long[count];
+				ends = new long[count];
+				heads = new int[tagCount];
+				next = new int[count];
+				Arrays.fill(heads, -1);
+				for(int run = 0; run < count; run++){
+					positions[run] = runs.get(run)[0];
+					ends[run] = runs.get(run)[1];
+					buffers[run] = ByteBuffer.allocateDirect(read).order(ByteOrder.LITTLE_ENDIAN);
+					buffers[run].flip();
+					chain(run, -1);
+				}
+			}
+			/**
+			 * Copies the records of the tag to the arrays and returns their number. Tags must be asked for in increasing order.
+			 */
+			int take(int tag, int[] others, double[] similarities) throws IOException {
+				int count = 0;
+				int run = heads[tag];
+				heads[tag] = -1;
+				while(run >= 0){
+					int following = next[run];
+					ByteBuffer buffer = buffers[run];
+					while(fill(run) && buffer.getInt(buffer.position()) == tag){
+						buffer.getInt();
+						others[count] = buffer.getInt();
+						similarities[count++] = buffer.getDouble();
+					}
+					chain(run, tag);
+					run = following;
+				}
+				return count;
+			}
+			/**
+			 * Chains the run to the tag of its next record, which must come after the given tag.
+			 */
+			private void chain(int run, int tag) throws IOException {
+				if(!fill(run))
+					return;
+				int head = buffers[run].getInt(buffers[run].position());
+				if(head <= tag || head >= heads.length)
+					throw new IOException("Unsorted run in the temporary file of a similarity file");
+				next[run] = heads[head];
+				heads[head] = run;
+			}
+			/**
+			 * Makes sure the buffer of the run holds a record, returning false at the end of the run.
+			 */
+			private boolean fill(int run) throws IOException {
+				ByteBuffer buffer = buffers[run];
+				if(buffer.remaining() >= SPILL_RECORD)
+					return true;
+				buffer.compact();
+				while(positions[run] < ends[run] && buffer.position() < SPILL_RECORD){
+					buffer.limit((int) Math.min(buffer.capacity(), buffer.position() + ends[run] - positions[run]));
+					int read = channel.read(buffer, positions[run]);
+					if(read < 0)
+						break;
+					positions[run] += read;
+				}
+				buffer.flip();
+				if(buffer.remaining() > 0 && buffer.remaining() < SPILL_RECORD)
+					throw new EOFException("Truncated record in the temporary file of a similarity file");
+				return buffer.remaining() >= SPILL_RECORD;
+			}
+		}
+
+		/**
+		 * The pairs held by a thread, its count of records per tag, and the arrays to sort them into a run.
+		 */
+		private static final class Slot {
+
+			final int[] tags1;
+			final int[] tags2;
+			final double[] similarities;
+			final int[] counts;
+			final int[] offsets;
+			final ByteBuffer run;
+			int count;
+
+			Slot(int tagCount, int pairs, boolean symmetric){
+				tags1 = new int[pairs];
+				tags2 = new int[pairs];
+				similarities = new double[pairs];
+				counts = new int[tagCount];
+				offsets = new int[tagCount + 1];
+				run = ByteBuffer.allocateDirect((symmetric ? 2 : 1) * pairs * SPILL_RECORD).order(ByteOrder.LITTLE_ENDIAN);
+			}
+		}
+	}
+	/**
+	 * Heap sorts the records [from, to) of two parallel arrays from the most similar to the least similar, ties by tag id.
+	 */
+	static void sort(int[] neighbors, double[] similarities, int from, int to){
+		int count = to - from;
+		for(int i = count / 2 - 1; i >= 0; i--)
+			siftDown(neighbors, similarities, from, i, count);
+		for(int last = count - 1; last > 0; last--){
+			swap(neighbors, similarities, from, from + last);
+			siftDown(neighbors, similarities, from, 0, last);
+		}
+	}
+	/**
+	 * Moves a record down a heap whose root is the record that comes last in the sorted order.
+	 */
+	private static void siftDown(int[] neighbors, double[] similarities, int base, int i, int count){
+		while(true){
+			int child = 2 * i + 1;
+			if(child >= count)
+				return;
+			if(child + 1 < count && before(neighbors, similarities, base + child, base + child + 1))
+				child++;
+			if(!before(neighbors, similarities, base + i, base + child))
+				return;
+			swap(neighbors, similarities, base + i, base + child);
+			i = child;
+		}
+	}
+	/**
+	 * Tells whether record i comes before record j: it is more similar, or as similar with a lower tag id. NaN comes last.
+	 */
+	private static boolean before(int[] neighbors, double[] similarities, int i, int j){
+		double similarity1 = similarities[i];
+		double similarity2 = similarities[j];
+		if(Double.isNaN(similarity1) || Double.isNaN(similarity2)){
+			if(Double.isNaN(similarity1) != Double.isNaN(similarity2))
+				return Double.isNaN(similarity2);
+		}else if(similarity1 != similarity2){
+			return similarity1 > similarity2;
+		}
+		return neighbors[i] < neighbors[j];
+	}
+
+	private static void swap(int[] neighbors, double[] similarities, int i, int j){
+		int neighbor = neighbors[i];
+		neighbors[i] = neighbors[j];
+		neighbors[j] = neighbor;
+		double similarity = similarities[i];
+		similarities[i] = similarities[j];
+		similarities[j] = similarity;
+	}
+
+	/**
+	 * A direct buffer flushed to a file channel whenever it fills up, counting the bytes written.
+	 */
+	private static final class Output {
+
+		private final FileChannel channel;
+		private final ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+		private long flushed;
+
+		Output(FileChannel channel){
+			this.channel = channel;
+		}
+
+		long position(){
+			return flushed + buffer.position();
+		}
+
+		void putInt(int value) throws IOException {
+			ensure(4);
+			buffer.putInt(value);
+		}
+
+		void putLong(long value) throws IOException {
+			ensure(8);
+			buffer.putLong(value);
+		}
+
+		void putDouble(double value) throws IOException {
+			ensure(8);
+			buffer.putDouble(value);
+		}
+
+		void put(byte[] bytes) throws IOException {
+			for(int done = 0; done < bytes.length; ){
+				ensure(1);
+				int count = Math.min(bytes.length - done, buffer.remaining());
+				buffer.put(bytes, done, count);
+				done += count;
+			}
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if(buffer.remaining() < bytes)
+				flush();
+		}
+
+		void flush() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining())
+				flushed += channel.write(buffer);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Reads a similarity file. The index and the dictionary are loaded when the file is opened, the blocks are read on demand.
+	 */
+	public static final class Reader implements Closeable {
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final boolean symmetric;
+		private final long[] starts;
+		private final IdDictionary dictionary = new IdDictionary();
+
+		/**
+		 * Opens a similarity file and loads its index and its dictionary.
+		 * @param dir The path of the file.
+		 * @throws IOException If the file can not be read or is not a complete similarity file.
+		 */
+		public Reader(String dir) throws IOException {
+			file = new RandomAccessFile(dir, "r");
+			channel = file.getChannel();
+			try {
+				ByteBuffer header = read(0, HEADER);
+				if(channel.size() < HEADER + TRAILER || header.getInt() != MAGIC || header.getInt() != VERSION)
+					throw new IOException(dir+" is not a similarity file");
+				symmetric = (header.getInt() & SYMMETRIC) != 0;
+				int tagCount = header.getInt();
+				long recordCount = header.getLong();
+
+				ByteBuffer trailer = read(channel.size() - TRAILER, TRAILER);
+				long indexOffset = trailer.getLong();
+				long dictionaryOffset = trailer.getLong();
+				if(trailer.getInt() != MAGIC)
+					throw new EOFException(dir+" is incomplete");
+				if(indexOffset != HEADER + RECORD * recordCount || dictionaryOffset != indexOffset + 8L * (tagCount + 1))
+					throw new IOException(dir+" has an inconsistent index");
+
+				ByteBuffer index = read(indexOffset, 8 * (tagCount + 1));
+				starts = new long[tagCount + 1];
+				for(int i = 0; i <= tagCount; i++)
+					starts[i] = index.getLong();
+
+				ByteBuffer names = read(dictionaryOffset, (int) (channel.size() - TRAILER - dictionaryOffset));
+				if(names.getInt() != tagCount)
+					throw new IOException(dir+" has an inconsistent dictionary");
+				for(int i = 0; i < tagCount; i++){
+					byte[] bytes = new byte[names.getInt()];
+					names.get(bytes);
+					if(dictionary.intern(new String(bytes, UTF8)) != i)
+						throw new IOException(dir+" has a repeated tag name");
+				}
+			} catch (IOException e) {
+				file.close();
+				throw e;
+			} catch (RuntimeException e) {
+				file.close();
+				throw new IOException("Corrupt similarity file "+dir, e);
+			}
+		}
+		/**
+		 * Reads length bytes at a position of the file with a single positioned read.
+		 */
+		private ByteBuffer read(long position, int length) throws IOException {
+			ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+			while(buffer.hasRemaining()){
+				if(channel.read(buffer, position + buffer.position()) < 0)
+					throw new EOFException("Unexpected end of the similarity file");
+			}
+			buffer.flip();
+			return buffer;
+		}
+		/**
+		 * Returns the similarities stored for a tag, read from the file with a single seek.
+		 * @param tag The id of the tag.
+		 * @return The other tags and their similarities, from the most similar to the least similar.
+		 * @throws IOException If the file can not be read.
+		 */
+		public Scores getScores(int tag) throws IOException {
+			int count = getCount(tag);
+			ByteBuffer block = read(HEADER + RECORD * starts[tag], RECORD * count);
+			int[] neighbors = new int[count];
+			double[] similarities = new double[count];
+			block.asIntBuffer().get(neighbors);
+			block.position(4 * count);
+			block.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().get(similarities);
+			return new Scores(neighbors, similarities);
+		}
+		/**
+		 * Returns the similarities stored for a tag.
+		 * @param tag The name of the tag.
+		 * @return The scores of the tag, or null if the file has no such tag.
+		 * @throws IOException If the file can not be read.
+		 */
+		public Scores getScores(String tag) throws IOException {
+			int id = dictionary.getId(tag);
+			return id < 0 ? null : getScores(id);
+		}
+		/**
+		 * Returns the number of records stored for a tag.
+		 * @param tag The id of the tag.
+		 * @return The number of other tags in the block of the tag.
+		 */
+		public int getCount(int tag){
+			return (int) (starts[tag + 1] - starts[tag]);
+		}
+		/**
+		 * Returns the dictionary of the tags of the file, the ids it gives are the ones used in the file.
+		 * @return The dictionary. It must not be modified.
+		 */
+		public IdDictionary getTagDictionary(){
+			return dictionary;
+		}
+		/**
+		 * Tells whether every pair is stored in the blocks of both of its tags, or only in the block of its first tag.
+		 * @return True for a symmetric file.
+		 */
+		public boolean isSymmetric(){
+			return symmetric;
+		}
+
+		public void close() throws IOException {
+			file.close();
+		}
+	}
+
+	/**
+	 * The block of a tag: the ids of the other tags and their similarities, in two parallel arrays.
+	 */
+	public static final class Scores {
+		public final int[] tags;
+		public final double[] similarities;
+
+		Scores(int[] tags, double[] similarities){
+			this.tags = tags;
+			this.similarities = similarities;
+		}
+	}
+
+}
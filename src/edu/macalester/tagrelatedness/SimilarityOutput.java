@@ -0,0 +1,18 @@
+package edu.macalester.tagrelatedness;
+
+import java.io.Closeable;
+import java.io.IOException;
+/**
+ * A file the similarities of tag pairs are written to, either as CSV lines by a PairWriter or in the binary format of a
+ * SimilarityFile. The tags are given as indexes into the names the output was created with.
+ */
+public interface SimilarityOutput extends Closeable {
+	/**
+	 * Writes the similarity of a pair of tags. Can be called from any number of threads at the same time.
+	 * @param tag1 The number of the first tag.
+	 * @param tag2 The number of the second tag.
+	 * @param similarity The similarity between both tags.
+	 * @throws IOException If writing the file failed.
+	 */
+	void write(int tag1, int tag2, double similarity) throws IOException;
+}
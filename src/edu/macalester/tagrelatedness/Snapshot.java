@@ -0,0 +1,294 @@
+package edu.macalester.tagrelatedness;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+/**
+ * A snapshot is a binary copy of a frozen database: its id dictionaries followed by the int arrays of its posting lists, so a later
+ * run over the same input can skip parsing and rebuilding the database.
+ * <p>
+ * The file starts with a header (magic number, format version and the kind of database) and ends with the magic number again, which
+ * is only written once every section is complete. Ints are stored little endian, the order of the usual hardware, so arrays are copied
+ * out of the memory mapped file in bulk. Dictionaries are stored as a count followed by the UTF-8 bytes of every name, in id order.
+ * <p>
+ * Loading a snapshot is a fast binary load, not a zero-copy map: every array is copied into the heap and every dictionary is rebuilt
+ * by decoding and interning its names, because the databases and measures work on int[] and the String API needs the hash maps. It
+ * still costs time proportional to the assignments and names and the same heap as a parsed database, but it skips tokenizing the
+ * input, interning every line and sorting the postings.
+ */
+public final class Snapshot {
+
+	public static final int PROJECTIONAL = 1;
+	public static final int DISTRIBUTIONAL = 2;
+	public static final int COLLABORATIVE = 3;
+
+	private static final int MAGIC = 0x54414753; // "TAGS"
+	private static final int VERSION = 1;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	/**
+	 * Size of the regions of the file mapped at a time, well below the 2GB limit of a single mapping.
+	 */
+	private static final int WINDOW = 1 << 28;
+
+	private Snapshot(){
+	}
+	/**
+	 * Checks that an offsets array read from a snapshot splits an array of the given length into count consecutive ranges. Databases
+	 * check what they read with it and checkIds, so a stale or damaged snapshot fails while loading, where Main falls back to parsing
+	 * the input, instead of inside a measure.
+	 * @param offsets The offsets read.
+	 * @param count The number of ranges expected.
+	 * @param length The length of the array the ranges cover.
+	 * @throws IOException If the offsets do not describe such ranges.
+	 */
+	public static void checkOffsets(int[] offsets, int count, int length) throws IOException {
+		if(offsets.length != count+1 || offsets[0] != 0 || offsets[count] != length)
+			throw new IOException("The snapshot is corrupt.");
+		for(int i = 0; i < count; i++){
+			if(offsets[i] > offsets[i+1])
+				throw new IOException("The snapshot is corrupt.");
+		}
+	}
+	/**
+	 * Checks that an array of ids read from a snapshot has the given length and that every id is between 0 and count (exclusive).
+	 * @param ids The ids read.
+	 * @param length The length expected.
+	 * @param count The number of valid ids.
+	 * @throws IOException If the array has another length or holds an id out of range.
+	 */
+	public static void checkIds(int[] ids, int length, int count) throws IOException {
+		if(ids.length != length)
+			throw new IOException("The snapshot is corrupt.");
+		for(int id : ids){
+			if(id < 0 || id >= count)
+				throw new IOException("The snapshot is corrupt.");
+		}
+	}
+
+	/**
+	 * Writes a snapshot through a direct buffer that is flushed to the file channel whenever it fills up.
+	 */
+	public static final class Writer implements Closeable {
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final ByteBuffer buffer;
+
+		/**
+		 * Creates the snapshot file, replacing any previous one, and writes its header.
+		 * @param dir The path of the snapshot file.
+		 * @param kind The kind of database stored, one of PROJECTIONAL, DISTRIBUTIONAL or COLLABORATIVE.
+		 * @throws IOException If the file can not be written.
+		 */
+		public Writer(String dir, int kind) throws IOException {
+			file = new RandomAccessFile(dir, "rw");
+			file.setLength(0);
+			channel = file.getChannel();
+			buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.LITTLE_ENDIAN);
+
+			writeInt(MAGIC);
+			writeInt(VERSION);
+			writeInt(kind);
+		}
+
+		public void writeInt(int value) throws IOException {
+			ensure(4);
+			buffer.putInt(value);
+		}
+		/**
+		 * Writes the length of an array followed by its values.
+		 * @param values The array to be written.
+		 * @throws IOException If the file can not be written.
+		 */
+		public void writeInts(int[] values) throws IOException {
+			writeInt(values.length);
+
+			int offset = 0;
+			while(offset < values.length){
+				ensure(4);
+				int length = Math.min(values.length - offset, buffer.remaining() / 4);
+				buffer.asIntBuffer().put(values, offset, length);
+				buffer.position(buffer.position() + length * 4);
+				offset += length;
+			}
+		}
+		/**
+		 * Writes every name of a dictionary in id order.
+		 * @param dictionary The dictionary to be written.
+		 * @throws IOException If the file can not be written.
+		 */
+		public void writeDictionary(IdDictionary dictionary) throws IOException {
+			writeInt(dictionary.size());
+
+			for(String name : dictionary.getNames()){
+				byte[] bytes = name.getBytes(UTF8);
+				writeInt(bytes.length);
+
+				int offset = 0;
+				while(offset < bytes.length){
+					ensure(1);
+					int length = Math.min(bytes.length - offset, buffer.remaining());
+					buffer.put(bytes, offset, length);
+					offset += length;
+				}
+			}
+		}
+		/**
+		 * Writes the closing magic number, which marks the snapshot as complete, and closes the file.
+		 * @throws IOException If the file can not be written.
+		 */
+		public void finish() throws IOException {
+			writeInt(MAGIC);
+			flush();
+			close();
+		}
+
+		public void close() throws IOException {
+			file.close();
+		}
+
+		private void ensure(int bytes) throws IOException {
+			if(buffer.remaining() < bytes)
+				flush();
+		}
+
+		private void flush() throws IOException {
+			buffer.flip();
+			while(buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+
+	/**
+	 * Reads a snapshot by mapping consecutive windows of the file into memory and copying its sections out of them.
+	 */
+	public static final class Reader implements Closeable {
+
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final long size;
+		private MappedByteBuffer window;
+		private long windowStart;
+
+		/**
+		 * Opens a snapshot file and checks its header.
+		 * @param dir The path of the snapshot file.
+		 * @param kind The kind of database expected, one of PROJECTIONAL, DISTRIBUTIONAL or COLLABORATIVE.
+		 * @throws IOException If the file can not be read or is not a snapshot of the expected kind.
+		 */
+		public Reader(String dir, int kind) throws IOException {
+			file = new RandomAccessFile(dir, "r");
+			channel = file.getChannel();
+			size = channel.size();
+			windowStart = 0;
+			window = null;
+
+			try {
+				if(readInt() != MAGIC || readInt() != VERSION || readInt() != kind)
+					throw new IOException(new File(dir).getName()+" is not a snapshot of this kind of database.");
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+		}
+
+		public int readInt() throws IOException {
+			ensure(4);
+			return window.getInt();
+		}
+		/**
+		 * Reads an array written by Writer.writeInts.
+		 * @return A new array with the values.
+		 * @throws IOException If the file can not be read or is truncated.
+		 */
+		public int[] readInts() throws IOException {
+			int[] values = new int[readLength(4)];
+
+			int offset = 0;
+			while(offset < values.length){
+				ensure(4);
+				int length = Math.min(values.length - offset, window.remaining() / 4);
+				window.asIntBuffer().get(values, offset, length);
+				window.position(window.position() + length * 4);
+				offset += length;
+			}
+
+			return values;
+		}
+		/**
+		 * Reads a dictionary written by Writer.writeDictionary. Names get the same ids they had when the snapshot was written.
+		 * @return A new dictionary with the names.
+		 * @throws IOException If the file can not be read or is truncated.
+		 */
+		public IdDictionary readDictionary() throws IOException {
+			IdDictionary dictionary = new IdDictionary();
+			int count = readLength(4);
+
+			for(int id = 0; id < count; id++){
+				byte[] bytes = new byte[readLength(1)];
+
+				int offset = 0;
+				while(offset < bytes.length){
+					ensure(1);
+					int length = Math.min(bytes.length - offset, window.remaining());
+					window.get(bytes, offset, length);
+					offset += length;
+				}
+
+				if(dictionary.intern(new String(bytes, UTF8)) != id)
+					throw new IOException("The snapshot is corrupt.");
+			}
+
+			return dictionary;
+		}
+		/**
+		 * Checks the closing magic number and closes the file. Databases call it before using anything they read, so an
+		 * interrupted snapshot is never loaded.
+		 * @throws IOException If the snapshot is incomplete.
+		 */
+		public void finish() throws IOException {
+			if(readInt() != MAGIC)
+				throw new IOException("The snapshot is corrupt.");
+			close();
+		}
+
+		public void close() throws IOException {
+			window = null;
+			file.close();
+		}
+		/**
+		 * Reads the number of elements of a section, checking that it is not negative and that the rest of the file can hold them,
+		 * so a damaged count fails here instead of allocating a huge array.
+		 */
+		private int readLength(int elementBytes) throws IOException {
+			int length = readInt();
+			if(length < 0 || (long) length * elementBytes > size - windowStart - window.position())
+				throw new IOException("The snapshot is corrupt.");
+			return length;
+		}
+		/**
+		 * Maps a new window starting at the current position if the current one has less than the given number of bytes left.
+		 */
+		private void ensure(int bytes) throws IOException {
+			if(null != window && window.remaining() >= bytes)
+				return;
+
+			long position = null == window ? 0 : windowStart + window.position();
+			if(position + bytes > size)
+				throw new EOFException("The snapshot is truncated.");
+
+			windowStart = position;
+			window = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(WINDOW, size - position));
+			window.order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+}
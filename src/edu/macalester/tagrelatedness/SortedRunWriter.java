@@ -0,0 +1,206 @@
+package edu.macalester.tagrelatedness;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+/**
+ * Writes a tag similarity CSV file sorted from the most similar pair to the least similar one, as the ExternalSort would sort the
+ * file of a PairWriter with a CSVComparator, without ever writing the unsorted file.
+ * <p>
+ * Every thread keeps its pairs in primitive arrays of its own, so writing a pair takes no lock. When its arrays are full, the thread
+ * sorts its pairs by their key and writes them as a sorted run of CSV lines to a temporary file. close() spills the pairs left, and
+ * ExternalSort.mergeSortedFilesByKey merges the runs into the file, in several passes if there are more runs than it opens at once.
+ * The pairs are sorted by the same key the CSVComparator gives their lines, so the merge finds the runs sorted.
+ * <p>
+ * The writer stays within a memory budget: every thread holds as many pairs as its share of the budget allows, counting the bytes
+ * of its arrays, of the sort and of the PairWriter of its runs, and the merge shares the budget between the read-ahead
+ * buffers of the runs. A share is never smaller than MIN_MEMORY, so runs never get tiny: when the budget can not give a share to
+ * every thread, the threads take turns at fewer arrays, under a lock.
+ */
+public class SortedRunWriter implements SimilarityOutput {
+
+	/**
+	 * Bytes of every pair held by a thread, and as many again for the sort. The sort also takes ExternalSort.RADIXMEMORY bytes
+	 * whatever the number of pairs.
+	 */
+	private static final int PAIR_MEMORY = 2 * (4 + 4 + 8 + 8);
+
+	/**
+	 * Fewest pairs in a run, however many threads write.
+	 */
+	private static final int MIN_RUN_PAIRS = 1 << 16;
+
+	/**
+	 * Smallest memory budget of a writer, and smallest share of a thread: the PairWriter of a run and the arrays of MIN_RUN_PAIRS
+	 * pairs.
+	 */
+	public static final long MIN_MEMORY = PairWriter.SINGLE_THREAD_MEMORY + ExternalSort.RADIXMEMORY
+			+ (long) MIN_RUN_PAIRS * PAIR_MEMORY;
+
+	private final File file;
+	private final byte[][] tagBytes;
+	private final long memory;
+	private final int runPairs;
+	private final int shares;
+	private final boolean shared;
+	private final List<Buffer> buffers = new ArrayList<Buffer>();
+	private final List<File> runs = new ArrayList<File>();
+	private int assigned;
+
+	private final ThreadLocal<Buffer> buffer = new ThreadLocal<Buffer>(){
+		protected Buffer initialValue(){
+			synchronized(buffers){
+				if(shared && buffers.size() == shares)
+					return buffers.get(assigned++ % shares);
+				Buffer created = new Buffer(runPairs);
+				buffers.add(created);
+				return created;
+			}
+		}
+	};
+
+	/**
+	 * @param file The CSV file to be written when the writer is closed.
+	 * @param tags The name of every tag, indexed by the tag numbers later given to write().
+	 * @param memory The memory budget of the writer in bytes, see ExternalSort.estimateAvailableMemory() for a default.
+	 * @param threads The number of threads that will write pairs, each getting an even share of the budget, or sharing fewer arrays
+	 * if the shares would be smaller than MIN_MEMORY.
+	 * @throws IllegalArgumentException If the budget is smaller than MIN_MEMORY.
+	 */
+	public SortedRunWriter(File file, String[] tags, long memory, int threads){
+		if(threads < 1)
+			throw new IllegalArgumentException("At least one thread writes the pairs: "+threads);
+		if(memory < MIN_MEMORY)
+			throw new IllegalArgumentException("The sort memory must be at least "+MIN_MEMORY+" bytes: "+memory);
+		this.file = file;
+		this.tagBytes = PairWriter.encodeTags(tags);
+		this.memory = memory;
+		this.shares = (int) Math.min(threads, memory / MIN_MEMORY);
+		this.shared = shares < threads;
+		this.runPairs = (int) Math.min(Integer.MAX_VALUE - 8,
+				(memory / shares - PairWriter.SINGLE_THREAD_MEMORY - ExternalSort.RADIXMEMORY) / PAIR_MEMORY);
+	}
+	/**
+	 * Holds the pair of tags, spilling the pairs of the calling thread if they fill its arrays. Can be called from any number of
+	 * threads at the same time.
+	 * @param tag1 The number of the first tag.
+	 * @param tag2 The number of the second tag.
+	 * @param similarity The similarity between both tags.
+	 * @throws IOException If writing a run failed.
+	 */
+	public void write(int tag1, int tag2, double similarity) throws IOException {
+		Buffer current = buffer.get();
+		if(shared){
+			synchronized(current){
+				add(current, tag1, tag2, similarity);
+			}
+		}else{
+			add(current, tag1, tag2, similarity);
+		}
+	}
+
+	private void add(Buffer current, int tag1, int tag2, double similarity) throws IOException {
+		if(null == current.keys)
+			throw new IllegalStateException("The writer is closed");
+		int i = current.count++;
+		current.tags1[i] = tag1;
+		current.tags2[i] = tag2;
+		current.similarities[i] = similarity;
+		// PairWriter writes the infinities with a DecimalFormat, as text the CSVComparator can not parse and puts last.
+		current.keys[i] = Double.isInfinite(similarity) ? Long.MAX_VALUE : CSVComparator.getKey(similarity);
+		if(current.count == runPairs)
+			spill(current);
+	}
+
+	private void spill(Buffer full) throws IOException {
+		int[] order = ExternalSort.sortByKey(full.keys, full.count);
+		keepTextTies(full, order);
+		File run = File.createTempFile("sortInBatch", "flatfile");
+		run.deleteOnExit();
+		synchronized(runs){
+			runs.add(run);
+		}
+
+		// A PairWriter written from a single thread keeps the order of the lines.
+		PairWriter writer = new PairWriter(run, tagBytes);
+		try {
+			for(int i : order)
+				writer.write(full.tags1[i], full.tags2[i], full.similarities[i]);
+		} finally {
+			full.count = 0;
+			writer.close();
+		}
+	}
+	/**
+	 * PairWriter writes 17 decimals, so similarities of at most 0.1 that differ can get the same text, which the CSVComparator ties
+	 * and a sort of the file keeps in the order the lines were written. The keys order them by their value instead, so every group
+	 * of sorted pairs whose texts tie is put back in the order in which the pairs were written. Larger similarities get exact text.
+	 */
+	private static void keepTextTies(Buffer full, int[] order){
+		int start = -1;
+		long startKey = 0;
+		for(int k = 0; k <= full.count; k++){
+			boolean rounded = k < full.count && Math.abs(full.similarities[order[k]]) <= 0.1;
+			long key = rounded ? PairWriter.getKey(full.similarities[order[k]], full.text) : 0;
+			if(start >= 0 && (!rounded || key != startKey)){
+				if(k - start > 1)
+					Arrays.sort(order, start, k);
+				start = -1;
+			}
+			if(rounded && start < 0){
+				start = k;
+				startKey = key;
+			}
+		}
+	}
+	/**
+	 * Spills the pairs still held by the threads and merges the runs into the file. Must only be called once every thread is done
+	 * writing.
+	 * @throws IOException If writing the runs or the file failed.
+	 */
+	public void close() throws IOException {
+		synchronized(buffers){
+			// The arrays are released so the merge gets the whole budget, even while the threads that wrote are still alive.
+			for(Buffer open : buffers){
+				if(open.count > 0)
+					spill(open);
+				open.release();
+			}
+			buffers.clear();
+		}
+
+		CSVComparator comparator = new CSVComparator();
+		// The runs are merged at most DEFAULTMAXTEMPFILES at a time, in several passes if there are more.
+		ExternalSort.mergeSortedFilesByKey(runs, file, comparator, false, false, false, memory, ExternalSort.DEFAULTMAXTEMPFILES, null);
+	}
+
+	/**
+	 * The pairs held by a thread, with the sort key of each.
+	 */
+	private static final class Buffer {
+
+		int[] tags1;
+		int[] tags2;
+		double[] similarities;
+		long[] keys;
+		int count;
+		final PairWriter.Slot text = PairWriter.newFormatSlot(); // formats the similarities of keepTextTies()
+
+		Buffer(int size){
+			tags1 = new int[size];
+			tags2 = new int[size];
+			similarities = new double[size];
+			keys = new long[size];
+		}
+
+		void release(){
+			tags1 = null;
+			tags2 = null;
+			similarities = null;
+			keys = null;
+		}
+	}
+
+}
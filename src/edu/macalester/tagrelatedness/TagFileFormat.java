@@ -0,0 +1,97 @@
+package edu.macalester.tagrelatedness;
+
+import java.nio.charset.Charset;
+/**
+ * The layouts of the tag files the databases can load. Each line of a tag file is one tag assignment, made of a fixed number of
+ * fields separated by a delimiter, and the format tells which fields hold the user, the resource and the tag.
+ */
+public enum TagFileFormat {
+
+	/**
+	 * MovieLens tags.dat: UserID::MovieID::Tag::Timestamp
+	 */
+	MOVIELENS("::", 4, 0, 1, 2),
+	/**
+	 * Bibsonomy tas: user, tag, content id, content type and date, separated by tabs.
+	 */
+	BIBSONOMY("\t", 5, 0, 2, 1);
+
+	private final byte[] delimiter;
+	private final int fieldCount;
+	private final int userField;
+	private final int resourceField;
+	private final int tagField;
+
+	private TagFileFormat(String delimiter, int fieldCount, int userField, int resourceField, int tagField){
+		this.delimiter = delimiter.getBytes(Charset.forName("UTF-8"));
+		this.fieldCount = fieldCount;
+		this.userField = userField;
+		this.resourceField = resourceField;
+		this.tagField = tagField;
+	}
+	/**
+	 * Returns the bytes that separate two fields in a line.
+	 * @return The delimiter. The array is shared, it must not be modified.
+	 */
+	public byte[] getDelimiter(){
+		return delimiter;
+	}
+	/**
+	 * Returns the number of fields of a valid line. Lines with any other number of fields are skipped, as String.split would count
+	 * them, that is ignoring trailing empty fields.
+	 * @return The number of fields.
+	 */
+	public int getFieldCount(){
+		return fieldCount;
+	}
+
+	public int getUserField(){
+		return userField;
+	}
+
+	public int getResourceField(){
+		return resourceField;
+	}
+
+	public int getTagField(){
+		return tagField;
+	}
+	/**
+	 * Detects the format of a tag file from a sample of its lines: the format that accepts the most lines wins, as long as it
+	 * accepts more than half of the non empty lines, so a malformed header or a few broken lines do not matter.
+	 * @param sample An array holding whole lines.
+	 * @param length The number of bytes of the sample.
+	 * @return The detected format, or null if no format accepts most of the lines.
+	 */
+	public static TagFileFormat detect(byte[] sample, int length){
+		TagFileFormat best = null;
+		int bestCount = 0;
+		int lines = 0;
+		
+		for(TagFileFormat format : values()){
+			TagFileReader.LineParser parser = new TagFileReader.LineParser(format, null, null, null, null);
+			int count = 0;
+			lines = 0;
+			
+			for(int start = 0; start < length; ){
+				int end = start;
+				while(end < length && sample[end] != '\n')
+					end++;
+				if(end > start && !(end == start + 1 && sample[start] == '\r')){
+					lines++;
+					if(parser.accepts(sample, start, end))
+						count++;
+				}
+				start = end + 1;
+			}
+			
+			if(count > bestCount){
+				best = format;
+				bestCount = count;
+			}
+		}
+		
+		return 2 * bestCount > lines ? best : null;
+	}
+
+}
@@ -0,0 +1,619 @@
+package edu.macalester.tagrelatedness;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.zip.GZIPInputStream;
+
+import com.github.luben.zstd.ZstdInputStream;
+/**
+ * Reads tag files for the databases. The file is memory mapped in windows that end at a line boundary and every line is scanned as
+ * bytes for the delimiters of its TagFileFormat, so no String is created per line: the user, resource and tag fields are interned
+ * from their bytes straight into the dictionaries of the database, and the database gets the resulting ids. Big files are parsed by
+ * several threads, one chunk of lines each.
+ * <p>
+ * Files ending in .gz or .zst are decompressed while they are read instead: a separate thread fills blocks of whole lines from the
+ * decompressing stream while the calling thread parses the previous blocks.
+ */
+public final class TagFileReader {
+
+	/**
+	 * Receives the ids of every valid line of a tag file.
+	 */
+	public interface Handler {
+		/**
+		 * @param user The id of the user, or -1 if no user dictionary was given.
+		 * @param resource The id of the resource.
+		 * @param tag The id of the tag.
+		 */
+		public void addTag(int user, int resource, int tag);
+	}
+	/**
+	 * A Handler that can also take the lines of a file in bulk: when a file is parsed by several threads, room is made for all of
+	 * its lines at once, and the threads then copy the ids of their chunks into it at the same time.
+	 */
+	public interface BulkHandler extends Handler {
+		/**
+		 * Makes room for the given number of lines after the lines added so far.
+		 * @param count The number of lines.
+		 * @return The position of the first line.
+		 */
+		public int reserve(int count);
+		/**
+		 * Sets the ids of lines in the room made by reserve(). Called from several threads at once, for disjoint lines.
+		 * @param position The position of the first line.
+		 * @param users The ids of the users of the lines, or null if no user dictionary was given.
+		 * @param resources The ids of the resources of the lines.
+		 * @param tags The ids of the tags of the lines.
+		 */
+		public void setTags(int position, IntArrayList users, IntArrayList resources, IntArrayList tags);
+	}
+
+	/**
+	 * Largest region of the file mapped at a time.
+	 */
+	private static final int WINDOW = 1 << 30;
+	/**
+	 * Files are not split into chunks smaller than this, parsing them takes less than starting a thread.
+	 */
+	private static final long MIN_CHUNK = 1 << 22;
+	/**
+	 * Size of the blocks of decompressed lines, and how many of them can wait to be parsed.
+	 */
+	private static final int BLOCK = 1 << 22;
+	private static final int QUEUED_BLOCKS = 4;
+
+	private TagFileReader(){
+	}
+	/**
+	 * Reads every line of a tag file with as many threads as there are processors.
+	 * @see #read(TagInput, IdDictionary, IdDictionary, IdDictionary, Handler, int)
+	 */
+	public static void read(String dir, TagFileFormat format, IdDictionary users, IdDictionary resources, IdDictionary tags,
+			Handler handler) throws IOException{
+		read(dir, format, users, resources, tags, handler, Runtime.getRuntime().availableProcessors());
+	}
+	/**
+	 * Reads every line of a tag file of a known format.
+	 * @see #read(TagInput, IdDictionary, IdDictionary, IdDictionary, Handler, int)
+	 */
+	public static void read(String dir, TagFileFormat format, IdDictionary users, IdDictionary resources, IdDictionary tags,
+			Handler handler, int threads) throws IOException{
+		TagInput input = TagInput.open(dir, format);
+		
+		try {
+			read(input, users, resources, tags, handler, threads);
+		} finally {
+			input.close();
+		}
+	}
+	/**
+	 * Reads every line of an open tag file with as many threads as there are processors.
+	 * @see #read(TagInput, IdDictionary, IdDictionary, IdDictionary, Handler, int)
+	 */
+	public static void read(TagInput input, IdDictionary users, IdDictionary resources, IdDictionary tags, Handler handler)
+			throws IOException{
+		read(input, users, resources, tags, handler, Runtime.getRuntime().availableProcessors());
+	}
+	/**
+	 * Reads every line of an open tag file, handing the ids of its fields to the handler. Lines that do not have the number of fields
+	 * of the format are skipped. The lines in the sample of the input are parsed from the sample, the file is read from where the
+	 * sample ends.
+	 * <p>
+	 * The rest of the file is split into chunks at line boundaries. With more than one thread, every chunk is parsed on its own into
+	 * private dictionaries and id lists, and the chunks are then merged in file order: the names of each chunk are interned into the
+	 * given dictionaries in the order the chunk first saw them. Ids are therefore the same as with a single thread. A BulkHandler
+	 * then gets the lines of every chunk, with their ids mapped to the shared ones, by the threads in parallel, each chunk at its
+	 * position in the file. Any other handler is called from the calling thread, in the order of the lines in the file.
+	 * <p>
+	 * Until a chunk is handed over, its id lists are held besides what the handler stores, so parsing with several threads takes up
+	 * to twice the memory of the ids of the lines.
+	 * @param input The open tag file. Its format must be known.
+	 * @param users The dictionary the users are interned into, or null if the users are not needed.
+	 * @param resources The dictionary the resources are interned into.
+	 * @param tags The dictionary the tags are interned into.
+	 * @param handler Receives the ids of every line.
+	 * @param threads The number of threads parsing the file.
+	 * @throws IOException If the file can not be read or its format is not known.
+	 */
+	public static void read(final TagInput input, IdDictionary users, IdDictionary resources, IdDictionary tags, Handler handler,
+			int threads) throws IOException{
+		final TagFileFormat format = input.getFormat();
+		if(null == format)
+			throw new IOException("Unknown format of "+input.getPath());
+		
+		if(input.isCompressed()){
+			readCompressed(input, users, resources, tags, handler);
+			return;
+		}
+		
+		RandomAccessFile file = new RandomAccessFile(input.getPath(), "r");
+
+		try {
+			final FileChannel channel = file.getChannel();
+			final long[] bounds = split(file, input.getPath(), input.getSampleLength(), Math.max(1, threads) * 4);
+			int chunkCount = bounds.length - 1;
+
+			if(threads <= 1 || chunkCount <= 1){
+				LineParser parser = new LineParser(format, users, resources, tags, handler);
+				parser.parse(ByteBuffer.wrap(input.getSample()), 0, input.getSampleLength());
+				for(int chunk = 0; chunk < chunkCount; chunk++)
+					parser.parse(map(channel, bounds[chunk], bounds[chunk+1]), 0, (int) (bounds[chunk+1] - bounds[chunk]));
+				return;
+			}
+
+			// Chunk 0 is the sample, chunk i the region from bounds[i-1] to bounds[i].
+			final boolean withUsers = null != users;
+			List<Integer> chunkIndexes = new ArrayList<Integer>();
+			for(int chunk = 0; chunk <= chunkCount; chunk++)
+				chunkIndexes.add(chunk);
+
+			List<Chunk> chunks = ParallelForEach.loop(chunkIndexes, threads, new Function<Integer, Chunk>() {
+				public Chunk call(Integer chunk) throws Exception {
+					Chunk parsed = new Chunk(withUsers);
+					LineParser parser = new LineParser(format, parsed.users, parsed.resources, parsed.tags, parsed);
+					if(0 == chunk)
+						parser.parse(ByteBuffer.wrap(input.getSample()), 0, input.getSampleLength());
+					else
+						parser.parse(map(channel, bounds[chunk-1], bounds[chunk]), 0, (int) (bounds[chunk] - bounds[chunk-1]));
+					return parsed;
+				}
+			}, Integer.MAX_VALUE);
+
+			for(Chunk chunk : chunks){
+				if(null == chunk)
+					throw new IOException("Could not parse every chunk of "+input.getPath());
+			}
+			if(handler instanceof BulkHandler)
+				handOver(chunks, users, resources, tags, (BulkHandler) handler, threads);
+			else
+				for(Chunk chunk : chunks)
+					chunk.merge(users, resources, tags, handler);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Interns the names of the chunks in file order, then maps the ids of every chunk to the shared ones and copies them to the
+	 * handler in parallel. Every chunk is dropped once it is copied.
+	 */
+	private static void handOver(final List<Chunk> chunks, IdDictionary users, IdDictionary resources, IdDictionary tags,
+			final BulkHandler handler, int threads) throws IOException{
+		final int[] positions = new int[chunks.size()];
+		long lines = 0;
+		for(int chunk = 0; chunk < chunks.size(); chunk++){
+			chunks.get(chunk).remap(users, resources, tags);
+			lines += chunks.get(chunk).tagIds.size();
+		}
+		if(lines > Integer.MAX_VALUE - 8)
+			throw new IOException("More than "+(Integer.MAX_VALUE - 8)+" lines in a tag file");
+		int position = handler.reserve((int) lines);
+		for(int chunk = 0; chunk < chunks.size(); chunk++){
+			positions[chunk] = position;
+			position += chunks.get(chunk).tagIds.size();
+		}
+
+		List<Integer> chunkIndexes = new ArrayList<Integer>();
+		for(int chunk = 0; chunk < chunks.size(); chunk++)
+			chunkIndexes.add(chunk);
+		List<Boolean> done = ParallelForEach.loop(chunkIndexes, threads, new Function<Integer, Boolean>() {
+			public Boolean call(Integer index) throws Exception {
+				Chunk chunk = chunks.get(index);
+				chunk.map();
+				handler.setTags(positions[index], null == chunk.users ? null : chunk.userIds, chunk.resourceIds, chunk.tagIds);
+				chunks.set(index, null);
+				return Boolean.TRUE;
+			}
+		}, Integer.MAX_VALUE);
+		if(done.contains(null))
+			throw new IOException("Could not hand over every chunk");
+	}
+
+	/**
+	 * Tells whether a file is read through a decompressor, going by its extension.
+	 * @param dir The path of the file.
+	 * @return true for .gz and .zst files.
+	 */
+	public static boolean isCompressed(String dir){
+		return dir.endsWith(".gz") || dir.endsWith(".zst");
+	}
+	/**
+	 * Opens a tag file as a stream of bytes, decompressing it if it is a .gz or .zst file.
+	 * @param dir The path of the file.
+	 * @return A stream with the (decompressed) bytes of the file.
+	 * @throws IOException If the file can not be opened.
+	 */
+	public static InputStream open(String dir) throws IOException{
+		InputStream in = new FileInputStream(dir);
+		
+		try {
+			if(dir.endsWith(".gz"))
+				return new GZIPInputStream(in, 1 << 16);
+			if(dir.endsWith(".zst"))
+				return Zstd.open(new BufferedInputStream(in, 1 << 16));
+			return new BufferedInputStream(in, 1 << 16);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+	}
+	/**
+	 * Keeps zstd-jni out of the classes loaded for plain and .gz files, so it is only needed on the classpath to read .zst files.
+	 */
+	private static final class Zstd {
+		static InputStream open(InputStream in) throws IOException{
+			return new ZstdInputStream(in);
+		}
+	}
+	/**
+	 * Reads a compressed tag file, decompressing the rest of it on a separate thread while the sample is parsed.
+	 */
+	private static void readCompressed(TagInput input, IdDictionary users, IdDictionary resources, IdDictionary tags,
+			Handler handler) throws IOException{
+		BlockProducer producer = new BlockProducer(input.getStream());
+		Thread thread = new Thread(producer, "decompress "+input.getPath());
+		thread.setDaemon(true);
+		thread.start();
+		
+		LineParser parser = new LineParser(input.getFormat(), users, resources, tags, handler);
+		try {
+			parser.parse(ByteBuffer.wrap(input.getSample()), 0, input.getSampleLength());
+			for(Block block = producer.take(); block != Block.END; block = producer.take()){
+				parser.parse(ByteBuffer.wrap(block.bytes), 0, block.length);
+				producer.recycle(block);
+			}
+			producer.rethrow();
+		} finally {
+			thread.interrupt();
+		}
+	}
+
+	private static MappedByteBuffer map(FileChannel channel, long from, long to) throws IOException{
+		return channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+	}
+	/**
+	 * Splits the file from a line boundary on into about the given number of chunks, each of them starting at the beginning of a line
+	 * and no bigger than a window.
+	 * @return The start of every chunk followed by the size of the file.
+	 */
+	private static long[] split(RandomAccessFile file, String dir, long start, int chunks) throws IOException{
+		long size = file.length();
+		long target = Math.min(WINDOW / 2, Math.max(MIN_CHUNK, (size - start) / chunks + 1));
+		ArrayList<Long> bounds = new ArrayList<Long>();
+		byte[] buffer = new byte[1 << 16];
+
+		bounds.add(start);
+		while(start < size){
+			long end = start + target;
+
+			// Move the end just past the next line break.
+			boolean found = false;
+			while(end < size && !found){
+				file.seek(end - 1);
+				int read = file.read(buffer);
+				for(int i = 0; i < read && !found; i++){
+					if(buffer[i] == '\n'){
+						end = end - 1 + i + 1;
+						found = true;
+					}
+				}
+				if(!found)
+					end += read;
+			}
+			end = Math.min(end, size);
+
+			if(end - start > WINDOW)
+				throw new IOException("Line longer than "+(WINDOW / 2)+" bytes in "+dir);
+			bounds.add(end);
+			start = end;
+		}
+
+		long[] result = new long[bounds.size()];
+		for(int i = 0; i < result.length; i++)
+			result[i] = bounds.get(i);
+		return result;
+	}
+
+	/**
+	 * The lines of one chunk of the file, with ids local to the chunk.
+	 */
+	private static final class Chunk implements Handler {
+
+		final IdDictionary users;
+		final IdDictionary resources = new IdDictionary();
+		final IdDictionary tags = new IdDictionary();
+		int[] userMap;
+		int[] resourceMap;
+		int[] tagMap;
+		final IntArrayList userIds = new IntArrayList();
+		final IntArrayList resourceIds = new IntArrayList();
+		final IntArrayList tagIds = new IntArrayList();
+
+		Chunk(boolean withUsers){
+			users = withUsers ? new IdDictionary() : null;
+		}
+
+		public void addTag(int user, int resource, int tag){
+			userIds.add(user);
+			resourceIds.add(resource);
+			tagIds.add(tag);
+		}
+		/**
+		 * Interns the names of the chunk into the shared dictionaries, keeping the shared id of every local one.
+		 */
+		void remap(IdDictionary sharedUsers, IdDictionary sharedResources, IdDictionary sharedTags){
+			userMap = null == users ? null : remap(users, sharedUsers);
+			resourceMap = remap(resources, sharedResources);
+			tagMap = remap(tags, sharedTags);
+		}
+		/**
+		 * Replaces the local ids of the lines by the shared ones, once remap() was called.
+		 */
+		void map(){
+			if(null != userMap)
+				userIds.map(userMap);
+			resourceIds.map(resourceMap);
+			tagIds.map(tagMap);
+		}
+		/**
+		 * Interns the names of the chunk into the shared dictionaries and hands every line to the handler with the shared ids.
+		 */
+		void merge(IdDictionary sharedUsers, IdDictionary sharedResources, IdDictionary sharedTags, Handler handler){
+			remap(sharedUsers, sharedResources, sharedTags);
+
+			for(int i = 0; i < tagIds.size(); i++){
+				int user = null == userMap ? -1 : userMap[userIds.get(i)];
+				handler.addTag(user, resourceMap[resourceIds.get(i)], tagMap[tagIds.get(i)]);
+			}
+		}
+
+		private static int[] remap(IdDictionary local, IdDictionary shared){
+			int[] map = new int[local.size()];
+			for(int id = 0; id < map.length; id++)
+				map[id] = shared.intern(local.getName(id));
+			return map;
+		}
+	}
+
+	/**
+	 * A buffer holding whole lines, the first length bytes of it.
+	 */
+	private static final class Block {
+		
+		static final Block END = new Block(0);
+		
+		byte[] bytes;
+		int length;
+		
+		Block(int size){
+			bytes = new byte[size];
+		}
+	}
+
+	/**
+	 * Reads a stream into blocks that end at a line boundary. The bytes after the last line break of a block are moved to the start
+	 * of the next one. Blocks go back to the producer once parsed, so only QUEUED_BLOCKS + 2 of them are ever allocated.
+	 */
+	private static final class BlockProducer implements Runnable {
+		
+		private final InputStream in;
+		private final BlockingQueue<Block> full = new ArrayBlockingQueue<Block>(QUEUED_BLOCKS + 1);
+		private final BlockingQueue<Block> free = new ArrayBlockingQueue<Block>(QUEUED_BLOCKS + 2);
+		private volatile IOException error;
+		
+		BlockProducer(InputStream in){
+			this.in = in;
+			for(int i = 0; i < QUEUED_BLOCKS + 2; i++)
+				free.add(new Block(BLOCK));
+		}
+		
+		public void run(){
+			try {
+				Block block = free.take();
+				int length = 0;
+				
+				while(true){
+					if(length == block.bytes.length)
+						block.bytes = Arrays.copyOf(block.bytes, block.bytes.length * 2);
+					int read = in.read(block.bytes, length, block.bytes.length - length);
+					if(read < 0)
+						break;
+					length += read;
+					
+					int end = length;
+					while(end > 0 && block.bytes[end - 1] != '\n')
+						end--;
+					if(end < block.bytes.length / 2)
+						continue; // keep filling the block
+					
+					Block next = free.take();
+					if(next.bytes.length < block.bytes.length)
+						next.bytes = new byte[block.bytes.length];
+					System.arraycopy(block.bytes, end, next.bytes, 0, length - end);
+					block.length = end;
+					full.put(block);
+					
+					length -= end;
+					block = next;
+				}
+				
+				if(length > 0){
+					block.length = length;
+					full.put(block);
+				}
+			} catch (IOException e) {
+				error = e;
+			} catch (InterruptedException e) {
+				return;
+			} finally {
+				try {
+					in.close();
+				} catch (IOException e) {
+					if(null == error)
+						error = e;
+				}
+			}
+			
+			try {
+				full.put(Block.END);
+			} catch (InterruptedException e) {
+				// the consumer is gone
+			}
+		}
+		
+		Block take() throws IOException{
+			try {
+				return full.take();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while reading", e);
+			}
+		}
+		
+		void recycle(Block block){
+			free.offer(block);
+		}
+		
+		void rethrow() throws IOException{
+			if(null != error)
+				throw error;
+		}
+	}
+
+	/**
+	 * Splits lines into fields and interns them. A line is copied once into a reusable array, which is what the dictionaries read
+	 * the bytes of the fields from.
+	 */
+	static final class LineParser {
+
+		private final TagFileFormat format;
+		private final IdDictionary users;
+		private final IdDictionary resources;
+		private final IdDictionary tags;
+		private final Handler handler;
+		private final byte[] delimiter;
+		private final int[] fieldStarts;
+		private final int[] fieldEnds;
+		private byte[] line = new byte[256];
+
+		LineParser(TagFileFormat format, IdDictionary users, IdDictionary resources, IdDictionary tags, Handler handler){
+			this.format = format;
+			this.users = users;
+			this.resources = resources;
+			this.tags = tags;
+			this.handler = handler;
+			delimiter = format.getDelimiter();
+			fieldStarts = new int[format.getFieldCount()];
+			fieldEnds = new int[format.getFieldCount()];
+		}
+		/**
+		 * Parses the lines in a range of a buffer. The range must end at a line boundary or at the end of the file.
+		 */
+		void parse(ByteBuffer buffer, int from, int to){
+			int start = from;
+
+			while(start < to){
+				int end = start;
+				while(end < to && buffer.get(end) != '\n')
+					end++;
+
+				int length = end - start;
+				if(length > line.length)
+					line = new byte[Math.max(length, line.length * 2)];
+				buffer.position(start);
+				buffer.get(line, 0, length);
+				parseLine(length);
+
+				start = end + 1;
+			}
+		}
+		/**
+		 * Tells whether a line has the number of fields of the format, without interning anything.
+		 */
+		boolean accepts(byte[] bytes, int from, int to){
+			copy(bytes, from, to - from);
+			return split(to - from);
+		}
+		
+		private void copy(byte[] bytes, int from, int length){
+			if(length > line.length)
+				line = new byte[Math.max(length, line.length * 2)];
+			System.arraycopy(bytes, from, line, 0, length);
+		}
+		/**
+		 * Hands the fields of the first length bytes of line to the handler, if they make a valid line.
+		 */
+		private void parseLine(int length){
+			if(!split(length))
+				return;
+
+			int user = -1;
+			if(null != users){
+				int field = format.getUserField();
+				user = users.intern(line, fieldStarts[field], fieldEnds[field]);
+			}
+			int field = format.getResourceField();
+			int resource = resources.intern(line, fieldStarts[field], fieldEnds[field]);
+			field = format.getTagField();
+			int tag = tags.intern(line, fieldStarts[field], fieldEnds[field]);
+
+			handler.addTag(user, resource, tag);
+		}
+		/**
+		 * Splits the first length bytes of line as String.split would, filling fieldStarts and fieldEnds.
+		 * @return Whether the line has the number of fields of the format.
+		 */
+		private boolean split(int length){
+			if(length > 0 && line[length - 1] == '\r')
+				length--;
+
+			int fieldCount = fieldStarts.length;
+			int fields = 0; // fields seen so far
+			int nonEmptyFields = 0; // fields up to the last non empty one, trailing empty fields do not count
+			int start = 0;
+			int i = 0;
+
+			while(i <= length){
+				if(i == length || matchesDelimiter(i, length)){
+					if(fields < fieldCount){
+						fieldStarts[fields] = start;
+						fieldEnds[fields] = i;
+					}
+					fields++;
+					if(i > start)
+						nonEmptyFields = fields;
+					if(nonEmptyFields > fieldCount)
+						return false;
+
+					i += i == length ? 1 : delimiter.length;
+					start = i;
+				}else{
+					i++;
+				}
+			}
+
+			return nonEmptyFields == fieldCount;
+		}
+
+		private boolean matchesDelimiter(int position, int length){
+			if(position + delimiter.length > length)
+				return false;
+			for(int i = 0; i < delimiter.length; i++){
+				if(line[position + i] != delimiter[i])
+					return false;
+			}
+			return true;
+		}
+	}
+
+}
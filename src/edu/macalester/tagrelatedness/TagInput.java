@@ -0,0 +1,176 @@
+package edu.macalester.tagrelatedness;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+/**
+ * An open tag file together with a sample of its first lines. The sample is read once when the file is opened and is used both to
+ * detect the TagFileFormat of the file and as the first lines handed to the database by TagFileReader, so the start of the file is
+ * not read from disk (or decompressed) a second time.
+ */
+public final class TagInput implements Closeable {
+
+	/**
+	 * Number of bytes read ahead to detect the format.
+	 */
+	private static final int SAMPLE = 1 << 20;
+
+	private final String path;
+	private final InputStream stream; // the rest of a compressed file after the sample, null for plain files
+	private final byte[] sample;
+	private final int sampleLength; // bytes of the sample, up to the end of its last complete line
+	private final TagFileFormat format;
+
+	private TagInput(String path, InputStream stream, byte[] sample, int sampleLength, TagFileFormat format){
+		this.path = path;
+		this.stream = stream;
+		this.sample = sample;
+		this.sampleLength = sampleLength;
+		this.format = format;
+	}
+	/**
+	 * Opens a tag file, detecting its format from the lines in the sample.
+	 * @param dir The path of the file, which may be compressed as .gz or .zst.
+	 * @return The open file. getFormat() returns null if the format could not be detected.
+	 * @throws IOException If the file can not be read.
+	 */
+	public static TagInput open(String dir) throws IOException{
+		return open(dir, null);
+	}
+	/**
+	 * Opens a tag file of a known format.
+	 * @param dir The path of the file, which may be compressed as .gz or .zst.
+	 * @param format The format of the file, or null to detect it from the sample.
+	 * @return The open file.
+	 * @throws IOException If the file can not be read.
+	 */
+	public static TagInput open(String dir, TagFileFormat format) throws IOException{
+		byte[] sample = new byte[SAMPLE];
+		int length = 0;
+		InputStream stream = null;
+		boolean whole;
+
+		if(TagFileReader.isCompressed(dir)){
+			stream = TagFileReader.open(dir);
+			int read = 0;
+			try {
+				while(length < sample.length && (read = stream.read(sample, length, sample.length - length)) >= 0)
+					length += read;
+			} catch (IOException e) {
+				stream.close();
+				throw e;
+			}
+			whole = read < 0;
+		}else{
+			RandomAccessFile file = new RandomAccessFile(dir, "r");
+			try {
+				length = (int) Math.min(sample.length, file.length());
+				file.readFully(sample, 0, length);
+				whole = length == file.length();
+			} finally {
+				file.close();
+			}
+		}
+
+		// Only whole lines belong to the sample, unless it holds the whole file.
+		int end = length;
+		if(!whole){
+			while(end > 0 && sample[end - 1] != '\n')
+				end--;
+		}
+
+		if(null == format)
+			format = TagFileFormat.detect(sample, end);
+
+		if(null == stream)
+			return new TagInput(dir, null, sample, end, format);
+
+		// The partial line after the sample goes back in front of the rest of the stream.
+		return new TagInput(dir, new PrefixedStream(sample, end, length, stream), sample, end, format);
+	}
+	/**
+	 * Returns the path of the file.
+	 * @return The path the file was opened with.
+	 */
+	public String getPath(){
+		return path;
+	}
+	/**
+	 * Returns the format of the file, as given when it was opened or detected from the sample.
+	 * @return The format, or null if no format matches most of the sampled lines.
+	 */
+	public TagFileFormat getFormat(){
+		return format;
+	}
+
+	public boolean isCompressed(){
+		return null != stream;
+	}
+	/**
+	 * Returns the array holding the sample. The sample is its first getSampleLength() bytes, it must not be modified.
+	 * @return The sample.
+	 */
+	byte[] getSample(){
+		return sample;
+	}
+	/**
+	 * Returns the length of the sample, which ends at the end of a line or of the file. For plain files it is also the offset where
+	 * the lines after the sample start.
+	 * @return The number of bytes in the sample.
+	 */
+	int getSampleLength(){
+		return sampleLength;
+	}
+	/**
+	 * Returns the decompressed bytes of a compressed file that follow the sample.
+	 * @return The rest of the file, or null for plain files.
+	 */
+	InputStream getStream(){
+		return stream;
+	}
+
+	public void close() throws IOException{
+		if(null != stream)
+			stream.close();
+	}
+
+	/**
+	 * A stream that returns some bytes of an array before the bytes of another stream.
+	 */
+	private static final class PrefixedStream extends InputStream {
+
+		private final byte[] prefix;
+		private int position;
+		private final int end;
+		private final InputStream in;
+
+		PrefixedStream(byte[] prefix, int from, int to, InputStream in){
+			this.prefix = prefix;
+			this.position = from;
+			this.end = to;
+			this.in = in;
+		}
+
+		public int read() throws IOException{
+			if(position < end)
+				return prefix[position++] & 0xff;
+			return in.read();
+		}
+
+		public int read(byte[] bytes, int offset, int length) throws IOException{
+			if(position < end){
+				int count = Math.min(length, end - position);
+				System.arraycopy(prefix, position, bytes, offset, count);
+				position += count;
+				return count;
+			}
+			return in.read(bytes, offset, length);
+		}
+
+		public void close() throws IOException{
+			in.close();
+		}
+	}
+
+}
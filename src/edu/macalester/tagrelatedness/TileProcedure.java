@@ -0,0 +1,13 @@
+package edu.macalester.tagrelatedness;
+
+public interface TileProcedure {
+    /**
+     * Call the function for the pairs of a row of a tile, that is (row, column) for every column in [from, to). If an exception
+     * occurs, it must be handled by the caller.
+     * @param row
+     * @param from
+     * @param to
+     * @throws Exception
+     */
+    public void call(int row, int from, int to) throws Exception;
+}
@@ -0,0 +1,164 @@
+package edu.macalester.tagrelatedness;
+/**
+ * Keeps the k most similar other tags of every tag while the pairs of an all pairs computation go by, so only T*k pairs are
+ * held instead of the T*T the computation produces.
+ * <p>
+ * Every tag has a bounded min-heap of its best pairs in a slice of two flat arrays, with the least similar pair at the root: a pair
+ * is only kept if it beats the root, which it then replaces. A pair (tag1, tag2) is offered to the heaps of both of its tags. The
+ * heaps are guarded by a fixed number of locks, one per group of tags, so pairs can be offered from several threads at the same
+ * time. Ties are broken by the index of the other tag, the lower index winning, so the kept pairs do not depend on the order in
+ * which the pairs come. Pairs whose similarity is NaN are never kept.
+ * <p>
+ * Once every pair is offered, finish() sorts every heap from the most similar pair to the least similar, and the pairs can be read
+ * back with getCount(), getNeighbor() and getSimilarity().
+ */
+public class TopKCollector implements PairProcedure {
+
+	private static final int LOCKS = 1024; // a power of 2
+
+	private final int k;
+	private final int[] counts; // pairs held by every tag
+	private final int[] neighbors; // the heap of tag t holds the pairs [t*k, t*k+counts[t])
+	private final double[] similarities;
+	private final Object[] locks = new Object[LOCKS];
+	private boolean finished;
+
+	/**
+	 * @param tagCount The number of tags, the pairs are offered as tag indexes from 0 to tagCount-1.
+	 * @param k The number of pairs to keep for every tag.
+	 */
+	public TopKCollector(int tagCount, int k){
+		if(k < 1)
+			throw new IllegalArgumentException("k must be positive: "+k);
+		if((long) tagCount * k > Integer.MAX_VALUE - 8)
+			throw new IllegalArgumentException(tagCount+" tags and k = "+k+" are too many pairs to keep");
+
+		this.k = k;
+		counts = new int[tagCount];
+		neighbors = new int[tagCount * k];
+		similarities = new double[tagCount * k];
+		for(int i = 0; i < LOCKS; i++)
+			locks[i] = new Object();
+	}
+	/**
+	 * Offers a pair to the heaps of both of its tags. Can be called from any number of threads at the same time.
+	 * @param tag1 The index of the first tag.
+	 * @param tag2 The index of the second tag.
+	 * @param similarity The similarity between both tags.
+	 */
+	public void call(int tag1, int tag2, double similarity){
+		if(finished)
+			throw new IllegalStateException("The collector is finished");
+		if(Double.isNaN(similarity))
+			return;
+		offer(tag1, tag2, similarity);
+		offer(tag2, tag1, similarity);
+	}
+
+	private void offer(int tag, int other, double similarity){
+		int base = tag * k;
+		synchronized(locks[tag & (LOCKS - 1)]){
+			int count = counts[tag];
+			if(count < k){
+				// Room left: the pair goes at the bottom and moves up.
+				int i = count;
+				while(i > 0){
+					int parent = (i - 1) >>> 1;
+					if(!worse(similarity, other, similarities[base + parent], neighbors[base + parent]))
+						break;
+					neighbors[base + i] = neighbors[base + parent];
+					similarities[base + i] = similarities[base + parent];
+					i = parent;
+				}
+				neighbors[base + i] = other;
+				similarities[base + i] = similarity;
+				counts[tag] = count + 1;
+			}else if(worse(similarities[base], neighbors[base], similarity, other)){
+				siftDown(base, k, other, similarity);
+			}
+		}
+	}
+	/**
+	 * Puts a pair at the root of a heap of count pairs and moves it down to its place.
+	 */
+	private void siftDown(int base, int count, int other, double similarity){
+		int i = 0;
+		while(true){
+			int child = 2 * i + 1;
+			if(child >= count)
+				break;
+			if(child + 1 < count && worse(similarities[base + child + 1], neighbors[base + child + 1],
+					similarities[base + child], neighbors[base + child]))
+				child++;
+			if(!worse(similarities[base + child], neighbors[base + child], similarity, other))
+				break;
+			neighbors[base + i] = neighbors[base + child];
+			similarities[base + i] = similarities[base + child];
+			i = child;
+		}
+		neighbors[base + i] = other;
+		similarities[base + i] = similarity;
+	}
+	/**
+	 * Tells whether the pair with the first similarity and neighbor is ranked after the other one: it is less similar, or as similar
+	 * with a neighbor of higher index.
+	 */
+	private static boolean worse(double similarity1, int neighbor1, double similarity2, int neighbor2){
+		return similarity1 < similarity2 || (similarity1 == similarity2 && neighbor1 > neighbor2);
+	}
+	/**
+	 * Sorts the pairs of every tag from the most similar to the least similar. No pair can be offered afterwards.
+	 */
+	public void finish(){
+		if(finished)
+			return;
+		finished = true;
+
+		for(int tag = 0; tag < counts.length; tag++){
+			int base = tag * k;
+			// Heap sort: the root is the worst pair left, so it is moved to the end of the shrinking heap.
+			for(int count = counts[tag]; count > 1; count--){
+				int last = base + count - 1;
+				int root = neighbors[base];
+				double rootSimilarity = similarities[base];
+				siftDown(base, count - 1, neighbors[last], similarities[last]);
+				neighbors[last] = root;
+				similarities[last] = rootSimilarity;
+			}
+		}
+	}
+	/**
+	 * Returns the number of pairs kept for a tag, which is k unless the tag was in fewer pairs.
+	 * @param tag The index of the tag.
+	 * @return The number of pairs.
+	 */
+	public int getCount(int tag){
+		return counts[tag];
+	}
+	/**
+	 * Returns the other tag of a pair kept for a tag. Must only be called after finish().
+	 * @param tag The index of the tag.
+	 * @param rank The rank of the pair, 0 being the most similar.
+	 * @return The index of the other tag.
+	 */
+	public int getNeighbor(int tag, int rank){
+		checkFinished();
+		return neighbors[tag * k + rank];
+	}
+	/**
+	 * Returns the similarity of a pair kept for a tag. Must only be called after finish().
+	 * @param tag The index of the tag.
+	 * @param rank The rank of the pair, 0 being the most similar.
+	 * @return The similarity between both tags.
+	 */
+	public double getSimilarity(int tag, int rank){
+		checkFinished();
+		return similarities[tag * k + rank];
+	}
+
+	private void checkFinished(){
+		if(!finished)
+			throw new IllegalStateException("The collector is not finished");
+	}
+
+}
@@ -0,0 +1,126 @@
+package edu.macalester.tagrelatedness;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+/**
+ * Runs a procedure over every pair (i, j), 0 &lt;= i &lt; j &lt; count, in parallel.
+ * <p>
+ * The upper triangle of the count x count matrix of pairs is cut into square tiles, all of the same cost except the half tiles
+ * on the diagonal, so the rows that compare a tag with many others are spread over many tasks instead of one. The tiles are
+ * split in halves on a ForkJoinPool, whose idle workers steal the halves still waiting in the queues of busy ones, so every thread
+ * stays busy until the last tiles. A tile covers a few hundred rows and columns at most, so the data of both ranges stays warm in
+ * the cache while the tile is done.
+ */
+public class TriangularScheduler {
+	public static final Logger LOG = Logger.getLogger(TriangularScheduler.class.getName());
+
+	/**
+	 * Bounds of the side of a tile, and the number of tiles wanted per thread for the stealing to even out the work.
+	 */
+	private static final int MIN_TILE = 16;
+	private static final int MAX_TILE = 512;
+	private static final int TILES_PER_THREAD = 64;
+	private static final int LOG_MODULO = 1000;
+
+	/**
+	 * Calls the procedure with every row of every tile of the pairs of count elements. The procedure is called from several threads
+	 * at the same time, but every pair (i, j), i &lt; j, is handed to it exactly once.
+	 * @param count The number of elements, indexed from 0 to count-1.
+	 * @param threads The number of threads to use.
+	 * @param procedure The procedure comparing a row with a range of columns after it.
+	 */
+	public static void run(int count, int threads, final TileProcedure procedure){
+		if(count < 2)
+			return;
+
+		final int side = tileSide(count, threads);
+		int blocks = (count + side - 1) / side;
+
+		// Tiles in row major order over the upper triangle of blocks, so neighbouring tiles share their rows.
+		final int tileCount = blocks * (blocks + 1) / 2;
+		final int[] tileRows = new int[tileCount];
+		final int[] tileColumns = new int[tileCount];
+		int tile = 0;
+		for(int i = 0; i < blocks; i++){
+			for(int j = i; j < blocks; j++){
+				tileRows[tile] = i;
+				tileColumns[tile] = j;
+				tile++;
+			}
+		}
+
+		final int size = count;
+		final AtomicInteger done = new AtomicInteger();
+		ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+		try {
+			pool.invoke(new Tiles(0, tileCount, new Tiles.Worker(){
+				public void run(int tile){
+					int rowStart = tileRows[tile] * side;
+					int rowEnd = Math.min(size, rowStart + side);
+					int columnStart = tileColumns[tile] * side;
+					int columnEnd = Math.min(size, columnStart + side);
+
+					int finished = done.getAndIncrement();
+					if(finished % LOG_MODULO == 0)
+						LOG.info("processing tile " + (finished+1) + " of " + tileCount);
+
+					try {
+						for(int row = rowStart; row < rowEnd; row++){
+							int from = Math.max(columnStart, row + 1);
+							if(from < columnEnd)
+								procedure.call(row, from, columnEnd);
+						}
+					} catch (Exception e) {
+						LOG.log(Level.SEVERE, "error processing tile of rows " + rowStart + " to " + rowEnd + " and columns " +
+								columnStart + " to " + columnEnd, e);
+					}
+				}
+			}));
+		} finally {
+			pool.shutdown();
+		}
+	}
+	/**
+	 * Picks the side of the tiles so there are about TILES_PER_THREAD tiles per thread, within MIN_TILE and MAX_TILE.
+	 */
+	static int tileSide(int count, int threads){
+		double tiles = 2.0 * TILES_PER_THREAD * Math.max(1, threads); // the triangle holds about half of the squared blocks
+		int side = (int) Math.ceil(count / Math.sqrt(tiles));
+		return Math.max(MIN_TILE, Math.min(MAX_TILE, side));
+	}
+
+	/**
+	 * A range of tiles, split in halves until a single tile is left.
+	 */
+	private static final class Tiles extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		interface Worker {
+			void run(int tile);
+		}
+
+		private final int from;
+		private final int to;
+		private final Worker worker;
+
+		Tiles(int from, int to, Worker worker){
+			this.from = from;
+			this.to = to;
+			this.worker = worker;
+		}
+
+		protected void compute(){
+			if(to - from == 1){
+				worker.run(from);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new Tiles(from, middle, worker), new Tiles(middle, to, worker));
+		}
+	}
+
+}
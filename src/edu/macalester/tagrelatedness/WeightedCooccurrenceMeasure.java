@@ -0,0 +1,19 @@
+package edu.macalester.tagrelatedness;
+/**
+ * A CooccurrenceMeasure that adds up a weight for every resource shared by two tags. The CooccurrenceEngine accumulates the
+ * weights of the shared resources while it counts them, so every pair is scored in the same single pass over the resources.
+ */
+public interface WeightedCooccurrenceMeasure extends CooccurrenceMeasure {
+	/**
+	 * Returns the weight of every resource, indexed by resource id. The array is shared, it must not be modified.
+	 */
+	double[] getResourceWeights();
+	/**
+	 * Calculates the similarity of two tags that share at least one resource.
+	 * @param tag1 id of the first tag
+	 * @param tag2 id of the second tag
+	 * @param sharedResources the number of resources associated with both tags
+	 * @param sharedWeight the sum of the weights of those resources, added in increasing order of resource id
+	 */
+	double calculateSimilarity(int tag1, int tag2, int sharedResources, double sharedWeight);
+}
@@ -0,0 +1,110 @@
+package edu.macalester.tagrelatedness;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ExternalSortTest {
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Lines of a similarity CSV with many equal similarities, written in several ways, and some that can not be parsed.
+	 */
+	private static List<String> similarityLines(int count, long seed){
+		Random random = new Random(seed);
+		String[] similarities = {"0.5", "5E-1", "0.50", "-0.0", "0", "1.0", "0.125", "-2.5e-3", "NaN", "Infinity", "-Infinity", "n/a", ""};
+		List<String> lines = new ArrayList<String>();
+		for(int i = 0; i < count; i++)
+			lines.add("\"tag"+i+"\",\"tag\u00e9"+random.nextInt(100)+"\","+similarities[random.nextInt(similarities.length)]);
+		return lines;
+	}
+
+	/**
+	 * Sorts the lines with the keyed sort, within a budget small enough to give many runs, merged a few at a time.
+	 */
+	private static List<String> sortByKey(List<String> lines, ExternalSort.KeyExtractor extractor, boolean distinct, int threads) throws IOException {
+		File input = File.createTempFile("input", ".csv");
+		File output = File.createTempFile("output", ".csv");
+		try {
+			write(input, lines);
+			List<File> runs = ExternalSort.sortInBatchByKey(input, extractor, 1 << 16, UTF8, null, distinct, 0, false, threads);
+			assertTrue("The budget must give several runs", runs.size() > 3);
+			ExternalSort.mergeSortedFilesByKey(runs, output, extractor, distinct, false, false, 1 << 16, 3, null);
+			return read(output);
+		} finally {
+			input.delete();
+			output.delete();
+		}
+	}
+
+	@Test
+	public void keyedSortIsAStableSortBySimilarity() throws IOException {
+		List<String> lines = similarityLines(20000, 1);
+		List<String> expected = new ArrayList<String>(lines);
+		Collections.sort(expected, new CSVComparator());
+
+		for(int threads : new int[]{1, 3})
+			assertEquals("threads "+threads, expected, sortByKey(lines, new CSVComparator(), false, threads));
+	}
+
+	@Test
+	public void byteOrderIsTheOrderOfTheStrings() throws IOException {
+		List<String> lines = similarityLines(20000, 2);
+		lines.addAll(lines.subList(0, 1000));
+		lines.add("\"tag1\"");
+		lines.add("\"tag");
+		List<String> expected = new ArrayList<String>(lines);
+		Collections.sort(expected);
+
+		assertEquals(expected, sortByKey(lines, ExternalSort.BYTEORDER, false, 2));
+
+		List<String> distinct = new ArrayList<String>();
+		for(String line : expected){
+			if(distinct.isEmpty() || !line.equals(distinct.get(distinct.size() - 1)))
+				distinct.add(line);
+		}
+		assertEquals(distinct, sortByKey(lines, ExternalSort.BYTEORDER, true, 2));
+	}
+
+	private static void write(File file, List<String> lines) throws IOException {
+		BufferedWriter out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), UTF8));
+		try {
+			for(String line : lines){
+				out.write(line);
+				out.newLine();
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	private static List<String> read(File file) throws IOException {
+		BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF8));
+		try {
+			List<String> lines = new ArrayList<String>();
+			String line;
+			while(null != (line = in.readLine()))
+				lines.add(line);
+			return lines;
+		} finally {
+			in.close();
+		}
+	}
+
+}
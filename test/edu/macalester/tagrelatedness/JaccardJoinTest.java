@@ -0,0 +1,110 @@
+package edu.macalester.tagrelatedness;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class JaccardJoinTest {
+
+	/**
+	 * A database with a few tags on most of the resources, so some tags get bitsets, and many small tags that overlap.
+	 */
+	private static ProjectionalDatabase buildDatabase(long seed){
+		Random random = new Random(seed);
+		ProjectionalDatabase db = new ProjectionalDatabase();
+		for(int resource = 0; resource < 300; resource++){
+			for(int tag = 0; tag < 3; tag++){
+				if(random.nextInt(4) != 0)
+					db.addTag("r"+resource, "common"+tag);
+			}
+			int tags = random.nextInt(6);
+			for(int i = 0; i < tags; i++)
+				db.addTag("r"+resource, "t"+random.nextInt(60));
+		}
+		return db;
+	}
+
+	/**
+	 * The ids of every tag, in a shuffled order, to check that pairs keep the order of the tags array.
+	 */
+	private static int[] shuffledTags(ProjectionalDatabase db, long seed){
+		int[] tags = new int[db.getTagDictionary().size()];
+		for(int i = 0; i < tags.length; i++)
+			tags[i] = i;
+		Random random = new Random(seed);
+		for(int i = tags.length - 1; i > 0; i--){
+			int j = random.nextInt(i + 1);
+			int swap = tags[i];
+			tags[i] = tags[j];
+			tags[j] = swap;
+		}
+		return tags;
+	}
+
+	private static String key(int tag1, int tag2){
+		return tag1+","+tag2;
+	}
+
+	private static Map<String, Double> collect(final Map<String, Double> pairs, int[] tags, ProjectionalJaccard measure, double threshold, int threads){
+		JaccardJoin.run(tags, measure, threshold, threads, new PairProcedure() {
+			public void call(int tag1, int tag2, double similarity){
+				synchronized(pairs){
+					if(null != pairs.put(key(tag1, tag2), similarity))
+						throw new AssertionError("Pair emitted twice: "+key(tag1, tag2));
+				}
+			}
+		});
+		return pairs;
+	}
+
+	@Test
+	public void matchesBruteForce(){
+		for(long seed = 0; seed < 4; seed++){
+			ProjectionalDatabase db = buildDatabase(seed);
+			ProjectionalJaccard measure = new ProjectionalJaccard(db);
+			int[] tags = shuffledTags(db, seed);
+
+			for(double threshold : new double[]{0.05, 0.1, 1.0 / 3, 0.5, 0.75, 1.0}){
+				Map<String, Double> expected = new HashMap<String, Double>();
+				for(int i = 0; i < tags.length; i++){
+					for(int j = i + 1; j < tags.length; j++){
+						double similarity = measure.calculateSimilarity(tags[i], tags[j]);
+						if(similarity >= threshold)
+							expected.put(key(tags[i], tags[j]), similarity);
+					}
+				}
+
+				for(int threads : new int[]{1, 4}){
+					Map<String, Double> found = collect(new HashMap<String, Double>(), tags, measure, threshold, threads);
+					assertEquals("seed "+seed+" threshold "+threshold+" threads "+threads, expected, found);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void matchesTheCooccurrenceEngineAboveTheThreshold(){
+		ProjectionalDatabase db = buildDatabase(7);
+		ProjectionalJaccard measure = new ProjectionalJaccard(db);
+		int[] tags = shuffledTags(db, 7);
+		double threshold = 0.2;
+
+		final Map<String, Double> expected = new HashMap<String, Double>();
+		CooccurrenceEngine.run(tags, measure, 2, new PairProcedure() {
+			public void call(int tag1, int tag2, double similarity){
+				if(similarity >= 0.2){
+					synchronized(expected){
+						expected.put(key(tag1, tag2), similarity);
+					}
+				}
+			}
+		});
+
+		assertEquals(expected, collect(new HashMap<String, Double>(), tags, measure, threshold, 2));
+	}
+
+}
@@ -0,0 +1,81 @@
+package edu.macalester.tagrelatedness;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LshIndexTest {
+
+	/**
+	 * Tags with overlapping resources, and some tags without any resource.
+	 */
+	private static ProjectionalDatabase buildDatabase(){
+		Random random = new Random(5);
+		ProjectionalDatabase db = new ProjectionalDatabase();
+		for(int resource = 0; resource < 200; resource++){
+			int tags = 1 + random.nextInt(5);
+			for(int i = 0; i < tags; i++)
+				db.addTag("r"+resource, "t"+random.nextInt(40));
+		}
+		for(int i = 0; i < 5; i++)
+			db.getTagDictionary().intern("empty"+i);
+		return db;
+	}
+
+	@Test
+	public void emitsEveryCandidateOnce(){
+		ProjectionalDatabase db = buildDatabase();
+		ProjectionalJaccard measure = new ProjectionalJaccard(db);
+		MinHashSignatures signatures = db.buildMinHashSignatures(24, 11, 2);
+		LshIndex index = new LshIndex(signatures, 12);
+
+		int[] tags = new int[db.getTagDictionary().size()];
+		for(int i = 0; i < tags.length; i++)
+			tags[i] = tags.length - 1 - i;
+
+		final Map<String, Double> found = new HashMap<String, Double>();
+		index.run(tags, measure, 3, new PairProcedure() {
+			public void call(int tag1, int tag2, double similarity){
+				synchronized(found){
+					if(null != found.put(tag1+","+tag2, similarity))
+						throw new AssertionError("Pair emitted twice: "+tag1+","+tag2);
+				}
+			}
+		});
+
+		Map<String, Double> expected = new HashMap<String, Double>();
+		for(int i = 0; i < tags.length; i++){
+			for(int j = i + 1; j < tags.length; j++){
+				if(index.isCandidate(tags[i], tags[j]))
+					expected.put(tags[i]+","+tags[j], measure.calculateSimilarity(tags[i], tags[j]));
+			}
+		}
+		assertTrue(expected.size() > 0);
+		assertEquals(expected, found);
+	}
+
+	@Test
+	public void tagsWithoutResourcesAreNeverCandidates(){
+		ProjectionalDatabase db = buildDatabase();
+		MinHashSignatures signatures = db.buildMinHashSignatures(24, 11, 1);
+		LshIndex index = new LshIndex(signatures, 12);
+		IdDictionary dictionary = db.getTagDictionary();
+		int empty1 = dictionary.getId("empty0");
+		int empty2 = dictionary.getId("empty1");
+		int tag = dictionary.getId("t0");
+
+		assertTrue(signatures.isEmpty(empty1));
+		assertFalse(signatures.isEmpty(tag));
+		assertFalse(index.isCandidate(empty1, empty2));
+		assertFalse(index.isCandidate(empty1, tag));
+		assertTrue(Double.isNaN(signatures.estimateJaccard(empty1, empty2)));
+		assertEquals(0.0, signatures.estimateJaccard(empty1, tag), 0.0);
+	}
+
+}
@@ -0,0 +1,134 @@
+package edu.macalester.tagrelatedness;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SimilarityFileTest {
+
+	private static final int TAGS = 50;
+
+	private static String[] tagNames(){
+		String[] tags = new String[TAGS];
+		for(int i = 0; i < TAGS; i++)
+			tags[i] = "tag\u00e9"+i;
+		return tags;
+	}
+
+	/**
+	 * Random pairs of distinct tags, some of them repeated, with few distinct similarities so most records tie.
+	 */
+	private static List<double[]> randomPairs(int count, long seed){
+		Random random = new Random(seed);
+		List<double[]> pairs = new ArrayList<double[]>();
+		for(int i = 0; i < count; i++){
+			int tag1 = random.nextInt(TAGS);
+			int tag2 = (tag1 + 1 + random.nextInt(TAGS - 1)) % TAGS;
+			pairs.add(new double[]{tag1, tag2, random.nextInt(8) / 8.0 - 0.25});
+		}
+		return pairs;
+	}
+
+	/**
+	 * Writes the pairs from the given number of threads, every thread writing an interleaved share of them.
+	 */
+	private static void write(File file, final List<double[]> pairs, boolean symmetric, long memory, final int threads) throws IOException {
+		final SimilarityFile.Writer writer = new SimilarityFile.Writer(file, tagNames(), symmetric, memory, threads);
+		ParallelForEach.range(0, threads, threads, new Procedure<Integer>() {
+			public void call(Integer thread) throws Exception {
+				for(int i = thread; i < pairs.size(); i += threads)
+					writer.write((int) pairs.get(i)[0], (int) pairs.get(i)[1], pairs.get(i)[2]);
+			}
+		});
+		writer.close();
+	}
+
+	@Test
+	public void roundTrip() throws IOException {
+		for(boolean symmetric : new boolean[]{true, false}){
+			List<double[]> pairs = randomPairs(2000, symmetric ? 1 : 2);
+			File file = File.createTempFile("roundTrip", SimilarityFile.EXTENSION);
+			try {
+				write(file, pairs, symmetric, ExternalSort.estimateAvailableMemory(), 1);
+
+				SimilarityFile.Reader reader = new SimilarityFile.Reader(file.getPath());
+				try {
+					assertEquals(symmetric, reader.isSymmetric());
+					assertEquals(TAGS, reader.getTagDictionary().size());
+					for(int tag = 0; tag < TAGS; tag++){
+						List<double[]> expected = new ArrayList<double[]>();
+						for(double[] pair : pairs){
+							if(pair[0] == tag)
+								expected.add(new double[]{pair[1], pair[2]});
+							else if(symmetric && pair[1] == tag)
+								expected.add(new double[]{pair[0], pair[2]});
+						}
+						Collections.sort(expected, new Comparator<double[]>() {
+							public int compare(double[] o1, double[] o2){
+								int bySimilarity = Double.compare(o2[1], o1[1]);
+								return bySimilarity != 0 ? bySimilarity : Double.compare(o1[0], o2[0]);
+							}
+						});
+
+						SimilarityFile.Scores scores = reader.getScores(tagNames()[tag]);
+						assertEquals(expected.size(), reader.getCount(tag));
+						assertEquals(expected.size(), scores.tags.length);
+						for(int i = 0; i < expected.size(); i++){
+							assertEquals("tag "+tag+" record "+i, (int) expected.get(i)[0], scores.tags[i]);
+							assertEquals(expected.get(i)[1], scores.similarities[i], 0.0);
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} finally {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * A budget so small that every thread spills many runs, and the runs are merged in several passes, must give the same bytes as
+	 * a single run.
+	 */
+	@Test
+	public void sameBytesWithAnyBudget() throws IOException {
+		List<double[]> pairs = randomPairs(100000, 3);
+		File single = File.createTempFile("single", SimilarityFile.EXTENSION);
+		File spilled = File.createTempFile("spilled", SimilarityFile.EXTENSION);
+		try {
+			write(single, pairs, true, 1L << 30, 1);
+			write(spilled, pairs, true, 0, 4);
+
+			byte[] expected = readAll(single);
+			assertTrue(expected.length > 100000 * 2 * 12);
+			assertArrayEquals(expected, readAll(spilled));
+		} finally {
+			single.delete();
+			spilled.delete();
+		}
+	}
+
+	private static byte[] readAll(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package edu.macalester.tagrelatedness;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class SortedRunWriterTest {
+
+	/**
+	 * Pairs written from a single thread, in several runs, must give the bytes of the file of a PairWriter sorted by the
+	 * ExternalSort with a CSVComparator.
+	 */
+	@Test
+	public void sameBytesAsSortingAPairWriterFile() throws IOException {
+		String[] tags = new String[100];
+		for(int i = 0; i < tags.length; i++)
+			tags[i] = "tag\u00e9"+i;
+		// Similarities below 0.1 that differ can be written with the same 17 decimals, and must then keep the order they were written in.
+		double[] similarities = {0.5, 0.1, Math.nextUp(0.1), -0.1, 1.0 / 3, -0.0, 0.0, 1e-20, -1e-20, 4e-18, 6e-18, -2.5,
+				Double.NaN, Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY};
+
+		File unsorted = File.createTempFile("unsorted", ".csv");
+		File sorted = File.createTempFile("sorted", ".csv");
+		File written = File.createTempFile("written", ".csv");
+		try {
+			PairWriter pairs = new PairWriter(unsorted, tags);
+			SortedRunWriter writer = new SortedRunWriter(written, tags, SortedRunWriter.MIN_MEMORY, 1);
+			Random random = new Random(1);
+			for(int i = 0; i < 200000; i++){
+				int tag1 = random.nextInt(tags.length);
+				int tag2 = random.nextInt(tags.length);
+				double similarity;
+				switch(random.nextInt(3)){
+				case 0: similarity = similarities[random.nextInt(similarities.length)]; break;
+				case 1: similarity = random.nextDouble(); break;
+				default: similarity = (random.nextDouble() - 0.5) * 1e-12;
+				}
+				pairs.write(tag1, tag2, similarity);
+				writer.write(tag1, tag2, similarity);
+			}
+			pairs.close();
+			writer.close();
+
+			CSVComparator comparator = new CSVComparator();
+			List<File> runs = ExternalSort.sortInBatchByKey(unsorted, comparator, 1 << 20, Charset.forName("UTF-8"), null, false, 0, false, 1);
+			ExternalSort.mergeSortedFilesByKey(runs, sorted, comparator);
+
+			assertArrayEquals(readAll(sorted), readAll(written));
+		} finally {
+			unsorted.delete();
+			sorted.delete();
+			written.delete();
+		}
+	}
+
+	private static byte[] readAll(File file) throws IOException {
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return bytes;
+		} finally {
+			in.close();
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+package edu.macalester.tagrelatedness;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TopKCollectorTest {
+
+	@Test
+	public void tiesGoToTheLowerNeighbor(){
+		TopKCollector collector = new TopKCollector(6, 2);
+		collector.call(0, 5, 0.5);
+		collector.call(0, 3, 0.5);
+		collector.call(0, 4, 0.5);
+		collector.call(0, 1, 0.25);
+		collector.finish();
+
+		assertEquals(2, collector.getCount(0));
+		assertEquals(3, collector.getNeighbor(0, 0));
+		assertEquals(4, collector.getNeighbor(0, 1));
+		assertEquals(0.5, collector.getSimilarity(0, 1), 0.0);
+	}
+
+	@Test
+	public void nanIsNeverKept(){
+		TopKCollector collector = new TopKCollector(3, 2);
+		collector.call(0, 1, Double.NaN);
+		collector.call(0, 2, 0.0);
+		collector.finish();
+
+		assertEquals(1, collector.getCount(0));
+		assertEquals(2, collector.getNeighbor(0, 0));
+		assertEquals(0, collector.getCount(1));
+		assertEquals(1, collector.getCount(2));
+	}
+
+	/**
+	 * Offers the same pairs, with many ties, in several orders and checks every tag against a full sort of its pairs.
+	 */
+	@Test
+	public void matchesAFullSortInAnyOrder(){
+		int tagCount = 40;
+		int k = 5;
+		Random random = new Random(42);
+		double[][] similarities = new double[tagCount][tagCount];
+		List<int[]> pairs = new ArrayList<int[]>();
+		for(int tag1 = 0; tag1 < tagCount; tag1++){
+			for(int tag2 = tag1 + 1; tag2 < tagCount; tag2++){
+				similarities[tag1][tag2] = similarities[tag2][tag1] = random.nextInt(4) / 4.0;
+				pairs.add(new int[]{tag1, tag2});
+			}
+		}
+
+		for(int round = 0; round < 3; round++){
+			Collections.shuffle(pairs, random);
+			TopKCollector collector = new TopKCollector(tagCount, k);
+			for(int[] pair : pairs)
+				collector.call(pair[0], pair[1], similarities[pair[0]][pair[1]]);
+			collector.finish();
+
+			for(int tag = 0; tag < tagCount; tag++){
+				final double[] row = similarities[tag];
+				List<Integer> expected = new ArrayList<Integer>();
+				for(int other = 0; other < tagCount; other++){
+					if(other != tag)
+						expected.add(other);
+				}
+				Collections.sort(expected, new Comparator<Integer>() {
+					public int compare(Integer o1, Integer o2){
+						int bySimilarity = Double.compare(row[o2], row[o1]);
+						return bySimilarity != 0 ? bySimilarity : Integer.compare(o1, o2);
+					}
+				});
+
+				assertEquals(k, collector.getCount(tag));
+				for(int rank = 0; rank < k; rank++){
+					assertEquals("tag "+tag+" rank "+rank, (int) expected.get(rank), collector.getNeighbor(tag, rank));
+					assertEquals(row[expected.get(rank)], collector.getSimilarity(tag, rank), 0.0);
+				}
+			}
+		}
+	}
+
+}